@@ -1,5 +1,3 @@
--dontwarn com.squareup.okhttp.**
-
 # ProGuard config for Gson. See <a href="https://github.com/google/gson/blob/master/examples/android-proguard-example/proguard.cfg" /a>.
 ##---------------Begin: proguard configuration for Gson  ----------
 # Gson uses generic type information stored in a class file when working with fields. Proguard
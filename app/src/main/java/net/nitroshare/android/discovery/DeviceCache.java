@@ -0,0 +1,105 @@
+package net.nitroshare.android.discovery;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent record of the last known address of each device
+ *
+ * Each device that is resolved is stored along with the time it was last
+ * seen so that it can be shown immediately the next time devices are listed.
+ * Entries older than MAX_AGE are ignored and removed.
+ *
+ * Entries have the form "addresses port time uuid". The UUID is needed to
+ * rejoin sessions and reuse capabilities learned on earlier connections;
+ * entries written before it was stored are read with an empty UUID.
+ */
+class DeviceCache {
+
+    private static final String TAG = "DeviceCache";
+
+    private static final String PREFERENCES_NAME = "devices";
+
+    // Devices not seen for this many milliseconds are forgotten
+    private static final long MAX_AGE = 24 * 60 * 60 * 1000;
+
+    private final SharedPreferences mSharedPreferences;
+
+    /**
+     * Create a new device cache
+     * @param context context used to access the stored entries
+     */
+    DeviceCache(Context context) {
+        mSharedPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Retrieve all devices seen recently, removing those that have expired
+     * @return list of devices
+     *
+     * Addresses are stored as literals, so no name lookups are performed.
+     * Devices with more than one address keep all of them in order.
+     */
+    List<Device> getDevices() {
+        List<Device> devices = new ArrayList<>();
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, ?> entry : mSharedPreferences.getAll().entrySet()) {
+            String[] parts = entry.getValue().toString().split(" ", 4);
+            try {
+                if (parts.length < 3 || now - Long.parseLong(parts[2]) > MAX_AGE) {
+                    editor.remove(entry.getKey());
+                    continue;
+                }
+                String[] hosts = parts[0].split(",");
+                InetAddress[] addresses = new InetAddress[hosts.length];
+                for (int i = 0; i < hosts.length; i++) {
+                    addresses[i] = InetAddress.getByName(hosts[i]);
+                }
+                devices.add(new Device(
+                        entry.getKey(),
+                        parts.length == 4 ? parts[3] : "",
+                        addresses,
+                        Integer.parseInt(parts[1])
+                ));
+            } catch (NumberFormatException | UnknownHostException e) {
+                Log.w(TAG, String.format("discarding \"%s\"", entry.getKey()));
+                editor.remove(entry.getKey());
+            }
+        }
+        editor.apply();
+        return devices;
+    }
+
+    /**
+     * Record that a device was seen at its current address
+     *
+     * Devices resolved without a UUID keep the one already stored.
+     */
+    void put(Device device) {
+        String uuid = device.getUuid() == null ? "" : device.getUuid();
+        if (uuid.isEmpty()) {
+            String[] parts = mSharedPreferences.getString(device.getName(), "").split(" ", 4);
+            if (parts.length == 4) {
+                uuid = parts[3];
+            }
+        }
+        StringBuilder hosts = new StringBuilder();
+        for (InetAddress address : device.getAddresses()) {
+            if (hosts.length() > 0) {
+                hosts.append(',');
+            }
+            hosts.append(address.getHostAddress());
+        }
+        mSharedPreferences.edit().putString(device.getName(),
+                hosts + " " + device.getPort() + " " + System.currentTimeMillis() + " " + uuid
+        ).apply();
+    }
+}
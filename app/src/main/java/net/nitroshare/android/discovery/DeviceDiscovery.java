@@ -0,0 +1,304 @@
+package net.nitroshare.android.discovery;
+
+import android.content.Context;
+import android.net.nsd.NsdManager;
+import android.net.nsd.NsdServiceInfo;
+import android.net.wifi.WifiManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import net.nitroshare.android.util.Settings;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Find devices on the network that can receive transfers
+ *
+ * Devices seen recently are reported immediately from the device cache and
+ * then checked by connecting to them. Those that cannot be reached are
+ * reported lost unless mDNS has found them in the meantime. Services found
+ * by NsdManager are resolved through a ResolveScheduler; if the built-in
+ * mDNS implementation is enabled, MdnsService is used instead. Either way,
+ * devices found are recorded in the cache.
+ *
+ * Discovery must be started and stopped from the UI thread and the listener
+ * is invoked on it.
+ */
+public class DeviceDiscovery {
+
+    private static final String TAG = "DeviceDiscovery";
+
+    // Maximum time to wait for a cached device to accept a connection
+    private static final int PROBE_TIMEOUT = 1000;
+
+    private static final int PROBE_THREADS = 4;
+
+    /**
+     * Listener for devices that are found and lost
+     */
+    public interface Listener {
+        void onDeviceFound(Device device);
+        void onDeviceLost(String name);
+    }
+
+    private final Listener mListener;
+    private final String mThisDeviceName;
+    private final DeviceCache mDeviceCache;
+    private final NsdManager mNsdManager;
+    private final WifiManager mWifiManager;
+    private final boolean mUseMdns;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private ResolveScheduler mResolveScheduler;
+    private MdnsService mMdnsService;
+    private WifiManager.MulticastLock mMulticastLock;
+    private ExecutorService mProbeExecutor;
+    private boolean mStopped = true;
+
+    // Names of devices that have been resolved since discovery started
+    private final Set<String> mResolved = new HashSet<>();
+
+    /**
+     * Listener for discovery events
+     */
+    private NsdManager.DiscoveryListener mDiscoveryListener = new NsdManager.DiscoveryListener() {
+        @Override
+        public void onServiceFound(final NsdServiceInfo serviceInfo) {
+            if (serviceInfo.getServiceName().equals(mThisDeviceName)) {
+                return;
+            }
+            Log.d(TAG, String.format("found \"%s\"", serviceInfo.getServiceName()));
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mStopped) {
+                        mResolveScheduler.resolve(serviceInfo);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onServiceLost(final NsdServiceInfo serviceInfo) {
+            Log.d(TAG, String.format("lost \"%s\"", serviceInfo.getServiceName()));
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mStopped) {
+                        String name = serviceInfo.getServiceName();
+                        mResolveScheduler.cancel(name);
+                        deviceLost(name);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onDiscoveryStarted(String serviceType) {
+            Log.d(TAG, "service discovery started");
+        }
+
+        @Override
+        public void onDiscoveryStopped(String serviceType) {
+            Log.d(TAG, "service discovery stopped");
+        }
+
+        @Override
+        public void onStartDiscoveryFailed(String serviceType, int errorCode) {
+            Log.e(TAG, "unable to start service discovery");
+        }
+
+        @Override
+        public void onStopDiscoveryFailed(String serviceType, int errorCode) {
+            Log.e(TAG, "unable to stop service discovery");
+        }
+    };
+
+    /**
+     * Create the service information used to advertise a device
+     * @param device device to advertise
+     * @return service information for NsdManager
+     */
+    public static NsdServiceInfo toServiceInfo(Device device) {
+        NsdServiceInfo serviceInfo = new NsdServiceInfo();
+        serviceInfo.setServiceType(Device.SERVICE_TYPE);
+        serviceInfo.setServiceName(device.getName());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            serviceInfo.setAttribute(Device.UUID, device.getUuid());
+        }
+        serviceInfo.setPort(device.getPort());
+        return serviceInfo;
+    }
+
+    /**
+     * Create a new device discovery instance
+     * @param context context used to access system services and the cache
+     * @param thisDeviceName name of this device (which is ignored)
+     * @param listener listener for devices found and lost
+     */
+    public DeviceDiscovery(Context context, String thisDeviceName, Listener listener) {
+        mListener = listener;
+        mThisDeviceName = thisDeviceName;
+        mDeviceCache = new DeviceCache(context);
+        mNsdManager = (NsdManager) context.getSystemService(Context.NSD_SERVICE);
+        mWifiManager = (WifiManager) context.getApplicationContext()
+                .getSystemService(Context.WIFI_SERVICE);
+        mUseMdns = new Settings(context).getBoolean(Settings.Key.DISCOVERY_MDNS);
+    }
+
+    /**
+     * Report a device that was found and record it in the cache
+     */
+    private void deviceFound(Device device) {
+        mResolved.add(device.getName());
+        mDeviceCache.put(device);
+        mListener.onDeviceFound(device);
+    }
+
+    /**
+     * Report a device that was lost
+     */
+    private void deviceLost(String name) {
+        mResolved.remove(name);
+        mListener.onDeviceLost(name);
+    }
+
+    /**
+     * Begin browsing with the built-in mDNS implementation
+     */
+    private void startMdns() {
+        mMulticastLock = mWifiManager.createMulticastLock(TAG);
+        mMulticastLock.acquire();
+        try {
+            mMdnsService = new MdnsService(Device.SERVICE_TYPE);
+            mMdnsService.browse(new MdnsService.Listener() {
+                @Override
+                public void onDeviceFound(final Device device) {
+                    if (device.getName().equals(mThisDeviceName)) {
+                        return;
+                    }
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!mStopped) {
+                                deviceFound(device);
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void onDeviceLost(final String name) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!mStopped) {
+                                deviceLost(name);
+                            }
+                        }
+                    });
+                }
+            });
+            mMdnsService.start();
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+        }
+    }
+
+    /**
+     * Report cached devices and begin discovering services
+     */
+    public void start() {
+        mStopped = false;
+        mResolved.clear();
+        mResolveScheduler = new ResolveScheduler(mNsdManager, new ResolveScheduler.Listener() {
+            @Override
+            public void onServiceResolved(NsdServiceInfo serviceInfo) {
+                deviceFound(new Device(
+                        serviceInfo.getServiceName(),
+                        "",
+                        serviceInfo.getHost(),
+                        serviceInfo.getPort()
+                ));
+            }
+        });
+        mProbeExecutor = Executors.newFixedThreadPool(PROBE_THREADS);
+        List<Device> devices = mDeviceCache.getDevices();
+        for (Device device : devices) {
+            if (!device.getName().equals(mThisDeviceName)) {
+                mListener.onDeviceFound(device);
+                probe(device);
+            }
+        }
+        if (mUseMdns) {
+            startMdns();
+        } else {
+            mNsdManager.discoverServices(Device.SERVICE_TYPE,
+                    NsdManager.PROTOCOL_DNS_SD, mDiscoveryListener);
+        }
+    }
+
+    /**
+     * Stop discovering services
+     */
+    public void stop() {
+        mStopped = true;
+        if (mUseMdns) {
+            mMdnsService.stop();
+            mMulticastLock.release();
+        } else {
+            mNsdManager.stopServiceDiscovery(mDiscoveryListener);
+        }
+        mResolveScheduler.stop();
+        mProbeExecutor.shutdownNow();
+    }
+
+    /**
+     * Check that a cached device is still accepting connections
+     *
+     * The connection is closed without sending anything, which the transfer
+     * server ignores.
+     */
+    private void probe(final Device device) {
+        mProbeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean reachable;
+                Socket socket = new Socket();
+                try {
+                    socket.connect(new InetSocketAddress(device.getHost(), device.getPort()),
+                            PROBE_TIMEOUT);
+                    reachable = true;
+                } catch (IOException e) {
+                    reachable = false;
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                if (reachable) {
+                    return;
+                }
+                Log.d(TAG, String.format("\"%s\" is no longer reachable", device.getName()));
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mStopped && !mResolved.contains(device.getName())) {
+                            mListener.onDeviceLost(device.getName());
+                        }
+                    }
+                });
+            }
+        });
+    }
+}
@@ -0,0 +1,182 @@
+package net.nitroshare.android.discovery;
+
+import android.net.nsd.NsdManager;
+import android.net.nsd.NsdServiceInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+
+/**
+ * Resolve services with limited concurrency, retrying those that fail
+ *
+ * Android copes poorly with many simultaneous resolves (older versions fail
+ * them outright), but resolving strictly one at a time means a single slow
+ * peer delays every other one. Up to MAX_CONCURRENT resolves are run at once
+ * and failures are retried after a delay that doubles with each attempt.
+ *
+ * The scheduler must only be used from the UI thread and the listener is
+ * invoked on it.
+ */
+class ResolveScheduler {
+
+    private static final String TAG = "ResolveScheduler";
+
+    private static final int MAX_CONCURRENT = 3;
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long INITIAL_BACKOFF = 250;
+
+    /**
+     * Listener for resolved services
+     */
+    interface Listener {
+        void onServiceResolved(NsdServiceInfo serviceInfo);
+    }
+
+    /**
+     * Service waiting to be resolved
+     */
+    private static class Request {
+
+        private final NsdServiceInfo mServiceInfo;
+        private int mAttempts = 0;
+
+        Request(NsdServiceInfo serviceInfo) {
+            mServiceInfo = serviceInfo;
+        }
+
+        String getName() {
+            return mServiceInfo.getServiceName();
+        }
+    }
+
+    private final NsdManager mNsdManager;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final LinkedList<Request> mQueue = new LinkedList<>();
+    private final Set<String> mNames = new HashSet<>();
+    private int mNumActive = 0;
+    private boolean mStopped = false;
+
+    /**
+     * Create a new resolve scheduler
+     * @param nsdManager manager used to resolve services
+     * @param listener listener for resolved services
+     */
+    ResolveScheduler(NsdManager nsdManager, Listener listener) {
+        mNsdManager = nsdManager;
+        mListener = listener;
+    }
+
+    /**
+     * Queue a service for resolving unless it is already queued
+     */
+    void resolve(NsdServiceInfo serviceInfo) {
+        if (mStopped || !mNames.add(serviceInfo.getServiceName())) {
+            return;
+        }
+        mQueue.add(new Request(serviceInfo));
+        next();
+    }
+
+    /**
+     * Stop resolving a service that has not yet been resolved
+     *
+     * A resolve in progress cannot be cancelled but its result is discarded.
+     */
+    void cancel(String name) {
+        mNames.remove(name);
+        Iterator<Request> iterator = mQueue.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getName().equals(name)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Discard all pending requests and ignore any results still to come
+     */
+    void stop() {
+        mStopped = true;
+        mQueue.clear();
+        mNames.clear();
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    /**
+     * Start as many queued resolves as the concurrency limit allows
+     */
+    private void next() {
+        while (!mStopped && mNumActive < MAX_CONCURRENT && !mQueue.isEmpty()) {
+            start(mQueue.removeFirst());
+        }
+    }
+
+    /**
+     * Begin resolving a single service
+     */
+    private void start(final Request request) {
+        mNumActive++;
+        request.mAttempts++;
+        Log.d(TAG, String.format("resolving \"%s\" (attempt %d)",
+                request.getName(), request.mAttempts));
+        mNsdManager.resolveService(request.mServiceInfo, new NsdManager.ResolveListener() {
+            @Override
+            public void onServiceResolved(final NsdServiceInfo serviceInfo) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mNumActive--;
+                        if (!mStopped && mNames.remove(request.getName())) {
+                            Log.d(TAG, String.format("resolved \"%s\"", request.getName()));
+                            mListener.onServiceResolved(serviceInfo);
+                        }
+                        next();
+                    }
+                });
+            }
+
+            @Override
+            public void onResolveFailed(NsdServiceInfo serviceInfo, final int errorCode) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mNumActive--;
+                        failed(request, errorCode);
+                        next();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Schedule another attempt for a failed resolve if any remain
+     */
+    private void failed(final Request request, int errorCode) {
+        Log.w(TAG, String.format("unable to resolve \"%s\": %d", request.getName(), errorCode));
+        if (mStopped || !mNames.contains(request.getName())) {
+            return;
+        }
+        if (request.mAttempts >= MAX_ATTEMPTS) {
+            mNames.remove(request.getName());
+            return;
+        }
+        long delay = INITIAL_BACKOFF << (request.mAttempts - 1);
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (!mStopped && mNames.contains(request.getName())) {
+                    mQueue.add(request);
+                    next();
+                }
+            }
+        }, delay);
+    }
+}
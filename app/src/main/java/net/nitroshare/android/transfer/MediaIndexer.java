@@ -0,0 +1,84 @@
+package net.nitroshare.android.transfer;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Submit received files to the media scanner in batches
+ *
+ * Paths are collected as files are received and submitted together once no
+ * new files have arrived for IDLE_DELAY (or MAX_DELAY after the first one was
+ * queued if they keep arriving). A batch is also submitted immediately when
+ * it reaches BATCH_SIZE paths or when a transfer finishes.
+ */
+class MediaIndexer {
+
+    private static final String TAG = "MediaIndexer";
+
+    private static final long IDLE_DELAY = 1000;
+    private static final long MAX_DELAY = 5000;
+    private static final int BATCH_SIZE = 500;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<String> mPaths = new ArrayList<>();
+    private long mFirstQueued;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Create a new media indexer
+     */
+    MediaIndexer(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Queue a path for scanning
+     */
+    void add(String path) {
+        synchronized (mPaths) {
+            long now = SystemClock.elapsedRealtime();
+            if (mPaths.isEmpty()) {
+                mFirstQueued = now;
+            }
+            mPaths.add(path);
+            if (mPaths.size() < BATCH_SIZE) {
+                mHandler.removeCallbacks(mFlushRunnable);
+                mHandler.postDelayed(mFlushRunnable,
+                        Math.max(0, Math.min(IDLE_DELAY, mFirstQueued + MAX_DELAY - now)));
+                return;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Submit all queued paths to the media scanner
+     */
+    void flush() {
+        String[] paths;
+        synchronized (mPaths) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            if (mPaths.isEmpty()) {
+                return;
+            }
+            paths = mPaths.toArray(new String[mPaths.size()]);
+            mPaths.clear();
+        }
+        Log.i(TAG, String.format("scanning %d file(s)", paths.length));
+        MediaScannerConnection.scanFile(mContext, paths, null, null);
+    }
+}
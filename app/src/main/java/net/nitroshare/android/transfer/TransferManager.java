@@ -2,33 +2,102 @@ package net.nitroshare.android.transfer;
 
 import android.content.Context;
 import android.content.Intent;
-import android.media.MediaScannerConnection;
-import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.util.SparseArray;
 
 import net.nitroshare.android.bundle.FileItem;
 import net.nitroshare.android.bundle.Item;
 import net.nitroshare.android.bundle.UrlItem;
+import net.nitroshare.android.util.Settings;
 
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Manage active transfers
+ *
+ * The number of transfers sent and received at once is limited. Transfers
+ * beyond the limit are queued and admitted as others finish, smallest bundle
+ * first. The size used for this halves for every AGING_INTERVAL a transfer
+ * has waited so that large bundles are not held back indefinitely. The user
+ * may also start a queued transfer immediately.
+ *
+ * Unless disabled, the limit for receiving transfers is chosen by a
+ * ReceiveLimiter (up to the configured maximum) based on how well storage
+ * keeps up with them.
+ *
+ * Scheduling always runs on the main thread. Transfers report status changes
+ * from their session threads, so those are posted rather than handled
+ * directly. Statuses are retrieved before taking the queue lock so that no
+ * transfer's lock is ever taken while it is held.
  */
 public class TransferManager {
 
     private static final String TAG = "TransferManager";
 
+    // Queued transfers are treated as half their size after waiting this long
+    private static final long AGING_INTERVAL = 30000;
+
+    /**
+     * Transfer waiting to be admitted
+     */
+    private static class QueuedTransfer {
+
+        final Transfer mTransfer;
+        final int mId;
+        final boolean mSend;
+        final long mTime = System.currentTimeMillis();
+
+        QueuedTransfer(Transfer transfer, TransferStatus transferStatus) {
+            mTransfer = transfer;
+            mId = transferStatus.getId();
+            mSend = transferStatus.getDirection() == TransferStatus.Direction.Send;
+        }
+    }
+
     public static final String TRANSFER_UPDATED = "net.nitroshare.android.TRANSFER_UPDATED";
     public static final String EXTRA_STATUS = "net.nitroshare.android.STATUS";
 
     private Context mContext;
     private TransferNotificationManager mTransferNotificationManager;
+    private Settings mSettings;
 
     private final SparseArray<Transfer> mTransfers = new SparseArray<>();
+    private final List<QueuedTransfer> mQueue = new ArrayList<>();
+    private final RateLimiter mRateLimiter;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mScheduleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            schedule();
+        }
+    };
+
+    // Lets the receive limiter adjust while nothing is being written
+    private boolean mPollPending = false;
+    private final Runnable mPollRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mPollPending = false;
+            mReceiveLimiter.poll();
+            schedule();
+        }
+    };
+
+    private final ReceiveLimiter mReceiveLimiter = new ReceiveLimiter(
+            new ReceiveLimiter.Listener() {
+                @Override
+                public void onLimitChanged(int limit) {
+                    requestSchedule();
+                }
+            });
 
-    private MediaScannerConnection mMediaScannerConnection;
+    private MediaIndexer mMediaIndexer;
 
     /**
      * Create a new transfer manager
@@ -36,17 +105,215 @@ public class TransferManager {
     TransferManager(Context context, TransferNotificationManager transferNotificationManager) {
         mContext = context;
         mTransferNotificationManager = transferNotificationManager;
+        mSettings = new Settings(context);
+        mRateLimiter = new RateLimiter(new RateLimiter.Limits() {
+            @Override
+            public int getRate() {
+                return mSettings.getInt(Settings.Key.TRANSFER_RATE_LIMIT);
+            }
 
-        mMediaScannerConnection = new MediaScannerConnection(mContext, new MediaScannerConnection.MediaScannerConnectionClient() {
             @Override
-            public void onMediaScannerConnected() {
-                Log.i(TAG, "connected to media scanner");
+            public int getDeviceRate() {
+                return mSettings.getInt(Settings.Key.TRANSFER_RATE_LIMIT_DEVICE);
             }
 
             @Override
-            public void onScanCompleted(String path, Uri uri) {
+            public int getTransferRate() {
+                return mSettings.getInt(Settings.Key.TRANSFER_RATE_LIMIT_TRANSFER);
+            }
+
+            @Override
+            public String getHours() {
+                return mSettings.getString(Settings.Key.TRANSFER_RATE_LIMIT_HOURS);
             }
         });
+        mMediaIndexer = new MediaIndexer(mContext);
+    }
+
+    /**
+     * Determine if a transfer is in progress (admitted and not finished)
+     */
+    private static boolean isActive(Transfer transfer, TransferStatus transferStatus) {
+        return !transfer.isQueued() && !transferStatus.isFinished();
+    }
+
+    /**
+     * Determine if a transfer sends items
+     */
+    private static boolean isSend(TransferStatus transferStatus) {
+        return transferStatus.getDirection() == TransferStatus.Direction.Send;
+    }
+
+    /**
+     * Retrieve the status of every transfer
+     *
+     * This must not be invoked while holding the queue lock.
+     */
+    private Map<Transfer, TransferStatus> getStatuses() {
+        List<Transfer> transfers = new ArrayList<>();
+        synchronized (mTransfers) {
+            for (int i = 0; i < mTransfers.size(); i++) {
+                transfers.add(mTransfers.valueAt(i));
+            }
+        }
+        Map<Transfer, TransferStatus> statuses = new HashMap<>();
+        for (Transfer transfer : transfers) {
+            statuses.put(transfer, transfer.getStatus());
+        }
+        return statuses;
+    }
+
+    /**
+     * Remove a transfer from the queue and let it proceed
+     */
+    private void admit(QueuedTransfer queuedTransfer) {
+        mQueue.remove(queuedTransfer);
+        Transfer transfer = queuedTransfer.mTransfer;
+        Log.i(TAG, String.format("admitting transfer #%d...", queuedTransfer.mId));
+        transfer.admit();
+        if (queuedTransfer.mSend) {
+            new Thread(transfer).start();
+        }
+    }
+
+    /**
+     * Publish the number of transfers in progress and waiting
+     */
+    private void publishCounts(Map<Transfer, TransferStatus> statuses) {
+        int activeSends = 0;
+        int activeReceives = 0;
+        int queuedSends = 0;
+        int queuedReceives = 0;
+        synchronized (mQueue) {
+            for (QueuedTransfer queuedTransfer : mQueue) {
+                if (queuedTransfer.mSend) {
+                    queuedSends++;
+                } else {
+                    queuedReceives++;
+                }
+            }
+        }
+        for (Map.Entry<Transfer, TransferStatus> entry : statuses.entrySet()) {
+            if (!isActive(entry.getKey(), entry.getValue())) {
+                continue;
+            }
+            if (isSend(entry.getValue())) {
+                activeSends++;
+            } else {
+                activeReceives++;
+            }
+        }
+        EngineMetrics.setTransfers(activeSends, activeReceives, queuedSends, queuedReceives);
+    }
+
+    /**
+     * Determine the size used to order a queued transfer
+     */
+    private static long getScore(QueuedTransfer queuedTransfer,
+                                 Map<Transfer, TransferStatus> statuses, long now) {
+        TransferStatus transferStatus = statuses.get(queuedTransfer.mTransfer);
+        long bytesTotal = transferStatus == null ? Long.MAX_VALUE : transferStatus.getBytesTotal();
+        long shift = Math.min(62, (now - queuedTransfer.mTime) / AGING_INTERVAL);
+        return bytesTotal >> shift;
+    }
+
+    /**
+     * Schedule queued transfers on the main thread
+     */
+    private void requestSchedule() {
+        mHandler.removeCallbacks(mScheduleRunnable);
+        mHandler.post(mScheduleRunnable);
+    }
+
+    /**
+     * Admit as many queued transfers as the limits allow
+     *
+     * A receiving transfer that shares its session with one already in
+     * progress is admitted regardless: its packets are interleaved with the
+     * other transfer's, so holding it would also stall the other.
+     */
+    private void schedule() {
+        Map<Transfer, TransferStatus> statuses = getStatuses();
+        int numSends = 0;
+        int numReceives = 0;
+        List<Session> receivingSessions = new ArrayList<>();
+        for (Map.Entry<Transfer, TransferStatus> entry : statuses.entrySet()) {
+            Transfer transfer = entry.getKey();
+            if (!isActive(transfer, entry.getValue())) {
+                continue;
+            }
+            if (isSend(entry.getValue())) {
+                numSends++;
+            } else {
+                numReceives++;
+                receivingSessions.add(transfer.getSession());
+            }
+        }
+        synchronized (mQueue) {
+            for (QueuedTransfer queuedTransfer : new ArrayList<>(mQueue)) {
+                if (!queuedTransfer.mSend &&
+                        receivingSessions.contains(queuedTransfer.mTransfer.getSession())) {
+                    admit(queuedTransfer);
+                    numReceives++;
+                }
+            }
+            int maxSends = mSettings.getInt(Settings.Key.TRANSFER_MAX_SENDS);
+            int maxReceives = mSettings.getInt(Settings.Key.TRANSFER_MAX_RECEIVES);
+            boolean adaptive = mSettings.getBoolean(Settings.Key.TRANSFER_ADAPTIVE_RECEIVES);
+            if (adaptive) {
+                mReceiveLimiter.setMaxLimit(maxReceives);
+                maxReceives = mReceiveLimiter.getLimit();
+            }
+            EngineMetrics.setReceiveLimit(maxReceives);
+            long now = System.currentTimeMillis();
+            while (true) {
+                QueuedTransfer next = null;
+                for (QueuedTransfer queuedTransfer : mQueue) {
+                    boolean full = queuedTransfer.mSend ?
+                            maxSends > 0 && numSends >= maxSends :
+                            maxReceives > 0 && numReceives >= maxReceives;
+                    if (!full && (next == null || getScore(queuedTransfer, statuses, now) <
+                            getScore(next, statuses, now))) {
+                        next = queuedTransfer;
+                    }
+                }
+                if (next == null) {
+                    break;
+                }
+                if (next.mSend) {
+                    numSends++;
+                } else {
+                    numReceives++;
+                }
+                admit(next);
+            }
+            mReceiveLimiter.setActive(numReceives);
+
+            // Keep the limiter's windows ending while anything is received
+            boolean receiving = numReceives > 0;
+            for (QueuedTransfer queuedTransfer : mQueue) {
+                receiving |= !queuedTransfer.mSend;
+            }
+            if (adaptive && receiving && !mPollPending) {
+                mPollPending = true;
+                mHandler.postDelayed(mPollRunnable, ReceiveLimiter.WINDOW);
+            }
+        }
+        publishCounts(getStatuses());
+    }
+
+    /**
+     * Remove a transfer from the queue (if it is there)
+     */
+    private void dequeue(Transfer transfer) {
+        synchronized (mQueue) {
+            for (QueuedTransfer queuedTransfer : mQueue) {
+                if (queuedTransfer.mTransfer == transfer) {
+                    mQueue.remove(queuedTransfer);
+                    return;
+                }
+            }
+        }
     }
 
     /**
@@ -55,7 +322,7 @@ public class TransferManager {
     private void broadcastTransferStatus(TransferStatus transferStatus) {
         Intent intent = new Intent();
         intent.setAction(TRANSFER_UPDATED);
-        intent.putExtra(EXTRA_STATUS, transferStatus);
+        intent.putExtra(EXTRA_STATUS, new TransferStatusParcel(transferStatus));
         mContext.sendBroadcast(intent);
     }
 
@@ -77,25 +344,35 @@ public class TransferManager {
                 // Broadcast transfer status
                 broadcastTransferStatus(transferStatus);
 
+                // Index any files that are still waiting and let the next
+                // queued transfer start
+                if (transferStatus.isFinished()) {
+                    mMediaIndexer.flush();
+                    dequeue(transfer);
+                    requestSchedule();
+                }
+
                 // Update the transfer notification manager
                 mTransferNotificationManager.updateTransfer(transferStatus, intent);
             }
         });
 
+        // Report writes to storage for receiving transfers and limit the
+        // rate of sending transfers
+        if (transferStatus.getDirection() == TransferStatus.Direction.Receive) {
+            transfer.setReceiveLimiter(mReceiveLimiter);
+        } else {
+            transfer.setRateLimiter(mRateLimiter);
+        }
+
         // Add a listener for items being received
         transfer.addItemReceivedListener(new Transfer.ItemReceivedListener() {
             @Override
             public void onItemReceived(Item item) {
-                if (mMediaScannerConnection.isConnected() &&
-                        item instanceof FileItem) {
-                    String path = ((FileItem) item).getPath();
-                    mMediaScannerConnection.scanFile(path, null);
+                if (item instanceof FileItem) {
+                    mMediaIndexer.add(((FileItem) item).getPath());
                 } else if (item instanceof UrlItem) {
-                    try {
-                        mTransferNotificationManager.showUrl(((UrlItem) item).getUrl());
-                    } catch (IOException e) {
-                        Log.e(TAG, e.getMessage());
-                    }
+                    mTransferNotificationManager.showUrl(((UrlItem) item).getUrl());
                 }
             }
         });
@@ -105,23 +382,56 @@ public class TransferManager {
             mTransfers.append(transferStatus.getId(), transfer);
         }
 
-        // Add the transfer to the notification manager and immediately update it
+        // Add the transfer to the notification manager and queue it (which
+        // immediately updates the notification)
         mTransferNotificationManager.addTransfer(transferStatus);
-        mTransferNotificationManager.updateTransfer(transferStatus, intent);
+        transfer.queue();
+        synchronized (mQueue) {
+            mQueue.add(new QueuedTransfer(transfer, transferStatus));
+        }
 
-        // Create a new thread and run the transfer in it
-        new Thread(transfer).start();
+        // Start the transfer if the limits allow
+        requestSchedule();
+    }
+
+    /**
+     * Start the queued transfer with the specified ID regardless of the limits
+     */
+    void startTransferNow(int id) {
+        synchronized (mQueue) {
+            for (QueuedTransfer queuedTransfer : mQueue) {
+                if (queuedTransfer.mId == id) {
+                    admit(queuedTransfer);
+                    break;
+                }
+            }
+        }
+        publishCounts(getStatuses());
     }
 
     /**
      * Stop the transfer with the specified ID
      */
     void stopTransfer(int id) {
+        Transfer transfer;
         synchronized (mTransfers) {
-            Transfer transfer = mTransfers.get(id);
-            if (transfer != null) {
-                Log.i(TAG, String.format("stopping transfer #%d...", transfer.getStatus().getId()));
-                transfer.stop();
+            transfer = mTransfers.get(id);
+        }
+        if (transfer != null) {
+            Log.i(TAG, String.format("stopping transfer #%d...", transfer.getStatus().getId()));
+            transfer.stop();
+
+            // Sending transfers that are still queued have nothing to stop them
+            boolean send = isSend(transfer.getStatus());
+            boolean cancel;
+            synchronized (mQueue) {
+                cancel = transfer.isQueued() && send;
+                if (cancel) {
+                    dequeue(transfer);
+                }
+            }
+            if (cancel) {
+                transfer.finish("transfer was cancelled");
             }
         }
     }
@@ -269,6 +269,12 @@ class TransferNotificationManager {
                 );
                 icon = android.R.drawable.stat_sys_upload;
             }
+            if (transferStatus.getState() == TransferStatus.State.Queued) {
+                contentText = mService.getString(
+                        R.string.service_transfer_status_queued,
+                        transferStatus.getRemoteDeviceName()
+                );
+            }
 
             // Intent for stopping this particular service
             Intent stopIntent = new Intent(mService, TransferService.class)
@@ -276,24 +282,36 @@ class TransferNotificationManager {
                     .putExtra(TransferService.EXTRA_TRANSFER, transferStatus.getId());
 
             // Update the notification
-            mNotificationManager.notify(
-                    transferStatus.getId(),
-                    createBuilder(TRANSFER_CHANNEL_ID)
-                            .setContentIntent(mIntent)
-                            .setContentTitle(mService.getString(R.string.service_transfer_title))
-                            .setContentText(contentText)
-                            .setOngoing(true)
-                            .setProgress(100, transferStatus.getProgress(), false)
-                            .setSmallIcon(icon)
-                            .addAction(
-                                    new NotificationCompat.Action.Builder(
-                                            R.drawable.ic_action_stop,
-                                            mService.getString(R.string.service_transfer_action_stop),
-                                            PendingIntent.getService(mService, transferStatus.getId(), stopIntent, 0)
-                                    ).build()
-                            )
-                            .build()
-            );
+            NotificationCompat.Builder builder = createBuilder(TRANSFER_CHANNEL_ID)
+                    .setContentIntent(mIntent)
+                    .setContentTitle(mService.getString(R.string.service_transfer_title))
+                    .setContentText(contentText)
+                    .setOngoing(true)
+                    .setProgress(100, transferStatus.getProgress(), false)
+                    .setSmallIcon(icon)
+                    .addAction(
+                            new NotificationCompat.Action.Builder(
+                                    R.drawable.ic_action_stop,
+                                    mService.getString(R.string.service_transfer_action_stop),
+                                    PendingIntent.getService(mService, transferStatus.getId(), stopIntent, 0)
+                            ).build()
+                    );
+
+            // Queued transfers can be started without waiting for the others
+            if (transferStatus.getState() == TransferStatus.State.Queued) {
+                Intent startNowIntent = new Intent(mService, TransferService.class)
+                        .setAction(TransferService.ACTION_START_TRANSFER_NOW)
+                        .putExtra(TransferService.EXTRA_TRANSFER, transferStatus.getId());
+                builder.addAction(
+                        new NotificationCompat.Action.Builder(
+                                R.drawable.ic_action_retry,
+                                mService.getString(R.string.service_transfer_action_start_now),
+                                PendingIntent.getService(mService, -transferStatus.getId(), startNowIntent, 0)
+                        ).build()
+                );
+            }
+
+            mNotificationManager.notify(transferStatus.getId(), builder.build());
         }
     }
 
@@ -1,28 +1,78 @@
 package net.nitroshare.android.transfer;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.net.nsd.NsdManager;
 import android.net.nsd.NsdServiceInfo;
+import android.net.wifi.WifiManager;
 import android.util.Log;
 
 import net.nitroshare.android.R;
 import net.nitroshare.android.discovery.Device;
+import net.nitroshare.android.discovery.DeviceDiscovery;
+import net.nitroshare.android.discovery.MdnsService;
 import net.nitroshare.android.util.Settings;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 /**
  * Listen for new connections and create Transfers for them
+ *
+ * The number of sessions for incoming connections is limited, both in total
+ * and for each remote address. A connection beyond the limits receives an
+ * ERROR packet asking the sender to retry later instead of a session.
  */
 class TransferServer implements Runnable {
 
     private static final String TAG = "TransferServer";
 
+    // Connections that send nothing for this many milliseconds are closed
+    // (senders may hold connections idle for a while before using them)
+    private static final long PENDING_TIMEOUT = 120000;
+
+    // Maximum number of connections that have not sent anything
+    private static final int MAX_PENDING = 32;
+
+    // Connections turned away are asked to retry after this many milliseconds
+    private static final long BUSY_RETRY_DELAY = 5000;
+
+    // Connections turned away are closed once they stop sending or after
+    // this many milliseconds (closing sooner could discard the error)
+    private static final long REJECT_LINGER = 2000;
+
+    /**
+     * Settings used for each incoming connection
+     *
+     * These are read once and only read again after a setting changes.
+     */
+    private static class Snapshot {
+        String mTransferDirectory;
+        boolean mOverwrite;
+        String mUnknownDeviceName;
+        long mIdleTimeout;
+        long mMinThroughput;
+        int mMaxConnections;
+        int mMaxConnectionsPerPeer;
+    }
+
+    /**
+     * Connection that was turned away
+     */
+    private static class Rejected {
+        final long mTime = System.currentTimeMillis();
+    }
+
     interface Listener {
         void onNewTransfer(Transfer transfer);
     }
@@ -36,6 +86,18 @@ class TransferServer implements Runnable {
     private Settings mSettings;
     private Selector mSelector = Selector.open();
 
+    private volatile Snapshot mSnapshot;
+    private final SharedPreferences.OnSharedPreferenceChangeListener mSettingsListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            mSnapshot = null;
+        }
+    };
+
+    // Sessions for incoming connections and the addresses they came from
+    private final Map<Session, InetAddress> mSessions = new HashMap<>();
+
     private NsdManager.RegistrationListener mRegistrationListener =
             new NsdManager.RegistrationListener() {
         @Override
@@ -96,6 +158,205 @@ class TransferServer implements Runnable {
         }
     }
 
+    /**
+     * Retrieve the current settings for incoming connections
+     */
+    private Snapshot getSnapshot() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            snapshot = new Snapshot();
+            snapshot.mTransferDirectory = mSettings.getString(Settings.Key.TRANSFER_DIRECTORY);
+            snapshot.mOverwrite = mSettings.getBoolean(Settings.Key.BEHAVIOR_OVERWRITE);
+            snapshot.mUnknownDeviceName = mContext.getString(R.string.service_transfer_unknown_device);
+            snapshot.mIdleTimeout = mSettings.getInt(Settings.Key.TRANSFER_IDLE_TIMEOUT) * 1000L;
+            snapshot.mMinThroughput = mSettings.getInt(Settings.Key.TRANSFER_MIN_THROUGHPUT) * 1024L;
+            snapshot.mMaxConnections = mSettings.getInt(Settings.Key.TRANSFER_MAX_CONNECTIONS);
+            snapshot.mMaxConnectionsPerPeer = mSettings.getInt(Settings.Key.TRANSFER_MAX_CONNECTIONS_PER_PEER);
+            mSnapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Determine if another session may be started for the address
+     */
+    private boolean isAdmissible(InetAddress address, Snapshot snapshot) {
+        int numSessions = 0;
+        int numFromPeer = 0;
+        Iterator<Map.Entry<Session, InetAddress>> iterator = mSessions.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Session, InetAddress> entry = iterator.next();
+            if (entry.getKey().isClosed()) {
+                iterator.remove();
+                continue;
+            }
+            numSessions++;
+            if (entry.getValue().equals(address)) {
+                numFromPeer++;
+            }
+        }
+        return (snapshot.mMaxConnections <= 0 || numSessions < snapshot.mMaxConnections) &&
+                (snapshot.mMaxConnectionsPerPeer <= 0 || numFromPeer < snapshot.mMaxConnectionsPerPeer);
+    }
+
+    /**
+     * Ask the sender to retry later and stop sending to it
+     *
+     * The connection stays registered (so that anything it sends can be
+     * discarded) until the sender closes it or REJECT_LINGER expires.
+     */
+    private void rejectConnection(SelectionKey key) throws IOException {
+        SocketChannel socketChannel = (SocketChannel) key.channel();
+        Log.i(TAG, String.format("too many connections, turning away %s",
+                socketChannel.socket().getInetAddress().getHostAddress()));
+        byte[] error = String.format("busy, retry after %d ms", BUSY_RETRY_DELAY)
+                .getBytes(Charset.forName("UTF-8"));
+        socketChannel.write(new Packet(Packet.ERROR, error).getBuffer());
+        socketChannel.socket().shutdownOutput();
+        key.attach(new Rejected());
+        EngineMetrics.connectionRejected();
+    }
+
+    /**
+     * Discard data sent on a rejected connection, closing it once the sender does
+     */
+    private void drainRejectedConnection(SelectionKey key) {
+        SocketChannel socketChannel = (SocketChannel) key.channel();
+        try {
+            if (socketChannel.read(ByteBuffer.allocate(16384)) >= 0) {
+                return;
+            }
+        } catch (IOException ignored) {
+        }
+        key.cancel();
+        try {
+            socketChannel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Accept a new connection and wait for it to send data
+     */
+    private void acceptConnection(ServerSocketChannel serverSocketChannel) throws IOException {
+        SocketChannel socketChannel = serverSocketChannel.accept();
+        if (socketChannel == null) {
+            return;
+        }
+        Log.i(TAG, "accepting incoming connection");
+        EngineMetrics.connectionAccepted();
+        closeOldestPendingConnection();
+        socketChannel.configureBlocking(false);
+        socketChannel.register(mSelector, SelectionKey.OP_READ, System.currentTimeMillis());
+    }
+
+    /**
+     * Close the connection that has been pending longest if there are too many
+     */
+    private void closeOldestPendingConnection() throws IOException {
+        SelectionKey oldest = null;
+        int numPending = 0;
+        for (SelectionKey key : mSelector.keys()) {
+            if (key.attachment() instanceof Long && key.isValid()) {
+                numPending++;
+                if (oldest == null || (Long) key.attachment() < (Long) oldest.attachment()) {
+                    oldest = key;
+                }
+            }
+        }
+        if (numPending >= MAX_PENDING) {
+            Log.d(TAG, "too many idle connections, closing the oldest");
+            oldest.cancel();
+            oldest.channel().close();
+        }
+    }
+
+    /**
+     * Start a session for a connection once it sends data
+     *
+     * Devices probing this one connect and then close the connection without
+     * sending anything. Those connections are closed quietly instead of
+     * becoming failed transfers.
+     */
+    private void processPendingConnection(SelectionKey key) {
+        SocketChannel socketChannel = (SocketChannel) key.channel();
+        ByteBuffer received = ByteBuffer.allocate(1);
+        try {
+            int numBytes = socketChannel.read(received);
+            if (numBytes == 0) {
+                return;
+            }
+            if (numBytes < 0) {
+                Log.d(TAG, "connection closed without sending data");
+                key.cancel();
+                socketChannel.close();
+                return;
+            }
+            InetAddress address = socketChannel.socket().getInetAddress();
+            Snapshot snapshot = getSnapshot();
+            if (!isAdmissible(address, snapshot)) {
+                rejectConnection(key);
+                return;
+            }
+            key.cancel();
+            received.flip();
+            Session session = new Session(socketChannel, received, new Session.Listener() {
+                @Override
+                public Transfer onNewStream(Session session, int stream) {
+                    Snapshot snapshot = getSnapshot();
+                    Transfer transfer = new Transfer(
+                            session,
+                            stream,
+                            snapshot.mTransferDirectory,
+                            snapshot.mOverwrite,
+                            snapshot.mUnknownDeviceName
+                    );
+                    mListener.onNewTransfer(transfer);
+                    return transfer;
+                }
+            });
+            session.setTimeouts(snapshot.mIdleTimeout, snapshot.mMinThroughput);
+            mSessions.put(session, address);
+            session.start();
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+            key.cancel();
+            try {
+                socketChannel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Close connections that have not sent anything for too long and
+     * rejected connections that have lingered long enough
+     * @return time in milliseconds to wait before checking again
+     */
+    private long expirePendingConnections() throws IOException {
+        long timeout = PENDING_TIMEOUT;
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : mSelector.keys()) {
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.attachment() instanceof Long &&
+                    now - (Long) key.attachment() > PENDING_TIMEOUT) {
+                Log.d(TAG, "closing idle connection");
+                key.cancel();
+                key.channel().close();
+            } else if (key.attachment() instanceof Rejected) {
+                if (now - ((Rejected) key.attachment()).mTime > REJECT_LINGER) {
+                    key.cancel();
+                    key.channel().close();
+                } else {
+                    timeout = REJECT_LINGER;
+                }
+            }
+        }
+        return timeout;
+    }
+
     // TODO: this method could use some refactoring
 
     @Override
@@ -105,7 +366,14 @@ class TransferServer implements Runnable {
         // Inform the notification manager that the server has started
         mTransferNotificationManager.startListening();
 
+        // Read settings again whenever they change
+        mSnapshot = null;
+        mSettings.registerListener(mSettingsListener);
+
         NsdManager nsdManager = null;
+        MdnsService mdnsService = null;
+        WifiManager.MulticastLock multicastLock = null;
+        MetricsServer metricsServer = null;
 
         try {
             // Create a server and attempt to bind to a port
@@ -117,41 +385,75 @@ class TransferServer implements Runnable {
                     serverSocketChannel.socket().getLocalPort()));
 
             // Register the service
-            nsdManager = (NsdManager) mContext.getSystemService(Context.NSD_SERVICE);
-            nsdManager.registerService(
-                    new Device(
-                            mSettings.getString(Settings.Key.DEVICE_NAME),
-                            mSettings.getString(Settings.Key.DEVICE_UUID),
-                            null,
-                            40818
-                    ).toServiceInfo(),
-                    NsdManager.PROTOCOL_DNS_SD,
-                    mRegistrationListener
+            Device device = new Device(
+                    mSettings.getString(Settings.Key.DEVICE_NAME),
+                    mSettings.getString(Settings.Key.DEVICE_UUID),
+                    (InetAddress) null,
+                    40818
             );
+            if (mSettings.getBoolean(Settings.Key.DISCOVERY_MDNS)) {
+                WifiManager wifiManager = (WifiManager) mContext.getApplicationContext()
+                        .getSystemService(Context.WIFI_SERVICE);
+                multicastLock = wifiManager.createMulticastLock(TAG);
+                multicastLock.acquire();
+                mdnsService = new MdnsService(Device.SERVICE_TYPE);
+                mdnsService.advertise(device);
+                mdnsService.start();
+            } else {
+                nsdManager = (NsdManager) mContext.getSystemService(Context.NSD_SERVICE);
+                nsdManager.registerService(
+                        DeviceDiscovery.toServiceInfo(device),
+                        NsdManager.PROTOCOL_DNS_SD,
+                        mRegistrationListener
+                );
+            }
+
+            // Serve metrics for scraping if enabled
+            int metricsPort = mSettings.getInt(Settings.Key.TRANSFER_METRICS_PORT);
+            if (metricsPort > 0) {
+                try {
+                    metricsServer = new MetricsServer(metricsPort);
+                    metricsServer.start();
+                } catch (IOException e) {
+                    Log.e(TAG, String.format("unable to serve metrics: %s", e.getMessage()));
+                    metricsServer = null;
+                }
+            }
 
             // Register the server with the selector
             SelectionKey selectionKey = serverSocketChannel.register(mSelector,
                     SelectionKey.OP_ACCEPT);
 
             // Create Transfers as new connections come in
+            long timeout = PENDING_TIMEOUT;
             while (true) {
-                mSelector.select();
+                mSelector.select(timeout);
                 if (mStop) {
                     break;
                 }
-                if (selectionKey.isAcceptable()) {
-                    Log.i(TAG, "accepting incoming connection");
-                    SocketChannel socketChannel = serverSocketChannel.accept();
-                    String unknownDeviceName = mContext.getString(
-                            R.string.service_transfer_unknown_device);
-                    mListener.onNewTransfer(
-                            new Transfer(
-                                    socketChannel,
-                                    mSettings.getString(Settings.Key.TRANSFER_DIRECTORY),
-                                    mSettings.getBoolean(Settings.Key.BEHAVIOR_OVERWRITE),
-                                    unknownDeviceName
-                            )
-                    );
+                Iterator<SelectionKey> iterator = mSelector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (key == selectionKey) {
+                        if (key.isAcceptable()) {
+                            acceptConnection(serverSocketChannel);
+                        }
+                    } else if (key.isValid() && key.isReadable()) {
+                        if (key.attachment() instanceof Rejected) {
+                            drainRejectedConnection(key);
+                        } else {
+                            processPendingConnection(key);
+                        }
+                    }
+                }
+                timeout = expirePendingConnections();
+            }
+
+            // Close any connections that never sent anything
+            for (SelectionKey key : mSelector.keys()) {
+                if (key != selectionKey) {
+                    key.channel().close();
                 }
             }
 
@@ -166,6 +468,17 @@ class TransferServer implements Runnable {
         if (nsdManager != null) {
             nsdManager.unregisterService(mRegistrationListener);
         }
+        if (mdnsService != null) {
+            mdnsService.stop();
+        }
+        if (multicastLock != null) {
+            multicastLock.release();
+        }
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+
+        mSettings.unregisterListener(mSettingsListener);
 
         // Inform the notification manager that the server has stopped
         mTransferNotificationManager.stopListening();
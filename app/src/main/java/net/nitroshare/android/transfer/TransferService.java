@@ -14,15 +14,18 @@ import android.provider.MediaStore;
 import android.util.Log;
 
 import net.nitroshare.android.bundle.Bundle;
+import net.nitroshare.android.bundle.DirectorySizer;
+import net.nitroshare.android.bundle.DirectoryWalker;
 import net.nitroshare.android.bundle.FileItem;
 import net.nitroshare.android.discovery.Device;
+import net.nitroshare.android.util.AndroidLogSink;
 import net.nitroshare.android.util.Settings;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Stack;
 
 /**
  * Receive incoming transfers and initiate outgoing transfers
@@ -44,6 +47,7 @@ public class TransferService extends Service {
     public static final String EXTRA_ID = "net.nitroshare.android.ID";
 
     public static final String ACTION_STOP_TRANSFER = "net.nitroshare.android.STOP_TRANSFER";
+    public static final String ACTION_START_TRANSFER_NOW = "net.nitroshare.android.START_TRANSFER_NOW";
     public static final String ACTION_REMOVE_TRANSFER = "net.nitroshare.android.REMOVE_TRANSFER";
     public static final String EXTRA_TRANSFER = "net.nitroshare.android.TRANSFER";
 
@@ -77,11 +81,15 @@ public class TransferService extends Service {
     private Settings mSettings;
 
     private TransferManager mTransferManager;
+    private ConnectionPool mConnectionPool;
 
     @Override
     public void onCreate() {
         super.onCreate();
 
+        // Send messages from the engine to the Android log
+        net.nitroshare.android.util.Log.setSink(new AndroidLogSink());
+
         mTransferNotificationManager = new TransferNotificationManager(this);
         try {
             mTransferServer = new TransferServer(this, mTransferNotificationManager, new TransferServer.Listener() {
@@ -96,6 +104,7 @@ public class TransferService extends Service {
         }
         mSettings = new Settings(this);
         mTransferManager = new TransferManager(this, mTransferNotificationManager);
+        EventTrace.setEnabled(mSettings.getBoolean(Settings.Key.TRANSFER_TRACE));
     }
 
     /**
@@ -159,55 +168,86 @@ public class TransferService extends Service {
     }
 
     /**
-     * Traverse a directory tree and add all files to the bundle
-     * @param root the directory to which all filenames will be relative
-     * @param bundle target for all files that are found
+     * Create a bundle from the list of URIs
+     * @param uriList list of URIs to add
+     * @return newly created bundle
+     *
+     * Directories are traversed in the background, so the bundle may still be
+     * growing when this method returns.
      */
-    private void traverseDirectory(File root, Bundle bundle) throws IOException {
-        Stack<File> stack = new Stack<>();
-        stack.push(root);
-        while (!stack.empty()) {
-            File topOfStack = stack.pop();
-            for (File f : topOfStack.listFiles()) {
-                if (f.isDirectory()) {
-                    stack.push(f);
-                } else {
-                    String relativeFilename = f.getAbsolutePath().substring(
-                            root.getParentFile().getAbsolutePath().length() + 1);
-                    bundle.addItem(new FileItem(f, relativeFilename));
+    private Bundle createBundle(ArrayList<Parcelable> uriList) throws IOException {
+        Bundle bundle = new Bundle();
+        DirectoryWalker directoryWalker = null;
+        try {
+            for (Parcelable parcelable : uriList) {
+                Uri uri = (Uri) parcelable;
+                switch (uri.getScheme()) {
+                    case ContentResolver.SCHEME_ANDROID_RESOURCE:
+                    case ContentResolver.SCHEME_CONTENT:
+                        final AssetFileDescriptor assetFileDescriptor = getAssetFileDescriptor(uri);
+                        bundle.addItem(new FileItem(
+                                assetFileDescriptor.getFileDescriptor(),
+                                assetFileDescriptor.getLength(),
+                                new Closeable() {
+                                    @Override
+                                    public void close() throws IOException {
+                                        assetFileDescriptor.close();
+                                    }
+                                },
+                                getFilename(uri)
+                        ));
+                        break;
+                    case ContentResolver.SCHEME_FILE:
+                        File file = new File(uri.getPath());
+                        if (file.isDirectory()) {
+                            if (DirectorySizer.addTo(file, bundle)) {
+                                break;
+                            }
+                            if (directoryWalker == null) {
+                                directoryWalker = new DirectoryWalker(bundle);
+                            }
+                            directoryWalker.walk(file);
+                        } else {
+                            bundle.addItem(new FileItem(file));
+                        }
+                        break;
                 }
             }
+        } finally {
+            if (directoryWalker != null) {
+                directoryWalker.finish();
+            }
         }
+        return bundle;
     }
 
     /**
-     * Create a bundle from the list of URIs
-     * @param uriList list of URIs to add
-     * @return newly created bundle
+     * Create, reconfigure or close the connection pool to match the settings
+     * @return connection pool or null if it is disabled
      */
-    private Bundle createBundle(ArrayList<Parcelable> uriList) throws IOException {
-        Bundle bundle = new Bundle();
-        for (Parcelable parcelable : uriList) {
-            Uri uri = (Uri) parcelable;
-            switch (uri.getScheme()) {
-                case ContentResolver.SCHEME_ANDROID_RESOURCE:
-                case ContentResolver.SCHEME_CONTENT:
-                    bundle.addItem(new FileItem(
-                            getAssetFileDescriptor(uri),
-                            getFilename(uri)
-                    ));
-                    break;
-                case ContentResolver.SCHEME_FILE:
-                    File file = new File(uri.getPath());
-                    if (file.isDirectory()) {
-                        traverseDirectory(file, bundle);
-                    } else {
-                        bundle.addItem(new FileItem(file));
-                    }
-                    break;
+    private ConnectionPool getConnectionPool() {
+        if (!mSettings.getBoolean(Settings.Key.TRANSFER_POOL)) {
+            if (mConnectionPool != null) {
+                mConnectionPool.close();
+                mConnectionPool = null;
+                EngineMetrics.setConnectionPool(null);
             }
+            return null;
         }
-        return bundle;
+        long idleTimeout = mSettings.getInt(Settings.Key.TRANSFER_POOL_IDLE_TIMEOUT) * 1000L;
+        int maxIdle = mSettings.getInt(Settings.Key.TRANSFER_POOL_SIZE);
+        long connectTimeout = mSettings.getInt(Settings.Key.TRANSFER_CONNECT_TIMEOUT) * 1000L;
+        if (mConnectionPool == null) {
+            try {
+                mConnectionPool = new ConnectionPool(idleTimeout, maxIdle, connectTimeout);
+                EngineMetrics.setConnectionPool(mConnectionPool);
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage());
+            }
+        } else {
+            mConnectionPool.configure(idleTimeout, maxIdle, connectTimeout);
+        }
+        return mConnectionPool;
     }
 
     /**
@@ -216,7 +256,7 @@ public class TransferService extends Service {
     private int startTransfer(Intent intent) {
 
         // Build the parameters needed to start the transfer
-        Device device = (Device) intent.getSerializableExtra(EXTRA_DEVICE);
+        final Device device = (Device) intent.getSerializableExtra(EXTRA_DEVICE);
 
         // Add each of the items to the bundle and send it
         try {
@@ -228,6 +268,26 @@ public class TransferService extends Service {
             Transfer transfer = new Transfer(device,
                     mSettings.getString(Settings.Key.DEVICE_NAME), bundle);
             transfer.setId(nextId);
+            transfer.setConnectTimeout(mSettings.getInt(Settings.Key.TRANSFER_CONNECT_TIMEOUT) * 1000L);
+            transfer.setTimeouts(
+                    mSettings.getInt(Settings.Key.TRANSFER_IDLE_TIMEOUT) * 1000L,
+                    mSettings.getInt(Settings.Key.TRANSFER_MIN_THROUGHPUT) * 1024L);
+
+            // Use an idle connection to the device if there is one and open
+            // another once the transfer succeeds
+            final ConnectionPool connectionPool = getConnectionPool();
+            if (connectionPool != null) {
+                transfer.setConnectionPool(connectionPool);
+                transfer.addStatusChangedListener(new Transfer.StatusChangedListener() {
+                    @Override
+                    public void onStatusChanged(TransferStatus transferStatus) {
+                        if (transferStatus.getState() == TransferStatus.State.Succeeded) {
+                            connectionPool.warm(device);
+                        }
+                    }
+                });
+            }
+
             mTransferManager.addTransfer(transfer, intent);
         } catch (IOException e) {
             Log.e(TAG, e.getMessage());
@@ -246,6 +306,14 @@ public class TransferService extends Service {
         return START_NOT_STICKY;
     }
 
+    /**
+     * Start a queued transfer without waiting for others to finish
+     */
+    private int startTransferNow(Intent intent) {
+        mTransferManager.startTransferNow(intent.getIntExtra(EXTRA_TRANSFER, -1));
+        return START_NOT_STICKY;
+    }
+
     /**
      * Remove (dismiss) a transfer that has completed
      */
@@ -279,6 +347,8 @@ public class TransferService extends Service {
                 return startTransfer(intent);
             case ACTION_STOP_TRANSFER:
                 return stopTransfer(intent);
+            case ACTION_START_TRANSFER_NOW:
+                return startTransferNow(intent);
             case ACTION_REMOVE_TRANSFER:
                 return removeTransfer(intent);
             case ACTION_BROADCAST:
@@ -291,6 +361,11 @@ public class TransferService extends Service {
     public void onDestroy() {
         super.onDestroy();
 
+        if (mConnectionPool != null) {
+            mConnectionPool.close();
+            EngineMetrics.setConnectionPool(null);
+        }
+
         Log.d(TAG, "service destroyed");
     }
 
@@ -0,0 +1,78 @@
+package net.nitroshare.android.transfer;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Parcelable wrapper for passing a TransferStatus in an intent
+ *
+ * TransferStatus lives in the core module and cannot depend on Android, so
+ * its fields are written out one by one here instead.
+ */
+public class TransferStatusParcel implements Parcelable {
+
+    private final TransferStatus mTransferStatus;
+
+    /**
+     * Wrap a transfer status
+     */
+    TransferStatusParcel(TransferStatus transferStatus) {
+        mTransferStatus = transferStatus;
+    }
+
+    /**
+     * Initialize transfer status from a parcel
+     */
+    private TransferStatusParcel(Parcel in) {
+        mTransferStatus = new TransferStatus(
+                in.readString(),
+                TransferStatus.Direction.valueOf(in.readString()),
+                TransferStatus.State.valueOf(in.readString()));
+        mTransferStatus.setId(in.readInt());
+        mTransferStatus.setProgress(in.readInt());
+        mTransferStatus.setBytesTransferred(in.readLong());
+        mTransferStatus.setBytesTotal(in.readLong());
+        mTransferStatus.setError(in.readString());
+        double throughput = in.readDouble();
+        double averageThroughput = in.readDouble();
+        mTransferStatus.setMetrics(new TransferMetrics(
+                throughput, averageThroughput, in.createLongArray()));
+    }
+
+    public static final Creator<TransferStatusParcel> CREATOR = new Creator<TransferStatusParcel>() {
+        @Override
+        public TransferStatusParcel createFromParcel(Parcel in) {
+            return new TransferStatusParcel(in);
+        }
+
+        @Override
+        public TransferStatusParcel[] newArray(int size) {
+            return new TransferStatusParcel[size];
+        }
+    };
+
+    public TransferStatus getTransferStatus() {
+        return mTransferStatus;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeString(mTransferStatus.getRemoteDeviceName());
+        out.writeString(mTransferStatus.getDirection().name());
+        out.writeString(mTransferStatus.getState().name());
+        out.writeInt(mTransferStatus.getId());
+        out.writeInt(mTransferStatus.getProgress());
+        out.writeLong(mTransferStatus.getBytesTransferred());
+        out.writeLong(mTransferStatus.getBytesTotal());
+        out.writeString(mTransferStatus.getError());
+        TransferMetrics metrics = mTransferStatus.getMetrics();
+        out.writeDouble(metrics.getThroughput());
+        out.writeDouble(metrics.getAverageThroughput());
+        out.writeLongArray(metrics.getCounters());
+    }
+}
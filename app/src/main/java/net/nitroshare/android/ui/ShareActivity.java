@@ -1,17 +1,13 @@
 package net.nitroshare.android.ui;
 
 import android.app.AlertDialog;
-import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.DataSetObserver;
 import android.net.Uri;
-import android.net.nsd.NsdManager;
-import android.net.nsd.NsdServiceInfo;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.v7.app.AppCompatActivity;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -23,13 +19,13 @@ import android.widget.TextView;
 
 import net.nitroshare.android.R;
 import net.nitroshare.android.discovery.Device;
+import net.nitroshare.android.discovery.DeviceDiscovery;
 import net.nitroshare.android.transfer.TransferService;
 import net.nitroshare.android.util.Permissions;
 import net.nitroshare.android.util.Settings;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 /**
@@ -40,148 +36,49 @@ import java.util.Map;
  */
 public class ShareActivity extends AppCompatActivity {
 
-    private static final String TAG = "ShareActivity";
-
     /**
      * Adapter that discovers other devices on the network
      */
-    private class DeviceAdapter extends ArrayAdapter<String> {
+    private class DeviceAdapter extends ArrayAdapter<String> implements DeviceDiscovery.Listener {
 
         /**
          * Maintain a mapping of device IDs to discovered devices
          */
         private final Map<String, Device> mDevices = new HashMap<>();
 
-        /**
-         * Maintain a queue of devices to resolve
-         */
-        private final List<NsdServiceInfo> mQueue = new ArrayList<>();
-
-        private NsdManager mNsdManager;
-        private String mThisDeviceName;
-
-        /**
-         * Prepare to resolve the next service
-         *
-         * For some inexplicable reason, Android chokes miserably when
-         * resolving more than one service at a time. The queue performs each
-         * resolution sequentially.
-         */
-        private void prepareNextService() {
-            synchronized (mQueue) {
-                mQueue.remove(0);
-                if (mQueue.size() == 0) {
-                    return;
-                }
-            }
-            resolveNextService();
-        }
-
-        /**
-         * Resolve the next service in the queue
-         */
-        private void resolveNextService() {
-            NsdServiceInfo serviceInfo;
-            synchronized (mQueue) {
-                serviceInfo = mQueue.get(0);
-            }
-            Log.d(TAG, String.format("resolving \"%s\"", serviceInfo.getServiceName()));
-            mNsdManager.resolveService(serviceInfo, new NsdManager.ResolveListener() {
-                @Override
-                public void onServiceResolved(final NsdServiceInfo serviceInfo) {
-                    Log.d(TAG, String.format("resolved \"%s\"", serviceInfo.getServiceName()));
-                    final Device device = new Device(
-                            serviceInfo.getServiceName(),
-                            "",
-                            serviceInfo.getHost(),
-                            serviceInfo.getPort()
-                    );
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            mDevices.put(serviceInfo.getServiceName(), device);
-                            add(serviceInfo.getServiceName());
-                        }
-                    });
-                    prepareNextService();
-                }
-
-                @Override
-                public void onResolveFailed(NsdServiceInfo serviceInfo, int errorCode) {
-                    Log.e(TAG, String.format("unable to resolve \"%s\": %d",
-                            serviceInfo.getServiceName(), errorCode));
-                    prepareNextService();
-                }
-            });
-        }
-
-        /**
-         * Listener for discovery events
-         */
-        private NsdManager.DiscoveryListener mDiscoveryListener = new NsdManager.DiscoveryListener() {
-            @Override
-            public void onServiceFound(NsdServiceInfo serviceInfo) {
-                if (serviceInfo.getServiceName().equals(mThisDeviceName)) {
-                    return;
-                }
-                Log.d(TAG, String.format("found \"%s\"; queued for resolving", serviceInfo.getServiceName()));
-                boolean resolve;
-                synchronized (mQueue) {
-                    resolve = mQueue.size() == 0;
-                    mQueue.add(serviceInfo);
-                }
-                if (resolve) {
-                    resolveNextService();
-                }
-            }
-
-            @Override
-            public void onServiceLost(final NsdServiceInfo serviceInfo) {
-                Log.d(TAG, String.format("lost \"%s\"", serviceInfo.getServiceName()));
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        remove(serviceInfo.getServiceName());
-                        mDevices.remove(serviceInfo.getServiceName());
-                    }
-                });
-            }
-
-            @Override
-            public void onDiscoveryStarted(String serviceType) {
-                Log.d(TAG, "service discovery started");
-            }
-
-            @Override
-            public void onDiscoveryStopped(String serviceType) {
-                Log.d(TAG, "service discovery stopped");
-            }
-
-            @Override
-            public void onStartDiscoveryFailed(String serviceType, int errorCode) {
-                Log.e(TAG, "unable to start service discovery");
-            }
-
-            @Override
-            public void onStopDiscoveryFailed(String serviceType, int errorCode) {
-                Log.e(TAG, "unable to stop service discovery");
-            }
-        };
+        private DeviceDiscovery mDeviceDiscovery;
 
         DeviceAdapter() {
             super(ShareActivity.this, R.layout.view_simple_list_item, android.R.id.text1);
         }
 
         void start() {
-            mNsdManager = (NsdManager) getSystemService(Context.NSD_SERVICE);
-            mNsdManager.discoverServices(Device.SERVICE_TYPE,
-                    NsdManager.PROTOCOL_DNS_SD, mDiscoveryListener);
-
-            mThisDeviceName = new Settings(getContext()).getString(Settings.Key.DEVICE_NAME);
+            mDeviceDiscovery = new DeviceDiscovery(
+                    getContext(),
+                    new Settings(getContext()).getString(Settings.Key.DEVICE_NAME),
+                    this
+            );
+            mDeviceDiscovery.start();
         }
 
         void stop() {
-            mNsdManager.stopServiceDiscovery(mDiscoveryListener);
+            mDeviceDiscovery.stop();
+        }
+
+        @Override
+        public void onDeviceFound(Device device) {
+            if (mDevices.put(device.getName(), device) == null) {
+                add(device.getName());
+            } else {
+                notifyDataSetChanged();
+            }
+        }
+
+        @Override
+        public void onDeviceLost(String name) {
+            if (mDevices.remove(name) != null) {
+                remove(name);
+            }
         }
 
         /**
@@ -17,23 +17,27 @@ import android.widget.CompoundButton;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import com.squareup.picasso.Callback;
-import com.squareup.picasso.Picasso;
-
 import net.nitroshare.android.R;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Adapter for displaying directory contents
+ *
+ * The contents are loaded in the background by DirectoryLoader and added to
+ * the adapter as they arrive.
  */
-class DirectoryAdapter extends ArrayAdapter<File> {
+class DirectoryAdapter extends ArrayAdapter<DirectoryLoader.Entry>
+        implements DirectoryLoader.Listener, DirectoryLoader.CountListener,
+        ThumbnailLoader.Listener {
 
     interface Listener {
         void onAllItemsDeselected();
+        void onSelectionChanged();
         void onError(String message);
     }
 
@@ -42,33 +46,52 @@ class DirectoryAdapter extends ArrayAdapter<File> {
     private String mDirectory;
     private boolean mShowHidden;
     private boolean mCheckboxes = false;
-    private SparseArray<File> mChecked = new SparseArray<>();
+    private SparseArray<DirectoryLoader.Entry> mChecked = new SparseArray<>();
+
+    private DirectoryLoader mDirectoryLoader = DirectoryLoader.getInstance();
+    private ThumbnailLoader mThumbnailLoader;
+    private int mThumbnailSize;
+    private List<DirectoryLoader.Entry> mEntries = new ArrayList<>();
+    private Set<String> mCheckedPaths = new HashSet<>();
 
     private int mColor;
 
     /**
-     * Initialize the list of files
+     * Add an entry to the list if it should be shown
      */
-    private void init() {
-        File[] files = new File(mDirectory).listFiles();
-        if (files == null) {
-            mListener.onError(mContext.getString(R.string.activity_explorer_error, mDirectory));
-            return;
-        }
-        Arrays.sort(files, new Comparator<File>() {
-            @Override
-            public int compare(File o1, File o2) {
-                if (o1.isDirectory() == o2.isDirectory()) {
-                    return o1.getName().compareToIgnoreCase(o2.getName());
-                } else {
-                    return o1.isDirectory() ? -1 : 1;
-                }
-            }
-        });
-        for (File file : files) {
-            if (mShowHidden || !file.getName().startsWith(".")) {
-                add(file);
+    private void addEntry(DirectoryLoader.Entry entry) {
+        if (mShowHidden || !entry.isHidden()) {
+            if (mCheckedPaths.remove(entry.getFile().getPath())) {
+                mChecked.put(getCount(), entry);
             }
+            add(entry);
+        }
+    }
+
+    /**
+     * Remove all entries, remembering which ones were checked
+     */
+    private void clearEntries() {
+        for (int i = 0; i < mChecked.size(); ++i) {
+            mCheckedPaths.add(mChecked.valueAt(i).getFile().getPath());
+        }
+        mChecked.clear();
+        clear();
+    }
+
+    /**
+     * Rebuild the list from the entries that have been loaded
+     */
+    private void refilter() {
+        setNotifyOnChange(false);
+        clearEntries();
+        for (DirectoryLoader.Entry entry : mEntries) {
+            addEntry(entry);
+        }
+        mCheckedPaths.clear();
+        notifyDataSetChanged();
+        if (mCheckboxes) {
+            mListener.onSelectionChanged();
         }
     }
 
@@ -83,7 +106,57 @@ class DirectoryAdapter extends ArrayAdapter<File> {
         mContext.getTheme().resolveAttribute(R.attr.colorControlNormal, typedValue, true);
         mColor = typedValue.data;
 
-        init();
+        mThumbnailLoader = ThumbnailLoader.getInstance(context);
+        mThumbnailSize = context.getResources().getDimensionPixelSize(R.dimen.explorer_icon_size);
+
+        mDirectoryLoader.load(mDirectory, this);
+    }
+
+    /**
+     * Stop receiving updates for the directory
+     */
+    void release() {
+        mDirectoryLoader.removeListener(mDirectory, this);
+    }
+
+    @Override
+    public void onEntriesLoaded(List<DirectoryLoader.Entry> entries, boolean first) {
+        if (first) {
+            mEntries.clear();
+        }
+        mEntries.addAll(entries);
+        setNotifyOnChange(false);
+        if (first) {
+            clearEntries();
+        }
+        for (DirectoryLoader.Entry entry : entries) {
+            addEntry(entry);
+        }
+        notifyDataSetChanged();
+        if (mCheckboxes) {
+            mListener.onSelectionChanged();
+        }
+    }
+
+    @Override
+    public void onEntriesChanged() {
+        mDirectoryLoader.load(mDirectory, this);
+    }
+
+    @Override
+    public void onError() {
+        mListener.onError(mContext.getString(R.string.activity_explorer_error, mDirectory));
+    }
+
+    @Override
+    public void onCountLoaded() {
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public void onThumbnailLoaded(ImageView imageView) {
+        // Remove the tint once the image loads
+        imageView.setColorFilter(Color.argb(0, 0, 0, 0), PorterDuff.Mode.DST);
     }
 
     /**
@@ -91,8 +164,7 @@ class DirectoryAdapter extends ArrayAdapter<File> {
      */
     void toggleHidden(boolean showHidden) {
         mShowHidden = showHidden;
-        clear();
-        init();
+        refilter();
     }
 
     /**
@@ -102,6 +174,7 @@ class DirectoryAdapter extends ArrayAdapter<File> {
         mCheckboxes = true;
         mChecked.put(position, getItem(position));
         notifyDataSetChanged();
+        mListener.onSelectionChanged();
     }
 
     /**
@@ -110,6 +183,7 @@ class DirectoryAdapter extends ArrayAdapter<File> {
     void deactivateCheckboxes() {
         mCheckboxes = false;
         mChecked.clear();
+        mCheckedPaths.clear();
         notifyDataSetChanged();
     }
 
@@ -123,6 +197,18 @@ class DirectoryAdapter extends ArrayAdapter<File> {
             mChecked.remove(position);
         }
         notifyDataSetChanged();
+        mListener.onSelectionChanged();
+    }
+
+    /**
+     * Retrieve all checked entries
+     */
+    List<DirectoryLoader.Entry> getCheckedEntries() {
+        List<DirectoryLoader.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < mChecked.size(); ++i) {
+            entries.add(mChecked.valueAt(i));
+        }
+        return entries;
     }
 
     /**
@@ -131,73 +217,65 @@ class DirectoryAdapter extends ArrayAdapter<File> {
     ArrayList<Uri> getUris() {
         ArrayList<Uri> uris = new ArrayList<>();
         for (int i = 0; i < mChecked.size(); ++i) {
-            uris.add(Uri.fromFile(mChecked.valueAt(i)));
+            uris.add(Uri.fromFile(mChecked.valueAt(i).getFile()));
         }
         return uris;
     }
 
-    private String getDirectorySummary(File directory) {
-        File files[] = directory.listFiles();
-        int numItems = 0;
-        if (files != null) {
-            numItems = files.length;
+    private String getDirectorySummary(DirectoryLoader.Entry entry) {
+        int numItems = mDirectoryLoader.getCount(entry, this);
+        if (numItems < 0) {
+            return "";
         }
         return mContext.getResources().getQuantityString(R.plurals.activity_explorer_folder, numItems, numItems);
     }
 
-    private String getFileSummary(File file) {
-        long size = file.length();
+    /**
+     * Format a size in bytes for display
+     */
+    static String formatSize(Context context, long size) {
         if (size < 1000) {
-            return mContext.getResources().getQuantityString(
+            return context.getResources().getQuantityString(
                     R.plurals.activity_explorer_bytes, (int) size, size);
         } else if (size < 1000000) {
-            return mContext.getString(R.string.activity_explorer_kb, size / 1000);
+            return context.getString(R.string.activity_explorer_kb, size / 1000);
         } else if (size < 1000000000) {
-            return mContext.getString(R.string.activity_explorer_mb, size / 1000000);
+            return context.getString(R.string.activity_explorer_mb, size / 1000000);
         } else {
-            return mContext.getString(R.string.activity_explorer_gb, size / 1000000000);
+            return context.getString(R.string.activity_explorer_gb, size / 1000000000);
         }
     }
 
+    private String getFileSummary(DirectoryLoader.Entry entry) {
+        return formatSize(mContext, entry.getSize());
+    }
+
     @NonNull
     @Override
     public View getView(final int position, View convertView, @NonNull ViewGroup parent) {
         View view = super.getView(position, convertView, parent);
-        File file = getItem(position);
+        DirectoryLoader.Entry entry = getItem(position);
         //noinspection ConstantConditions
+        File file = entry.getFile();
         ((TextView) view.findViewById(android.R.id.text1)).setText(file.getName());
         ((TextView) view.findViewById(android.R.id.text2)).setText(
-                file.isDirectory() ? getDirectorySummary(file) : getFileSummary(file)
+                entry.isDirectory() ? getDirectorySummary(entry) : getFileSummary(entry)
         );
         ((TextView) view.findViewById(R.id.last_modified)).setText(
                 DateUtils.getRelativeDateTimeString(
                         mContext,
-                        file.lastModified(),
+                        entry.getLastModified(),
                         DateUtils.MINUTE_IN_MILLIS,
                         DateUtils.WEEK_IN_MILLIS,
                         0
                 )
         );
-        final ImageView imageView = (ImageView) view.findViewById(android.R.id.icon);
+        ImageView imageView = (ImageView) view.findViewById(android.R.id.icon);
         imageView.setColorFilter(mColor);
-        Picasso.with(mContext)
-                .load(file)
-                .resizeDimen(R.dimen.explorer_icon_size, R.dimen.explorer_icon_size)
-                .centerCrop()
-                .placeholder(ContextCompat.getDrawable(
-                        mContext, file.isDirectory() ? R.drawable.ic_folder : R.drawable.ic_file
-                ))
-                .into(imageView, new Callback() {
-                    @Override
-                    public void onSuccess() {
-                        // Remove the tint once the image loads
-                        imageView.setColorFilter(Color.argb(0, 0, 0, 0), PorterDuff.Mode.DST);
-                    }
-
-                    @Override
-                    public void onError() {
-                    }
-                });
+        imageView.setImageDrawable(ContextCompat.getDrawable(
+                mContext, entry.isDirectory() ? R.drawable.ic_folder : R.drawable.ic_file
+        ));
+        mThumbnailLoader.load(entry, mThumbnailSize, imageView, this);
         View spacer = view.findViewById(R.id.spacer);
         CheckBox checkBox = (CheckBox) view.findViewById(android.R.id.checkbox);
         if (mCheckboxes) {
@@ -212,8 +290,10 @@ class DirectoryAdapter extends ArrayAdapter<File> {
                         mChecked.remove(position);
                         if (mChecked.size() == 0) {
                             mListener.onAllItemsDeselected();
+                            return;
                         }
                     }
+                    mListener.onSelectionChanged();
                 }
             });
             spacer.setVisibility(View.VISIBLE);
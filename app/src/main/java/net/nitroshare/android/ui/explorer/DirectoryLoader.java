@@ -0,0 +1,332 @@
+package net.nitroshare.android.ui.explorer;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load directory listings and item counts in the background
+ *
+ * Listing a large directory (and examining each entry in it) is far too slow
+ * for the UI thread. Listings are built on a small pool of threads, cached by
+ * path and delivered to the UI thread in chunks so that the list can begin
+ * filling in right away. A FileObserver watches each cached directory and
+ * drops the listing shortly after anything in it changes.
+ *
+ * The loader must only be used from the UI thread and all listener methods
+ * are invoked on it.
+ */
+class DirectoryLoader {
+
+    /**
+     * Listener for the contents of a directory
+     */
+    interface Listener {
+        void onEntriesLoaded(List<Entry> entries, boolean first);
+        void onEntriesChanged();
+        void onError();
+    }
+
+    /**
+     * Listener for directory item counts
+     */
+    interface CountListener {
+        void onCountLoaded();
+    }
+
+    /**
+     * Individual file or directory within a listing
+     *
+     * The attributes are read once when the listing is created.
+     */
+    static class Entry {
+
+        private final File mFile;
+        private final boolean mDirectory;
+        private final long mSize;
+        private final long mLastModified;
+
+        Entry(File file) {
+            mFile = file;
+            mDirectory = file.isDirectory();
+            mSize = mDirectory ? 0 : file.length();
+            mLastModified = file.lastModified();
+        }
+
+        File getFile() {
+            return mFile;
+        }
+
+        boolean isDirectory() {
+            return mDirectory;
+        }
+
+        boolean isHidden() {
+            return mFile.getName().startsWith(".");
+        }
+
+        long getSize() {
+            return mSize;
+        }
+
+        long getLastModified() {
+            return mLastModified;
+        }
+    }
+
+    /**
+     * Cached listing and the observer watching for changes to it
+     */
+    private class Listing {
+
+        private final String mPath;
+        private final List<Entry> mEntries;
+        private final FileObserver mFileObserver;
+        private boolean mChanged = false;
+
+        Listing(String path, List<Entry> entries) {
+            mPath = path;
+            mEntries = entries;
+            mFileObserver = new FileObserver(path, WATCH_EVENTS) {
+                @Override
+                public void onEvent(int event, String path) {
+                    synchronized (Listing.this) {
+                        if (mChanged) {
+                            return;
+                        }
+                        mChanged = true;
+                    }
+                    mHandler.postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            invalidate(Listing.this);
+                        }
+                    }, CHANGE_DELAY);
+                }
+            };
+            mFileObserver.startWatching();
+        }
+    }
+
+    private static final int WATCH_EVENTS = FileObserver.CREATE | FileObserver.DELETE |
+            FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE |
+            FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    // Changes are collected for this long before listeners are informed
+    private static final long CHANGE_DELAY = 500;
+
+    private static final int MAX_THREADS = 2;
+    private static final int MAX_LISTINGS = 16;
+    private static final int MAX_COUNTS = 2048;
+    private static final int CHUNK_SIZE = 256;
+
+    private static DirectoryLoader sInstance;
+
+    /**
+     * Retrieve the loader shared by all explorer fragments
+     */
+    static DirectoryLoader getInstance() {
+        if (sInstance == null) {
+            sInstance = new DirectoryLoader();
+        }
+        return sInstance;
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+            5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    private final LruCache<String, Listing> mListings = new LruCache<String, Listing>(MAX_LISTINGS) {
+        @Override
+        protected void entryRemoved(boolean evicted, String key, Listing oldValue, Listing newValue) {
+            oldValue.mFileObserver.stopWatching();
+        }
+    };
+
+    // Item counts are stored along with the modification time of the directory
+    private final LruCache<String, long[]> mCounts = new LruCache<>(MAX_COUNTS);
+    private final Set<String> mPendingCounts = new HashSet<>();
+
+    private final Map<String, Set<Listener>> mListeners = new HashMap<>();
+
+    private DirectoryLoader() {
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Load the contents of a directory
+     * @param path directory to load
+     * @param listener listener for the contents and subsequent changes
+     *
+     * The listener remains registered for changes until removeListener() is
+     * invoked for it.
+     */
+    void load(final String path, final Listener listener) {
+        Set<Listener> listeners = mListeners.get(path);
+        if (listeners == null) {
+            listeners = new HashSet<>();
+            mListeners.put(path, listeners);
+        }
+        listeners.add(listener);
+
+        // Use the cached listing if there is one
+        Listing listing = mListings.get(path);
+        if (listing != null) {
+            listener.onEntriesLoaded(listing.mEntries, true);
+            return;
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Entry> entries = list(path);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isRegistered(path, listener)) {
+                            return;
+                        }
+                        if (entries == null) {
+                            listener.onError();
+                            return;
+                        }
+                        mListings.put(path, new Listing(path, entries));
+                        deliver(path, listener, entries, 0);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stop delivering contents and changes to a listener
+     */
+    void removeListener(String path, Listener listener) {
+        Set<Listener> listeners = mListeners.get(path);
+        if (listeners != null) {
+            listeners.remove(listener);
+            if (listeners.isEmpty()) {
+                mListeners.remove(path);
+            }
+        }
+    }
+
+    /**
+     * Retrieve the number of items in a directory
+     * @param entry directory to count items in
+     * @param listener listener invoked if the count needs to be loaded
+     * @return number of items or -1 if not yet known
+     */
+    int getCount(Entry entry, final CountListener listener) {
+        final String path = entry.getFile().getPath();
+        final long lastModified = entry.getLastModified();
+        long[] count = mCounts.get(path);
+        if (count != null && count[0] == lastModified) {
+            return (int) count[1];
+        }
+        if (mPendingCounts.add(path)) {
+            final File directory = entry.getFile();
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    String[] names = directory.list();
+                    final int numItems = names == null ? 0 : names.length;
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mPendingCounts.remove(path);
+                            mCounts.put(path, new long[]{lastModified, numItems});
+                            listener.onCountLoaded();
+                        }
+                    });
+                }
+            });
+        }
+        return -1;
+    }
+
+    /**
+     * Determine if the listener is still interested in a directory
+     */
+    private boolean isRegistered(String path, Listener listener) {
+        Set<Listener> listeners = mListeners.get(path);
+        return listeners != null && listeners.contains(listener);
+    }
+
+    /**
+     * Deliver a chunk of entries, posting the remainder for later
+     */
+    private void deliver(final String path, final Listener listener,
+                         final List<Entry> entries, final int start) {
+        if (!isRegistered(path, listener)) {
+            return;
+        }
+        int end = Math.min(start + CHUNK_SIZE, entries.size());
+        listener.onEntriesLoaded(entries.subList(start, end), start == 0);
+        if (end < entries.size()) {
+            final int next = end;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(path, listener, entries, next);
+                }
+            });
+        }
+    }
+
+    /**
+     * Drop a listing that has changed and inform its listeners
+     */
+    private void invalidate(Listing listing) {
+        if (mListings.get(listing.mPath) != listing) {
+            return;
+        }
+        mListings.remove(listing.mPath);
+        Set<Listener> listeners = mListeners.get(listing.mPath);
+        if (listeners != null) {
+            for (Listener listener : new ArrayList<>(listeners)) {
+                listener.onEntriesChanged();
+            }
+        }
+    }
+
+    /**
+     * List and sort the contents of a directory (directories first)
+     * @return list of entries or null if the directory cannot be read
+     */
+    private static List<Entry> list(String path) {
+        File[] files = new File(path).listFiles();
+        if (files == null) {
+            return null;
+        }
+        Entry[] entries = new Entry[files.length];
+        for (int i = 0; i < files.length; i++) {
+            entries[i] = new Entry(files[i]);
+        }
+        Arrays.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                if (o1.isDirectory() == o2.isDirectory()) {
+                    return o1.getFile().getName().compareToIgnoreCase(o2.getFile().getName());
+                } else {
+                    return o1.isDirectory() ? -1 : 1;
+                }
+            }
+        });
+        return Arrays.asList(entries);
+    }
+}
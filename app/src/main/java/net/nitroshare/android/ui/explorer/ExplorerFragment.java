@@ -3,6 +3,7 @@ package net.nitroshare.android.ui.explorer;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
 import android.support.v4.app.ListFragment;
 import android.view.ActionMode;
 import android.view.Menu;
@@ -13,10 +14,12 @@ import android.widget.AdapterView;
 import android.widget.ListView;
 
 import net.nitroshare.android.R;
+import net.nitroshare.android.bundle.DirectorySizer;
 import net.nitroshare.android.util.Settings;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Display the contents of a directory
@@ -32,10 +35,21 @@ public class ExplorerFragment extends ListFragment
         void onSendUris(ArrayList<Uri> uris);
     }
 
+    // Interval between updates to the size of the selection
+    private static final long SIZE_INTERVAL = 250;
+
     private Listener mListener;
     private DirectoryAdapter mDirectoryAdapter;
     private ActionMode mActionMode;
 
+    private Handler mHandler = new Handler();
+    private Runnable mSizeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateSelectionSize();
+        }
+    };
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -62,6 +76,13 @@ public class ExplorerFragment extends ListFragment
         setListAdapter(mDirectoryAdapter);
     }
 
+    @Override
+    public void onDestroy() {
+        mHandler.removeCallbacks(mSizeRunnable);
+        mDirectoryAdapter.release();
+        super.onDestroy();
+    }
+
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
@@ -75,6 +96,7 @@ public class ExplorerFragment extends ListFragment
                 mDirectoryAdapter.activateCheckboxes(position);
                 //noinspection ConstantConditions
                 mActionMode = getActivity().startActionMode(ExplorerFragment.this);
+                updateSelectionSize();
                 return true;
             }
         });
@@ -83,8 +105,8 @@ public class ExplorerFragment extends ListFragment
     @Override
     public void onListItemClick(ListView listView, View view, int position, long id) {
         if (mActionMode == null) {
-            File file = mDirectoryAdapter.getItem(position);
             //noinspection ConstantConditions
+            File file = mDirectoryAdapter.getItem(position).getFile();
             if (file.isDirectory()) {
                 mListener.onBrowseDirectory(file.getPath());
             } else {
@@ -125,6 +147,8 @@ public class ExplorerFragment extends ListFragment
     public void onDestroyActionMode(ActionMode mode) {
         mDirectoryAdapter.deactivateCheckboxes();
         mActionMode = null;
+        mHandler.removeCallbacks(mSizeRunnable);
+        DirectorySizer.update(new ArrayList<File>());
     }
 
     @Override
@@ -132,6 +156,11 @@ public class ExplorerFragment extends ListFragment
         mActionMode.finish();
     }
 
+    @Override
+    public void onSelectionChanged() {
+        updateSelectionSize();
+    }
+
     @Override
     public void onError(String message) {
         setEmptyText(message);
@@ -144,4 +173,41 @@ public class ExplorerFragment extends ListFragment
     void showHidden(boolean showHidden) {
         mDirectoryAdapter.toggleHidden(showHidden);
     }
+
+    /**
+     * Show the number of files selected and their size in the action mode
+     *
+     * Directories are sized in the background; this is invoked repeatedly
+     * until they have all been walked.
+     */
+    private void updateSelectionSize() {
+        mHandler.removeCallbacks(mSizeRunnable);
+        if (mActionMode == null) {
+            return;
+        }
+        List<File> directories = new ArrayList<>();
+        long numFiles = 0;
+        long size = 0;
+        for (DirectoryLoader.Entry entry : mDirectoryAdapter.getCheckedEntries()) {
+            if (entry.isDirectory()) {
+                directories.add(entry.getFile());
+            } else {
+                numFiles++;
+                size += entry.getSize();
+            }
+        }
+        DirectorySizer.update(directories);
+        long[] totals = new long[2];
+        boolean complete = DirectorySizer.getTotals(directories, totals);
+        numFiles += totals[0];
+        size += totals[1];
+        mActionMode.setTitle(getResources().getQuantityString(
+                R.plurals.activity_explorer_selected, (int) numFiles, numFiles));
+        String sizeText = DirectoryAdapter.formatSize(getActivity(), size);
+        mActionMode.setSubtitle(complete ? sizeText :
+                getString(R.string.activity_explorer_sizing, sizeText));
+        if (!complete) {
+            mHandler.postDelayed(mSizeRunnable, SIZE_INTERVAL);
+        }
+    }
 }
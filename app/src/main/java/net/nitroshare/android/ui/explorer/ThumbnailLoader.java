@@ -0,0 +1,347 @@
+package net.nitroshare.android.ui.explorer;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ThumbnailUtils;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.util.Log;
+import android.util.LruCache;
+import android.webkit.MimeTypeMap;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load thumbnails for images and videos in the background
+ *
+ * Only files with a known image or video type are decoded and images are
+ * subsampled while decoding so that a full-size bitmap is never created.
+ * Thumbnails are kept in a memory cache limited by the number of bytes the
+ * bitmaps use and in a disk cache keyed by path, size and modification time.
+ *
+ * Each ImageView has at most one request outstanding. Loading a thumbnail
+ * into a view that was recycled for a different row cancels the previous
+ * request if it has not started yet and otherwise discards its result.
+ *
+ * The loader must only be used from the UI thread and the listener is
+ * invoked on it.
+ */
+class ThumbnailLoader {
+
+    /**
+     * Listener for thumbnails that have been loaded into a view
+     */
+    interface Listener {
+        void onThumbnailLoaded(ImageView imageView);
+    }
+
+    /**
+     * Pending request for a thumbnail
+     */
+    private class Request implements Runnable {
+
+        private final String mKey;
+        private final File mFile;
+        private final String mMimeType;
+        private final int mSize;
+        private final ImageView mImageView;
+        private final Listener mListener;
+        private Future<?> mFuture;
+
+        Request(String key, File file, String mimeType, int size,
+                ImageView imageView, Listener listener) {
+            mKey = key;
+            mFile = file;
+            mMimeType = mimeType;
+            mSize = size;
+            mImageView = imageView;
+            mListener = listener;
+        }
+
+        @Override
+        public void run() {
+            final Bitmap bitmap = loadThumbnail(mKey, mFile, mMimeType, mSize);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (bitmap != null) {
+                        mMemoryCache.put(mKey, bitmap);
+                    }
+                    if (mRequests.get(mImageView) != Request.this) {
+                        return;
+                    }
+                    mRequests.remove(mImageView);
+                    if (bitmap != null) {
+                        mImageView.setImageBitmap(bitmap);
+                        mListener.onThumbnailLoaded(mImageView);
+                    }
+                }
+            });
+        }
+    }
+
+    private static final String TAG = "ThumbnailLoader";
+
+    private static final int MAX_THREADS = 2;
+
+    // Fraction of the heap used for thumbnails in memory
+    private static final int MEMORY_FRACTION = 8;
+
+    // Oldest thumbnails on disk are removed when this size is exceeded
+    private static final long MAX_DISK_SIZE = 32 * 1024 * 1024;
+
+    private static final int JPEG_QUALITY = 85;
+
+    private static ThumbnailLoader sInstance;
+
+    /**
+     * Retrieve the loader shared by all explorer fragments
+     */
+    static ThumbnailLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ThumbnailLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+            5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    private final LruCache<String, Bitmap> mMemoryCache = new LruCache<String, Bitmap>(
+            (int) (Runtime.getRuntime().maxMemory() / MEMORY_FRACTION)) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+
+    private final Map<ImageView, Request> mRequests = new WeakHashMap<>();
+
+    private final File mDiskCacheDirectory;
+    private final Object mDiskLock = new Object();
+    private long mDiskSize = -1;
+
+    private ThumbnailLoader(Context context) {
+        mDiskCacheDirectory = new File(context.getCacheDir(), "thumbnails");
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Determine the MIME type of a file if it can have a thumbnail
+     * @return MIME type or null for other files
+     */
+    private static String getMimeType(File file) {
+        String name = file.getName();
+        int index = name.lastIndexOf('.');
+        if (index < 0) {
+            return null;
+        }
+        String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(
+                name.substring(index + 1).toLowerCase(Locale.US));
+        if (mimeType != null && (mimeType.startsWith("image/") || mimeType.startsWith("video/"))) {
+            return mimeType;
+        }
+        return null;
+    }
+
+    /**
+     * Load the thumbnail for an entry into a view
+     * @param entry file to show a thumbnail for
+     * @param size width and height of the thumbnail in pixels
+     * @param imageView view for the thumbnail
+     * @param listener listener invoked when the thumbnail has been set
+     *
+     * If there is no thumbnail for the entry, the view is left as it is.
+     */
+    void load(DirectoryLoader.Entry entry, int size, ImageView imageView, Listener listener) {
+        String key = entry.getFile().getPath() + ":" + entry.getSize() + ":" +
+                entry.getLastModified() + ":" + size;
+
+        // Drop any request made for a previous row
+        Request request = mRequests.get(imageView);
+        if (request != null) {
+            if (request.mKey.equals(key)) {
+                return;
+            }
+            request.mFuture.cancel(false);
+            mRequests.remove(imageView);
+        }
+
+        String mimeType = entry.isDirectory() ? null : getMimeType(entry.getFile());
+        if (mimeType == null) {
+            return;
+        }
+
+        Bitmap bitmap = mMemoryCache.get(key);
+        if (bitmap != null) {
+            imageView.setImageBitmap(bitmap);
+            listener.onThumbnailLoaded(imageView);
+            return;
+        }
+
+        request = new Request(key, entry.getFile(), mimeType, size, imageView, listener);
+        request.mFuture = mExecutor.submit(request);
+        mRequests.put(imageView, request);
+    }
+
+    /**
+     * Load a thumbnail from the disk cache or create it from the file
+     */
+    private Bitmap loadThumbnail(String key, File file, String mimeType, int size) {
+        File cacheFile = new File(mDiskCacheDirectory, getCacheFilename(key));
+        if (cacheFile.exists()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(cacheFile.getPath());
+            if (bitmap != null) {
+                //noinspection ResultOfMethodCallIgnored
+                cacheFile.setLastModified(System.currentTimeMillis());
+                return bitmap;
+            }
+        }
+        Bitmap bitmap = createThumbnail(file, mimeType, size);
+        if (bitmap != null) {
+            writeCacheFile(cacheFile, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Decode a file at (roughly) the specified size and crop it to a square
+     */
+    private static Bitmap createThumbnail(File file, String mimeType, int size) {
+        Bitmap bitmap;
+        if (mimeType.startsWith("image/")) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(file.getPath(), options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            options.inSampleSize = 1;
+            while (options.outWidth / (options.inSampleSize * 2) >= size &&
+                    options.outHeight / (options.inSampleSize * 2) >= size) {
+                options.inSampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        } else {
+            bitmap = ThumbnailUtils.createVideoThumbnail(file.getPath(),
+                    MediaStore.Images.Thumbnails.MINI_KIND);
+        }
+        if (bitmap == null) {
+            return null;
+        }
+        return ThumbnailUtils.extractThumbnail(bitmap, size, size,
+                ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+    }
+
+    /**
+     * Create a filename for a cache key
+     */
+    private static String getCacheFilename(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder();
+            for (byte b : digest) {
+                builder.append(String.format("%02x", b));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+
+    /**
+     * Write a thumbnail to the disk cache, trimming it if it grows too large
+     */
+    private void writeCacheFile(File cacheFile, Bitmap bitmap) {
+        synchronized (mDiskLock) {
+            if (mDiskSize < 0) {
+                //noinspection ResultOfMethodCallIgnored
+                mDiskCacheDirectory.mkdirs();
+                mDiskSize = 0;
+                File[] files = mDiskCacheDirectory.listFiles();
+                if (files != null) {
+                    for (File f : files) {
+                        mDiskSize += f.length();
+                    }
+                }
+            }
+        }
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        try {
+            FileOutputStream outputStream = new FileOutputStream(tempFile);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, outputStream);
+            } finally {
+                outputStream.close();
+            }
+            if (!tempFile.renameTo(cacheFile)) {
+                throw new IOException("unable to rename thumbnail");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, e.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            return;
+        }
+        synchronized (mDiskLock) {
+            mDiskSize += cacheFile.length();
+            if (mDiskSize > MAX_DISK_SIZE) {
+                trimDiskCache();
+            }
+        }
+    }
+
+    /**
+     * Remove the least recently used thumbnails until the cache is 3/4 full
+     */
+    private void trimDiskCache() {
+        File[] files = mDiskCacheDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        mDiskSize = 0;
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+            mDiskSize += files[i].length();
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                long diff = lastModified[o1] - lastModified[o2];
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (Integer i : order) {
+            if (mDiskSize <= MAX_DISK_SIZE * 3 / 4) {
+                break;
+            }
+            long length = files[i].length();
+            if (files[i].delete()) {
+                mDiskSize -= length;
+            }
+        }
+        Log.i(TAG, String.format("trimmed thumbnail cache to %d bytes", mDiskSize));
+    }
+}
@@ -1,6 +1,9 @@
 package net.nitroshare.android.ui.settings;
 
+import android.content.Context;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.CheckBoxPreference;
 import android.preference.EditTextPreference;
 import android.preference.Preference;
@@ -8,12 +11,25 @@ import android.preference.PreferenceCategory;
 import android.preference.PreferenceFragment;
 import android.preference.PreferenceScreen;
 import android.support.annotation.StringRes;
+import android.text.InputType;
 import android.view.MenuItem;
+import android.widget.Toast;
 
 import net.nitroshare.android.R;
+import net.nitroshare.android.transfer.EventTrace;
 import net.nitroshare.android.transfer.TransferService;
 import net.nitroshare.android.util.Settings;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
 /**
  * Settings for the application
  */
@@ -21,6 +37,8 @@ public class SettingsActivity extends AppCompatSettingsActivity {
 
     public static class SettingsFragment extends PreferenceFragment {
 
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
         private Settings mSettings;
 
         /**
@@ -57,6 +75,18 @@ public class SettingsActivity extends AppCompatSettingsActivity {
             return editTextPreference;
         }
 
+        /**
+         * Create an EditTextPreference that only accepts numbers
+         * @param titleResId resource ID to use for the title
+         * @param key preference key
+         * @return newly created preference
+         */
+        private EditTextPreference createNumberPreference(@StringRes int titleResId, Settings.Key key) {
+            EditTextPreference editTextPreference = createEditTextPreference(titleResId, key);
+            editTextPreference.getEditText().setInputType(InputType.TYPE_CLASS_NUMBER);
+            return editTextPreference;
+        }
+
         /**
          * Create a SwitchPreference for the specified preference
          * @param titleResId resource ID to use for the title
@@ -102,6 +132,26 @@ public class SettingsActivity extends AppCompatSettingsActivity {
             return directoryPreference;
         }
 
+        /**
+         * Write the transfer engine trace to the transfer directory
+         * @return path of the trace
+         */
+        private String exportTrace() throws IOException {
+            File directory = new File(mSettings.getString(Settings.Key.TRANSFER_DIRECTORY));
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException(String.format("unable to create %s", directory));
+            }
+            String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+            File file = new File(directory, String.format("nitroshare-trace-%s.json", timestamp));
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"));
+            try {
+                EventTrace.export(writer);
+            } finally {
+                writer.close();
+            }
+            return file.getAbsolutePath();
+        }
+
         @Override
         public void onCreate(Bundle savedInstanceState) {
             super.onCreate(savedInstanceState);
@@ -119,14 +169,38 @@ public class SettingsActivity extends AppCompatSettingsActivity {
             appearance.setLayoutResource(R.layout.preference_layout);
             PreferenceCategory notifications = createCategory(R.string.activity_settings_category_notifications);
             notifications.setLayoutResource(R.layout.preference_layout);
+            PreferenceCategory engine = createCategory(R.string.activity_settings_category_engine);
+            engine.setLayoutResource(R.layout.preference_layout);
 
             // Create the preferences
             general.addPreference(createEditTextPreference(R.string.activity_settings_pref_device_name, Settings.Key.DEVICE_NAME));
             general.addPreference(createDirectoryPreference(R.string.activity_settings_pref_transfer_directory, Settings.Key.TRANSFER_DIRECTORY));
             general.addPreference(createCheckBoxPreference(R.string.activity_settings_pref_behavior_receive, R.string.activity_settings_pref_behavior_receive_summary, Settings.Key.BEHAVIOR_RECEIVE));
             general.addPreference(createCheckBoxPreference(R.string.activity_settings_pref_behavior_overwrite, R.string.activity_settings_pref_behavior_overwrite_summary, Settings.Key.BEHAVIOR_OVERWRITE));
+            general.addPreference(createCheckBoxPreference(R.string.activity_settings_pref_discovery_mdns, R.string.activity_settings_pref_discovery_mdns_summary, Settings.Key.DISCOVERY_MDNS));
             appearance.addPreference(createCheckBoxPreference(R.string.activity_settings_darkTheme, R.string.activity_settings_darkTheme_summary, Settings.Key.UI_DARK));
             notifications.addPreference(createCheckBoxPreference(R.string.activity_settings_pref_notification_sound, R.string.activity_settings_pref_notification_sound_summary, Settings.Key.TRANSFER_NOTIFICATION));
+            engine.addPreference(createNumberPreference(R.string.activity_settings_pref_transfer_connect_timeout, Settings.Key.TRANSFER_CONNECT_TIMEOUT));
+            engine.addPreference(createCheckBoxPreference(R.string.activity_settings_pref_transfer_pool, R.string.activity_settings_pref_transfer_pool_summary, Settings.Key.TRANSFER_POOL));
+            engine.addPreference(createNumberPreference(R.string.activity_settings_pref_transfer_pool_idle_timeout, Settings.Key.TRANSFER_POOL_IDLE_TIMEOUT));
+            engine.addPreference(createNumberPreference(R.string.activity_settings_pref_transfer_pool_size, Settings.Key.TRANSFER_POOL_SIZE));
+            engine.addPreference(createNumberPreference(R.string.activity_settings_pref_transfer_max_sends, Settings.Key.TRANSFER_MAX_SENDS));
+            engine.addPreference(createNumberPreference(R.string.activity_settings_pref_transfer_max_receives, Settings.Key.TRANSFER_MAX_RECEIVES));
+            engine.addPreference(createCheckBoxPreference(R.string.activity_settings_pref_transfer_adaptive_receives, R.string.activity_settings_pref_transfer_adaptive_receives_summary, Settings.Key.TRANSFER_ADAPTIVE_RECEIVES));
+            engine.addPreference(createNumberPreference(R.string.activity_settings_pref_transfer_rate_limit, Settings.Key.TRANSFER_RATE_LIMIT));
+            engine.addPreference(createNumberPreference(R.string.activity_settings_pref_transfer_rate_limit_device, Settings.Key.TRANSFER_RATE_LIMIT_DEVICE));
+            engine.addPreference(createNumberPreference(R.string.activity_settings_pref_transfer_rate_limit_transfer, Settings.Key.TRANSFER_RATE_LIMIT_TRANSFER));
+            engine.addPreference(createEditTextPreference(R.string.activity_settings_pref_transfer_rate_limit_hours, Settings.Key.TRANSFER_RATE_LIMIT_HOURS));
+            engine.addPreference(createNumberPreference(R.string.activity_settings_pref_transfer_idle_timeout, Settings.Key.TRANSFER_IDLE_TIMEOUT));
+            engine.addPreference(createNumberPreference(R.string.activity_settings_pref_transfer_min_throughput, Settings.Key.TRANSFER_MIN_THROUGHPUT));
+            engine.addPreference(createNumberPreference(R.string.activity_settings_pref_transfer_max_connections, Settings.Key.TRANSFER_MAX_CONNECTIONS));
+            engine.addPreference(createNumberPreference(R.string.activity_settings_pref_transfer_max_connections_per_peer, Settings.Key.TRANSFER_MAX_CONNECTIONS_PER_PEER));
+            engine.addPreference(createCheckBoxPreference(R.string.activity_settings_pref_transfer_trace, R.string.activity_settings_pref_transfer_trace_summary, Settings.Key.TRANSFER_TRACE));
+            Preference exportTracePreference = new Preference(getActivity());
+            exportTracePreference.setTitle(R.string.activity_settings_pref_transfer_trace_export);
+            exportTracePreference.setSummary(R.string.activity_settings_pref_transfer_trace_export_summary);
+            engine.addPreference(exportTracePreference);
+            engine.addPreference(createNumberPreference(R.string.activity_settings_pref_transfer_metrics_port, Settings.Key.TRANSFER_METRICS_PORT));
 
             // Instantly enable/disable the transfer service when the "receive"
             // setting has been changed
@@ -139,6 +213,43 @@ public class SettingsActivity extends AppCompatSettingsActivity {
                 }
             });
 
+            // Start or stop recording events immediately
+            Preference tracePreference = findPreference(Settings.Key.TRANSFER_TRACE.name());
+            tracePreference.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+                @Override
+                public boolean onPreferenceChange(Preference preference, Object newValue) {
+                    EventTrace.setEnabled((boolean) newValue);
+                    return true;
+                }
+            });
+
+            // Write the trace on another thread since it involves storage
+            exportTracePreference.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+                @Override
+                public boolean onPreferenceClick(Preference preference) {
+                    final Context context = getActivity().getApplicationContext();
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            String message;
+                            try {
+                                message = context.getString(R.string.activity_settings_trace_exported, exportTrace());
+                            } catch (IOException e) {
+                                message = context.getString(R.string.activity_settings_trace_failed, e.getMessage());
+                            }
+                            final String finalMessage = message;
+                            mHandler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Toast.makeText(context, finalMessage, Toast.LENGTH_LONG).show();
+                                }
+                            });
+                        }
+                    }).start();
+                    return true;
+                }
+            });
+
             // Instantly apply theme changes
             Preference darkPreference = findPreference(Settings.Key.UI_DARK.name());
             darkPreference.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
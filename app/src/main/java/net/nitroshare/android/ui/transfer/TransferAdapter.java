@@ -1,5 +1,6 @@
 package net.nitroshare.android.ui.transfer;
 
+import android.app.AlertDialog;
 import android.content.Context;
 import android.content.Intent;
 import android.support.v4.content.ContextCompat;
@@ -14,6 +15,7 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import net.nitroshare.android.R;
+import net.nitroshare.android.transfer.TransferMetrics;
 import net.nitroshare.android.transfer.TransferService;
 import net.nitroshare.android.transfer.TransferStatus;
 import net.nitroshare.android.ui.TintableButton;
@@ -85,6 +87,31 @@ class TransferAdapter extends RecyclerView.Adapter<TransferAdapter.ViewHolder> {
         return mStatuses.valueAt(index);
     }
 
+    /**
+     * Show the performance metrics for a transfer
+     */
+    private void showMetrics(TransferStatus transferStatus) {
+        TransferMetrics metrics = transferStatus.getMetrics();
+        String message = mContext.getString(
+                R.string.dialog_transfer_metrics_message,
+                Formatter.formatShortFileSize(mContext, (long) metrics.getThroughput()),
+                Formatter.formatShortFileSize(mContext, (long) metrics.getAverageThroughput()),
+                metrics.getDiskNanos() / 1e9,
+                metrics.getSocketNanos() / 1e9,
+                Formatter.formatShortFileSize(mContext, metrics.getBytesPerSyscall()),
+                metrics.getWakeups(),
+                metrics.getFramesSent(),
+                metrics.getFramesReceived(),
+                metrics.getHeaderOverhead() * 100
+        );
+        new AlertDialog.Builder(mContext)
+                .setTitle(R.string.dialog_transfer_metrics_title)
+                .setMessage(message)
+                .setPositiveButton(android.R.string.ok, null)
+                .create()
+                .show();
+    }
+
     /**
      * Remove the specified transfer from the sparse array
      */
@@ -120,12 +147,21 @@ class TransferAdapter extends RecyclerView.Adapter<TransferAdapter.ViewHolder> {
         holder.mDevice.setText(transferStatus.getRemoteDeviceName());
         holder.mProgress.setProgress(transferStatus.getProgress());
         holder.mBytes.setText(bytesText);
+        holder.itemView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                showMetrics(transferStatus);
+            }
+        });
 
         // Display the correct state string in the correct style
         switch (transferStatus.getState()) {
+            case Queued:
             case Connecting:
             case Transferring:
-                if (transferStatus.getState() == TransferStatus.State.Connecting) {
+                if (transferStatus.getState() == TransferStatus.State.Queued) {
+                    holder.mState.setText(R.string.adapter_transfer_queued);
+                } else if (transferStatus.getState() == TransferStatus.State.Connecting) {
                     holder.mState.setText(R.string.adapter_transfer_connecting);
                 } else {
                     holder.mState.setText(mContext.getString(R.string.adapter_transfer_transferring,
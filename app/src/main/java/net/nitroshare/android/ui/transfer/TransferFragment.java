@@ -24,6 +24,7 @@ import net.nitroshare.android.R;
 import net.nitroshare.android.transfer.TransferManager;
 import net.nitroshare.android.transfer.TransferService;
 import net.nitroshare.android.transfer.TransferStatus;
+import net.nitroshare.android.transfer.TransferStatusParcel;
 
 /**
  * Fragment that displays a single RecyclerView
@@ -122,7 +123,9 @@ public class TransferFragment extends Fragment {
         mBroadcastReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                TransferStatus transferStatus = intent.getParcelableExtra(TransferManager.EXTRA_STATUS);
+                TransferStatusParcel transferStatusParcel = intent.getParcelableExtra(
+                        TransferManager.EXTRA_STATUS);
+                TransferStatus transferStatus = transferStatusParcel.getTransferStatus();
                 adapter.update(transferStatus);
 
                 if (adapter.getItemCount() == 1) {
@@ -0,0 +1,25 @@
+package net.nitroshare.android.util;
+
+/**
+ * Send messages logged by the engine to the Android log
+ */
+public class AndroidLogSink implements Log.Sink {
+
+    @Override
+    public void log(char level, String tag, String message) {
+        switch (level) {
+            case 'D':
+                android.util.Log.d(tag, message);
+                break;
+            case 'I':
+                android.util.Log.i(tag, message);
+                break;
+            case 'W':
+                android.util.Log.w(tag, message);
+                break;
+            default:
+                android.util.Log.e(tag, message);
+                break;
+        }
+    }
+}
@@ -23,9 +23,27 @@ public class Settings {
         BEHAVIOR_OVERWRITE,    // Overwrite files with identical names
         DEVICE_NAME,           // Device name broadcast via mDNS
         DEVICE_UUID,           // Unique identifier for the device
+        DISCOVERY_MDNS,        // Use the built-in mDNS implementation
         INTRO_SHOWN,           // Intro has been shown to user?
+        TRANSFER_ADAPTIVE_RECEIVES, // Adjust the number of receives to storage speed
+        TRANSFER_CONNECT_TIMEOUT, // Seconds to spend connecting to a device
         TRANSFER_DIRECTORY,    // Directory for storing received files
+        TRANSFER_IDLE_TIMEOUT, // Seconds a connection may be silent during a transfer
+        TRANSFER_MAX_CONNECTIONS, // Maximum number of incoming connections
+        TRANSFER_MAX_CONNECTIONS_PER_PEER, // Maximum incoming connections per address
+        TRANSFER_MAX_RECEIVES, // Maximum number of transfers received at once
+        TRANSFER_MAX_SENDS,    // Maximum number of transfers sent at once
+        TRANSFER_METRICS_PORT, // Port for serving engine metrics (0 to disable)
+        TRANSFER_MIN_THROUGHPUT, // KiB/s below which connections are dropped
         TRANSFER_NOTIFICATION, // Default sounds, vibrate, etc. for transfers
+        TRANSFER_POOL,         // Keep idle connections to recently used devices
+        TRANSFER_POOL_IDLE_TIMEOUT, // Seconds before idle connections are closed
+        TRANSFER_POOL_SIZE,    // Maximum number of idle connections
+        TRANSFER_RATE_LIMIT,   // KiB/s for all transfers sent (0 for no limit)
+        TRANSFER_RATE_LIMIT_DEVICE, // KiB/s for transfers to each device
+        TRANSFER_RATE_LIMIT_TRANSFER, // KiB/s for each transfer
+        TRANSFER_RATE_LIMIT_HOURS, // Hours when limits apply (HH:MM-HH:MM)
+        TRANSFER_TRACE,        // Record recent transfer engine events
         UI_DARK,               // Use a dark theme
     }
 
@@ -57,14 +75,48 @@ public class Settings {
                 String uuid = String.format("{%s}", UUID.randomUUID().toString());
                 mSharedPreferences.edit().putString(Key.DEVICE_UUID.name(), uuid).apply();
                 return uuid;
+            case DISCOVERY_MDNS:
+                return false;
             case INTRO_SHOWN:
                 return false;
+            case TRANSFER_ADAPTIVE_RECEIVES:
+                return true;
+            case TRANSFER_CONNECT_TIMEOUT:
+                return "10";
             case TRANSFER_DIRECTORY:
                 File storage = Environment.getExternalStorageDirectory();
                 File downloads = new File(storage, "Download");
                 return new File(downloads, "NitroShare").getAbsolutePath();
+            case TRANSFER_IDLE_TIMEOUT:
+                return "30";
+            case TRANSFER_MAX_CONNECTIONS:
+                return "16";
+            case TRANSFER_MAX_CONNECTIONS_PER_PEER:
+                return "4";
+            case TRANSFER_MAX_RECEIVES:
+                return "4";
+            case TRANSFER_MAX_SENDS:
+                return "2";
+            case TRANSFER_METRICS_PORT:
+                return "0";
+            case TRANSFER_MIN_THROUGHPUT:
+                return "1";
             case TRANSFER_NOTIFICATION:
                 return true;
+            case TRANSFER_POOL:
+                return false;
+            case TRANSFER_POOL_IDLE_TIMEOUT:
+                return "60";
+            case TRANSFER_POOL_SIZE:
+                return "4";
+            case TRANSFER_RATE_LIMIT:
+            case TRANSFER_RATE_LIMIT_DEVICE:
+            case TRANSFER_RATE_LIMIT_TRANSFER:
+                return "0";
+            case TRANSFER_RATE_LIMIT_HOURS:
+                return "";
+            case TRANSFER_TRACE:
+                return true;
             case UI_DARK:
                 return false;
             default:
@@ -72,6 +124,22 @@ public class Settings {
         }
     }
 
+    /**
+     * Register a listener for changes to any setting
+     * @param listener listener to register (the caller must hold a reference to it)
+     */
+    public void registerListener(SharedPreferences.OnSharedPreferenceChangeListener listener) {
+        mSharedPreferences.registerOnSharedPreferenceChangeListener(listener);
+    }
+
+    /**
+     * Unregister a listener previously registered with registerListener()
+     * @param listener listener to unregister
+     */
+    public void unregisterListener(SharedPreferences.OnSharedPreferenceChangeListener listener) {
+        mSharedPreferences.unregisterOnSharedPreferenceChangeListener(listener);
+    }
+
     /**
      * Retrieve the boolean value or its default for the specified key
      * @param key retrieve value for this key
@@ -102,6 +170,20 @@ public class Settings {
         return mSharedPreferences.getString(key.name(), (String) getDefault(key));
     }
 
+    /**
+     * Retrieve the integer value (stored as a string) for the specified key
+     * @param key retrieve value for this key
+     * @return value of the key or its default if the value is not a number
+     * @throws ClassCastException if the key is not a string
+     */
+    public int getInt(Key key) throws ClassCastException {
+        try {
+            return Integer.parseInt(getString(key));
+        } catch (NumberFormatException e) {
+            return Integer.parseInt((String) getDefault(key));
+        }
+    }
+
     /**
      * Convenience method for determining the current app theme to use
      * @param lightTheme theme to use when dark is disabled
@@ -0,0 +1,119 @@
+package net.nitroshare.android.bundle;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and writing file items in chunks the size of BINARY packets
+ *
+ * Each operation reads or writes an entire file. The file being read stays
+ * in the page cache, so this measures the per-chunk cost of the item rather
+ * than the storage device.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileItemBenchmark {
+
+    private static final int FILE_SIZE = 16777216;
+
+    /**
+     * Bytes processed, reported by JMH as a rate
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Param({"16384", "262144", "4194304"})
+    public int chunkSize;
+
+    private File mDirectory;
+    private FileItem mSource;
+    private FileItem mDestination;
+    private byte[] mChunk;
+
+    @Setup
+    public void setup() throws IOException {
+        mDirectory = File.createTempFile("fileitem", "");
+        if (!mDirectory.delete() || !mDirectory.mkdir()) {
+            throw new IOException("unable to create directory");
+        }
+        File source = new File(mDirectory, "source");
+        byte[] data = new byte[FILE_SIZE];
+        new Random(0).nextBytes(data);
+        FileOutputStream outputStream = new FileOutputStream(source);
+        try {
+            outputStream.write(data);
+        } finally {
+            outputStream.close();
+        }
+        mSource = new FileItem(source);
+        mDestination = new FileItem(new File(mDirectory, "destination"));
+        mChunk = new byte[chunkSize];
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (File file : mDirectory.listFiles()) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDirectory.delete();
+    }
+
+    @Benchmark
+    public void read(Bytes bytes) throws IOException {
+        mSource.open(Item.Mode.Read);
+        try {
+            long remaining = FILE_SIZE;
+            while (remaining > 0) {
+                remaining -= mSource.read(mChunk);
+            }
+        } finally {
+            mSource.close();
+        }
+        bytes.bytes += FILE_SIZE;
+    }
+
+    @Benchmark
+    public void write(Bytes bytes) throws IOException {
+        mDestination.open(Item.Mode.Write);
+        try {
+            for (long remaining = FILE_SIZE; remaining > 0; remaining -= mChunk.length) {
+                mDestination.write(mChunk);
+            }
+        } finally {
+            mDestination.close();
+        }
+        bytes.bytes += FILE_SIZE;
+    }
+}
@@ -0,0 +1,43 @@
+package net.nitroshare.android.bundle;
+
+import java.util.Arrays;
+
+/**
+ * File item whose content is generated instead of read from storage
+ *
+ * The receiving device sees an ordinary file. Written content is discarded.
+ */
+public class SyntheticItem extends Item {
+
+    private long mRemaining;
+
+    /**
+     * Create a synthetic item
+     * @param name filename sent to the receiver
+     * @param size number of bytes of content
+     */
+    public SyntheticItem(String name, long size) {
+        super(FileItem.TYPE_NAME, name, size);
+    }
+
+    @Override
+    public void open(Mode mode) {
+        mRemaining = getSize();
+    }
+
+    @Override
+    public int read(byte[] data) {
+        int numBytes = (int) Math.min(data.length, mRemaining);
+        Arrays.fill(data, 0, numBytes, (byte) 0x5a);
+        mRemaining -= numBytes;
+        return numBytes;
+    }
+
+    @Override
+    public void write(byte[] data) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
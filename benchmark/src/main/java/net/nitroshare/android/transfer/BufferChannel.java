@@ -0,0 +1,76 @@
+package net.nitroshare.android.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Channel that replays an encoded byte array
+ *
+ * This lets packets be decoded without a socket so that only the framing
+ * code is measured.
+ */
+class BufferChannel implements ReadableByteChannel {
+
+    private final byte[] mData;
+    private int mPosition;
+
+    /**
+     * Create a channel for the specified data
+     * @param data bytes returned by read()
+     */
+    BufferChannel(byte[] data) {
+        mData = data;
+    }
+
+    /**
+     * Rewind the channel to the start of the data
+     */
+    void reset() {
+        mPosition = 0;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if (mPosition == mData.length) {
+            return -1;
+        }
+        int numBytes = Math.min(dst.remaining(), mData.length - mPosition);
+        dst.put(mData, mPosition, numBytes);
+        mPosition += numBytes;
+        return numBytes;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Encode a packet and capture its bytes
+     */
+    static byte[] encode(Packet packet) {
+        ByteBuffer buffer = packet.getBuffer();
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+        return data;
+    }
+
+    /**
+     * Decode a packet from the channel
+     */
+    Packet decode() throws IOException {
+        Packet packet = new Packet();
+        while (!packet.isFull()) {
+            packet.read(this);
+        }
+        return packet;
+    }
+}
@@ -0,0 +1,75 @@
+package net.nitroshare.android.transfer;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import net.nitroshare.android.bundle.FileItem;
+import net.nitroshare.android.bundle.Item;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Item header codec, performed the same way as sendItemHeader() and
+ * processItemHeader() in Transfer
+ *
+ * Received items are created with overwrite enabled so that the filename
+ * index (which touches the filesystem) stays out of the measurement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ItemHeaderBenchmark {
+
+    private static final Gson mGson = new Gson();
+
+    private File mFile;
+    private Item mItem;
+    private Packet mPacket;
+
+    @Setup
+    public void setup() throws IOException {
+        mFile = File.createTempFile("header", ".jpg");
+        mItem = new FileItem(mFile, "DCIM/Camera/IMG_20171104_101512.jpg");
+        mPacket = new BufferChannel(BufferChannel.encode(serialize())).decode();
+    }
+
+    @TearDown
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    @Benchmark
+    public Packet serialize() {
+        byte[] data = mGson.toJson(mItem.getProperties()).getBytes(Charset.forName("UTF-8"));
+        return new Packet(Packet.JSON, 1, data, data.length);
+    }
+
+    @Benchmark
+    public Item parse() throws IOException {
+        Type type = new TypeToken<Map<String, Object>>(){}.getType();
+        Map<String, Object> map = mGson.fromJson(new String(
+                mPacket.getBuffer().array(), Charset.forName("UTF-8")), type);
+        return new FileItem(mFile.getParent(), map, true);
+    }
+}
@@ -0,0 +1,61 @@
+package net.nitroshare.android.transfer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of packets
+ *
+ * Stream 0 produces legacy (unframed) packets and any other stream produces
+ * framed packets with the additional stream ID.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PacketBenchmark {
+
+    @Param({"0", "1024", "65536", "1048576"})
+    public int size;
+
+    @Param({"0", "1"})
+    public int stream;
+
+    private byte[] mData;
+    private BufferChannel mChannel;
+
+    @Setup
+    public void setup() {
+        mData = new byte[size];
+        new Random(0).nextBytes(mData);
+        mChannel = new BufferChannel(BufferChannel.encode(
+                new Packet(Packet.BINARY, stream, mData, size)));
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        return new Packet(Packet.BINARY, stream, mData, size).getBuffer();
+    }
+
+    @Benchmark
+    public Packet decode() throws IOException {
+        mChannel.reset();
+        return mChannel.decode();
+    }
+}
@@ -0,0 +1,196 @@
+package net.nitroshare.android.transfer;
+
+import net.nitroshare.android.bundle.Bundle;
+import net.nitroshare.android.bundle.Item;
+import net.nitroshare.android.bundle.SyntheticItem;
+import net.nitroshare.android.discovery.Device;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Complete transfers from a sender to a receiver over loopback
+ *
+ * The sender's bundle contains synthetic items so that its side of the
+ * transfer never touches storage. The receiver writes ordinary files, which
+ * are overwritten by each operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TransferBenchmark {
+
+    /**
+     * Bytes transferred, reported by JMH as a rate
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    /**
+     * Bundle layout in the form "<count>x<size>"
+     */
+    @Param({"1x67108864", "256x65536", "4096x0"})
+    public String layout;
+
+    @Param({"true", "false"})
+    public boolean trace;
+
+    private File mDirectory;
+    private ServerSocketChannel mServerSocketChannel;
+    private Device mDevice;
+    private final List<Item> mItems = new ArrayList<>();
+    private long mTotalSize;
+
+    private volatile CountDownLatch mLatch;
+    private volatile String mError;
+
+    private final Transfer.StatusChangedListener mStatusChangedListener =
+            new Transfer.StatusChangedListener() {
+        @Override
+        public void onStatusChanged(TransferStatus transferStatus) {
+            if (transferStatus.isFinished()) {
+                if (transferStatus.getState() == TransferStatus.State.Failed) {
+                    mError = transferStatus.getError();
+
+                    // The other side may never learn of the transfer
+                    while (mLatch.getCount() > 0) {
+                        mLatch.countDown();
+                    }
+                } else {
+                    mLatch.countDown();
+                }
+            }
+        }
+    };
+
+    @Setup
+    public void setup() throws IOException {
+        EventTrace.setEnabled(trace);
+
+        String[] parts = layout.split("x");
+        int count = Integer.parseInt(parts[0]);
+        long size = Long.parseLong(parts[1]);
+        for (int i = 0; i < count; i++) {
+            mItems.add(new SyntheticItem(String.format("item-%d.bin", i), size));
+        }
+        mTotalSize = count * size;
+
+        mDirectory = File.createTempFile("transfer", "");
+        if (!mDirectory.delete() || !mDirectory.mkdir()) {
+            throw new IOException("unable to create directory");
+        }
+
+        // Accept connections the same way as TransferServer, minus the limits
+        mServerSocketChannel = ServerSocketChannel.open();
+        mServerSocketChannel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        accept(mServerSocketChannel.accept());
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        // Sessions are shared by device, so each trial needs a new identity
+        mDevice = new Device("benchmark", UUID.randomUUID().toString(),
+                InetAddress.getLoopbackAddress(), mServerSocketChannel.socket().getLocalPort());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mServerSocketChannel.close();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDirectory.delete();
+        EventTrace.setEnabled(true);
+    }
+
+    /**
+     * Start a receiving session on a new connection
+     */
+    private void accept(SocketChannel socketChannel) throws IOException {
+        ByteBuffer received = ByteBuffer.allocate(1);
+        while (received.hasRemaining()) {
+            if (socketChannel.read(received) < 0) {
+                socketChannel.close();
+                return;
+            }
+        }
+        received.flip();
+        new Session(socketChannel, received, new Session.Listener() {
+            @Override
+            public Transfer onNewStream(Session session, int stream) {
+                Transfer transfer = new Transfer(session, stream,
+                        mDirectory.getPath(), true, "benchmark");
+                transfer.addStatusChangedListener(mStatusChangedListener);
+                return transfer;
+            }
+        }).start();
+    }
+
+    @Benchmark
+    public void transfer(Bytes bytes) throws IOException, InterruptedException {
+        mLatch = new CountDownLatch(2);
+        mError = null;
+        Bundle bundle = new Bundle();
+        for (Item item : mItems) {
+            bundle.addItem(item);
+        }
+        Transfer transfer = new Transfer(mDevice, "benchmark", bundle);
+        transfer.addStatusChangedListener(mStatusChangedListener);
+        transfer.run();
+        mLatch.await();
+        if (mError != null) {
+            throw new IOException(mError);
+        }
+        bytes.bytes += mTotalSize;
+    }
+}
@@ -0,0 +1,267 @@
+package net.nitroshare.android.bundle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * List of items to be transferred
+ *
+ * Items added with addItem() are kept in memory as-is. Files found while
+ * walking directories are instead stored compactly as a path and the offset
+ * of the relative filename within it. Once BLOCK_SIZE of them accumulate,
+ * they are appended to a temporary file, so memory use does not depend on
+ * the number of files. FileItem instances for them are only created when
+ * get() is invoked, which is cheapest when done in order.
+ *
+ * A bundle may still be growing when the transfer begins (for example, while
+ * a DirectoryWalker is traversing a large tree). The transfer can connect in
+ * the meantime but must wait for the bundle to be complete before sending the
+ * transfer header since it includes the final count and size.
+ */
+public class Bundle {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    private final List<Item> mItems = new ArrayList<>();
+    private long mTotalSize = 0;
+
+    // File entries that have not yet been written to disk
+    private String[] mPaths;
+    private int[] mNameOffsets;
+    private int mNumBlockFiles = 0;
+
+    // File entries that have been written to disk
+    private File mSpillFile;
+    private DataOutputStream mSpillOutput;
+    private DataInputStream mSpillInput;
+    private int mNumSpilledFiles = 0;
+    private int mSpillIndex = 0;
+
+    private int mPending = 0;
+    private IOException mError;
+    private volatile boolean mClosed = false;
+
+    /**
+     * Add the specified item to the bundle for transfer
+     */
+    public synchronized void addItem(Item item) {
+        mItems.add(item);
+        mTotalSize += item.getSize();
+    }
+
+    /**
+     * Add a file to the bundle without creating an item for it
+     * @param path absolute path to the file
+     * @param nameOffset start of the relative filename within the path
+     * @param size size of the file in bytes
+     */
+    synchronized void addFile(String path, int nameOffset, long size) throws IOException {
+        if (mClosed) {
+            return;
+        }
+        if (mPaths == null) {
+            mPaths = new String[BLOCK_SIZE];
+            mNameOffsets = new int[BLOCK_SIZE];
+        }
+        mPaths[mNumBlockFiles] = path;
+        mNameOffsets[mNumBlockFiles] = nameOffset;
+        mNumBlockFiles++;
+        mTotalSize += size;
+        if (mNumBlockFiles == BLOCK_SIZE) {
+            spillBlock();
+        }
+    }
+
+    /**
+     * Add all of the files in another bundle to this one
+     * @param other bundle containing only files added by a DirectoryWalker
+     *
+     * The paths are copied as-is, so no files are examined.
+     */
+    synchronized void addFiles(Bundle other) throws IOException {
+        synchronized (other) {
+            if (other.mSpillOutput != null) {
+                other.mSpillOutput.flush();
+                DataInputStream input = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(other.mSpillFile)));
+                try {
+                    for (int i = 0; i < other.mNumSpilledFiles; i++) {
+                        String path = input.readUTF();
+                        addFile(path, input.readInt(), 0);
+                    }
+                } finally {
+                    input.close();
+                }
+            }
+            for (int i = 0; i < other.mNumBlockFiles; i++) {
+                addFile(other.mPaths[i], other.mNameOffsets[i], 0);
+            }
+            mTotalSize += other.mTotalSize;
+        }
+    }
+
+    /**
+     * Append the in-memory file entries to the spill file
+     */
+    private void spillBlock() throws IOException {
+        if (mSpillOutput == null) {
+            mSpillFile = File.createTempFile("bundle", null);
+            mSpillFile.deleteOnExit();
+            mSpillOutput = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mSpillFile)));
+        }
+        for (int i = 0; i < mNumBlockFiles; i++) {
+            mSpillOutput.writeUTF(mPaths[i]);
+            mSpillOutput.writeInt(mNameOffsets[i]);
+            mPaths[i] = null;
+        }
+        mNumSpilledFiles += mNumBlockFiles;
+        mNumBlockFiles = 0;
+    }
+
+    /**
+     * Read the specified file entry from the spill file
+     */
+    private Item readSpilledFile(int index) throws IOException {
+        if (mSpillOutput != null) {
+            mSpillOutput.flush();
+        }
+        if (mSpillInput == null || index < mSpillIndex) {
+            if (mSpillInput != null) {
+                mSpillInput.close();
+            }
+            mSpillInput = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mSpillFile)));
+            mSpillIndex = 0;
+        }
+        for (; mSpillIndex < index; mSpillIndex++) {
+            mSpillInput.readUTF();
+            mSpillInput.readInt();
+        }
+        String path = mSpillInput.readUTF();
+        int nameOffset = mSpillInput.readInt();
+        mSpillIndex++;
+        return new FileItem(new File(path), path.substring(nameOffset));
+    }
+
+    /**
+     * Retrieve the item at the specified index
+     * @param index position of the item in the bundle
+     * @return item at the position
+     */
+    public synchronized Item get(int index) throws IOException {
+        if (index < mItems.size()) {
+            return mItems.get(index);
+        }
+        index -= mItems.size();
+        if (index < mNumSpilledFiles) {
+            return readSpilledFile(index);
+        }
+        index -= mNumSpilledFiles;
+        if (index < mNumBlockFiles) {
+            String path = mPaths[index];
+            return new FileItem(new File(path), path.substring(mNameOffsets[index]));
+        }
+        throw new IOException("item index out of range");
+    }
+
+    /**
+     * Retrieve the number of items in the bundle
+     */
+    public synchronized int size() {
+        return mItems.size() + mNumSpilledFiles + mNumBlockFiles;
+    }
+
+    /**
+     * Retrieve the total size of the bundle content
+     * @return total size in bytes
+     *
+     * While the bundle is incomplete, this is the size of everything added so
+     * far and can be used as an estimate.
+     */
+    public synchronized long getTotalSize() {
+        return mTotalSize;
+    }
+
+    /**
+     * Indicate that items will continue to be added after this method returns
+     */
+    synchronized void beginAdding() {
+        mPending++;
+    }
+
+    /**
+     * Indicate that no more items will be added by a previous beginAdding()
+     * @param error error that occurred while adding items or null
+     */
+    synchronized void finishAdding(IOException error) {
+        if (error != null && mError == null) {
+            mError = error;
+        }
+        mPending--;
+        notifyAll();
+    }
+
+    /**
+     * Wait for the bundle to be complete
+     * @param timeout maximum time to wait in milliseconds
+     * @return true if all items have been added
+     * @throws IOException if adding items failed
+     */
+    public synchronized boolean waitForComplete(long timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (mPending > 0 && mError == null) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        if (mError != null) {
+            throw mError;
+        }
+        return mPending == 0;
+    }
+
+    /**
+     * Release the resources used by the bundle
+     *
+     * Any directories still being walked are abandoned and the spill file is
+     * removed. The bundle cannot be used after this method is invoked.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        try {
+            if (mSpillOutput != null) {
+                mSpillOutput.close();
+            }
+            if (mSpillInput != null) {
+                mSpillInput.close();
+            }
+        } catch (IOException ignored) {
+        }
+        if (mSpillFile != null) {
+            //noinspection ResultOfMethodCallIgnored
+            mSpillFile.delete();
+        }
+    }
+
+    /**
+     * Determine if the bundle is no longer needed
+     */
+    boolean isClosed() {
+        return mClosed;
+    }
+}
@@ -0,0 +1,165 @@
+package net.nitroshare.android.bundle;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Compute the size of directory trees in the background
+ *
+ * Each directory is walked into a bundle of its own while it is selected so
+ * that the number of files and their total size can be shown as the walk
+ * progresses. Completed walks are kept for a short time and can be copied
+ * into the bundle for a transfer, which avoids walking the tree again.
+ *
+ * A completed walk is only reused if the directory has not been modified
+ * since it began. Changes deeper in the tree are not detected, which is why
+ * results expire after MAX_AGE.
+ */
+public class DirectorySizer {
+
+    /**
+     * Walk of a single directory tree
+     */
+    private static class Result {
+
+        private final Bundle mBundle = new Bundle();
+        private final long mLastModified;
+        private final long mStarted = System.currentTimeMillis();
+
+        Result(File directory) {
+            mLastModified = directory.lastModified();
+            DirectoryWalker directoryWalker = new DirectoryWalker(mBundle, sExecutor);
+            directoryWalker.walk(directory);
+            directoryWalker.finish();
+        }
+
+        /**
+         * Determine if the walk has finished (successfully or not)
+         */
+        boolean isComplete() {
+            try {
+                return mBundle.waitForComplete(0);
+            } catch (IOException e) {
+                return true;
+            }
+        }
+
+        /**
+         * Determine if the walk finished and can still be used
+         */
+        boolean isValid(File directory) {
+            try {
+                return mBundle.waitForComplete(0) &&
+                        directory.lastModified() == mLastModified &&
+                        System.currentTimeMillis() - mStarted < MAX_AGE;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    // Completed walks are not reused after this many milliseconds
+    private static final long MAX_AGE = 2 * 60 * 1000;
+
+    // Number of directory trees to keep results for
+    private static final int MAX_RESULTS = 16;
+
+    private static final ThreadPoolExecutor sExecutor = DirectoryWalker.createExecutor(5);
+
+    private static final Map<String, Result> sResults =
+            new LinkedHashMap<String, Result>(MAX_RESULTS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+                    if (size() > MAX_RESULTS) {
+                        eldest.getValue().mBundle.close();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    /**
+     * Begin computing the size of the specified directories
+     * @param directories directories that are currently selected
+     *
+     * Walks that have not completed for directories no longer selected are
+     * abandoned. Completed results are kept in case they are needed again.
+     */
+    public static void update(Collection<File> directories) {
+        Set<String> paths = new HashSet<>();
+        for (File directory : directories) {
+            paths.add(directory.getAbsolutePath());
+        }
+        synchronized (sResults) {
+            Iterator<Map.Entry<String, Result>> iterator = sResults.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Result> entry = iterator.next();
+                if (!paths.contains(entry.getKey()) && !entry.getValue().isComplete()) {
+                    entry.getValue().mBundle.close();
+                    iterator.remove();
+                }
+            }
+            for (File directory : directories) {
+                String path = directory.getAbsolutePath();
+                Result result = sResults.get(path);
+                if (result == null || (result.isComplete() && !result.isValid(directory))) {
+                    if (result != null) {
+                        result.mBundle.close();
+                    }
+                    sResults.put(path, new Result(directory));
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieve the number of files and total size of the directories
+     * @param directories directories previously passed to update()
+     * @param totals array that receives the number of files and their size
+     * @return true if all of the directories have been completely walked
+     */
+    public static boolean getTotals(Collection<File> directories, long[] totals) {
+        boolean complete = true;
+        totals[0] = 0;
+        totals[1] = 0;
+        synchronized (sResults) {
+            for (File directory : directories) {
+                Result result = sResults.get(directory.getAbsolutePath());
+                if (result == null) {
+                    complete = false;
+                    continue;
+                }
+                totals[0] += result.mBundle.size();
+                totals[1] += result.mBundle.getTotalSize();
+                if (!result.isComplete()) {
+                    complete = false;
+                }
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Add the files from a completed walk of a directory to a bundle
+     * @param directory directory that was walked
+     * @param bundle bundle to add the files to
+     * @return true if the files were added or false if there is no result
+     */
+    public static boolean addTo(File directory, Bundle bundle) throws IOException {
+        synchronized (sResults) {
+            Result result = sResults.get(directory.getAbsolutePath());
+            if (result == null || !result.isValid(directory)) {
+                return false;
+            }
+            bundle.addFiles(result.mBundle);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package net.nitroshare.android.bundle;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Traverse directory trees in parallel and add their files to a bundle
+ *
+ * Each directory is listed by a separate task on a small pool of threads so
+ * that the (mostly I/O bound) work of listing and examining files overlaps.
+ * The bundle is marked incomplete until every directory has been listed,
+ * which allows the transfer to be created and connected in the meantime.
+ */
+public class DirectoryWalker {
+
+    private static final int MAX_THREADS = 4;
+
+    private final Bundle mBundle;
+    private final ThreadPoolExecutor mExecutor;
+    private final boolean mOwnsExecutor;
+
+    // The walker itself holds one "task" until finish() is invoked
+    private final AtomicInteger mPending = new AtomicInteger(1);
+
+    private volatile IOException mError;
+
+    /**
+     * Create a walker that adds files to the specified bundle
+     */
+    public DirectoryWalker(Bundle bundle) {
+        this(bundle, createExecutor(1), true);
+    }
+
+    /**
+     * Create a walker that lists directories using an existing executor
+     * @param bundle bundle to add files to
+     * @param executor executor shared with other walkers
+     */
+    DirectoryWalker(Bundle bundle, ThreadPoolExecutor executor) {
+        this(bundle, executor, false);
+    }
+
+    private DirectoryWalker(Bundle bundle, ThreadPoolExecutor executor, boolean ownsExecutor) {
+        mBundle = bundle;
+        mExecutor = executor;
+        mOwnsExecutor = ownsExecutor;
+        mBundle.beginAdding();
+    }
+
+    /**
+     * Create an executor sized for walking directories
+     * @param keepAlive time in seconds that idle threads are kept
+     */
+    static ThreadPoolExecutor createExecutor(long keepAlive) {
+        int numThreads = Math.max(2, Math.min(MAX_THREADS,
+                Runtime.getRuntime().availableProcessors()));
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(numThreads, numThreads,
+                keepAlive, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Add all files in the directory tree to the bundle
+     * @param root directory to traverse
+     *
+     * Filenames are relative to the parent of the root so that the name of
+     * the directory itself is preserved.
+     */
+    public void walk(File root) {
+        File parent = root.getAbsoluteFile().getParentFile();
+        String parentPath = parent == null ? File.separator : parent.getAbsolutePath();
+        submit(root, parentPath.endsWith(File.separator) ?
+                parentPath.length() : parentPath.length() + 1);
+    }
+
+    /**
+     * Indicate that no more directories will be walked
+     *
+     * The bundle is marked complete once all outstanding directories have
+     * been traversed.
+     */
+    public void finish() {
+        taskFinished();
+    }
+
+    /**
+     * Queue a directory for listing
+     */
+    private void submit(final File directory, final int prefixLength) {
+        mPending.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mError == null && !mBundle.isClosed()) {
+                        list(directory, prefixLength);
+                    }
+                } catch (IOException e) {
+                    mError = e;
+                } finally {
+                    taskFinished();
+                }
+            }
+        });
+    }
+
+    /**
+     * List a single directory, queueing its subdirectories
+     */
+    private void list(File directory, int prefixLength) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException(String.format("unable to read \"%s\"", directory.getPath()));
+        }
+        for (File f : files) {
+            if (f.isDirectory()) {
+                submit(f, prefixLength);
+            } else {
+                mBundle.addFile(f.getAbsolutePath(), prefixLength, f.length());
+            }
+        }
+    }
+
+    /**
+     * Complete the bundle when the last task finishes
+     */
+    private void taskFinished() {
+        if (mPending.decrementAndGet() == 0) {
+            if (mOwnsExecutor) {
+                mExecutor.shutdown();
+            }
+            mBundle.finishAdding(mError);
+        }
+    }
+}
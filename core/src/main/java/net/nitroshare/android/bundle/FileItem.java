@@ -0,0 +1,167 @@
+package net.nitroshare.android.bundle;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * An individual file for transfer
+ *
+ * Note that Android's Java doesn't include java.nio.file so only the
+ * last_modified property is usable on the platform.
+ */
+public class FileItem extends Item {
+
+    public static final String TYPE_NAME = "file";
+
+    private File mFile;
+    private FileDescriptor mFileDescriptor;
+    private Closeable mFileDescriptorOwner;
+
+    private FileInputStream mInputStream;
+    private FileOutputStream mOutputStream;
+
+    // Whether the filename is reserved in the directory's FilenameIndex
+    private boolean mReserved;
+
+    /**
+     * Create a new file item using the provided properties
+     * @param transferDirectory directory for the file
+     * @param properties map of properties for the file
+     * @param overwrite true to overwrite an existing file
+     */
+    public FileItem(String transferDirectory, Map<String, Object> properties, boolean overwrite) throws IOException {
+        super(properties);
+        mFile = new File(transferDirectory, getName());
+        if (!overwrite) {
+            mFile = FilenameIndex.get(mFile.getParentFile()).reserve(mFile.getName());
+            mReserved = true;
+        }
+    }
+
+    /**
+     * Create a new file item from the specified file
+     */
+    public FileItem(File file) {
+        this(file, file.getName());
+    }
+
+    /**
+     * Create a new file item with the specified filename
+     */
+    public FileItem(File file, String filename) {
+        super(TYPE_NAME, filename, file.length());
+        mFile = file;
+        setLastModified(mFile.lastModified());
+        setFlag(FLAG_READ_ONLY, !mFile.canWrite());
+        setFlag(FLAG_EXECUTABLE, mFile.canExecute());
+    }
+
+    /**
+     * Create a file from an open file descriptor
+     * @param fileDescriptor file descriptor to read from
+     * @param length size of the file
+     * @param owner closed along with the item (it owns the descriptor)
+     * @param filename filename to use
+     */
+    public FileItem(FileDescriptor fileDescriptor, long length, Closeable owner, String filename) {
+        super(TYPE_NAME, filename, length);
+        mFileDescriptor = fileDescriptor;
+        mFileDescriptorOwner = owner;
+    }
+
+    /**
+     * Release the reserved filename (once the file exists or will not be created)
+     */
+    private void releaseFilename() {
+        if (mReserved) {
+            FilenameIndex.get(mFile.getParentFile()).release(mFile.getName());
+            mReserved = false;
+        }
+    }
+
+    /**
+     * Retrieve the underlying path for the item
+     */
+    public String getPath() {
+        return mFile.getPath();
+    }
+
+    @Override
+    void writeProperties(Map<String, Object> properties) {
+        super.writeProperties(properties);
+        if (mFile != null) {
+            properties.put(READ_ONLY, hasFlag(FLAG_READ_ONLY));
+            properties.put(EXECUTABLE, hasFlag(FLAG_EXECUTABLE));
+        }
+        properties.put(LAST_MODIFIED, Long.toString(getLastModified()));
+
+        // TODO: these are used for temporary compatibility with 0.3.x
+        properties.put("created", "0");
+        properties.put("last_read", "0");
+        properties.put("directory", false);
+    }
+
+    @Override
+    public void open(Mode mode) throws IOException {
+        switch (mode) {
+            case Read:
+                if (mFile != null) {
+                    mInputStream = new FileInputStream(mFile);
+                } else {
+                    mInputStream = new FileInputStream(mFileDescriptor);
+                }
+                break;
+            case Write:
+                //noinspection ResultOfMethodCallIgnored
+                mFile.getParentFile().mkdirs();
+                try {
+                    mOutputStream = new FileOutputStream(mFile);
+                } finally {
+                    releaseFilename();
+                }
+                break;
+        }
+    }
+
+    @Override
+    public int read(byte[] data) throws IOException {
+        int numBytes = mInputStream.read(data);
+        if (numBytes == -1) {
+            numBytes = 0;
+        }
+        return numBytes;
+    }
+
+    @Override
+    public void write(byte[] data) throws IOException {
+        mOutputStream.write(data);
+    }
+
+    @Override
+    public void close() throws IOException {
+        releaseFilename();
+        if (mInputStream != null) {
+            mInputStream.close();
+            if (mFileDescriptorOwner != null) {
+                mFileDescriptorOwner.close();
+            }
+        }
+        if (mOutputStream != null) {
+            mOutputStream.close();
+            //noinspection ResultOfMethodCallIgnored
+            mFile.setWritable(hasFlag(FLAG_READ_ONLY));
+            //noinspection ResultOfMethodCallIgnored
+            mFile.setExecutable(hasFlag(FLAG_EXECUTABLE));
+            long lastModified = getLastModified();
+            if (lastModified != 0) {
+                //noinspection ResultOfMethodCallIgnored
+                mFile.setLastModified(lastModified);
+            }
+        }
+    }
+}
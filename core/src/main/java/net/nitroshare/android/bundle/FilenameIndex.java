@@ -0,0 +1,108 @@
+package net.nitroshare.android.bundle;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Index of the filenames in a directory used to avoid overwriting files
+ *
+ * Each name chosen for an incoming file is reserved immediately, so
+ * transfers receiving into the same directory at the same time never pick
+ * the same name. The reservation is released once the file has been created
+ * (or the item is abandoned); from then on the filesystem decides whether a
+ * name is taken, so deleting a file makes its name available again. The
+ * next suffix to try is remembered for each base name, which means that
+ * receiving yet another "IMG_0001.jpg" does not retry every suffix already
+ * in use.
+ */
+class FilenameIndex {
+
+    // Number of directories to keep indexes for
+    private static final int MAX_INDEXES = 16;
+
+    // Regexp for renaming files
+    private static final Pattern sRenamePattern = Pattern.compile("^(.*?)((?:\\.tar)?\\.[^/]*)?$");
+
+    private static final Map<String, FilenameIndex> sIndexes =
+            new LinkedHashMap<String, FilenameIndex>(MAX_INDEXES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, FilenameIndex> eldest) {
+                    return size() > MAX_INDEXES;
+                }
+            };
+
+    /**
+     * Retrieve the index for the specified directory, creating it if needed
+     */
+    static FilenameIndex get(File directory) {
+        String path = directory.getAbsolutePath();
+        synchronized (sIndexes) {
+            FilenameIndex filenameIndex = sIndexes.get(path);
+            if (filenameIndex == null) {
+                filenameIndex = new FilenameIndex(directory);
+                sIndexes.put(path, filenameIndex);
+            }
+            return filenameIndex;
+        }
+    }
+
+    private final File mDirectory;
+    private final Set<String> mReserved = new HashSet<>();
+    private final Map<String, Integer> mNextSuffixes = new HashMap<>();
+
+    private FilenameIndex(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Determine if a name is unavailable for a new file
+     */
+    private boolean isTaken(String name) {
+        return mReserved.contains(name) || new File(mDirectory, name).exists();
+    }
+
+    /**
+     * Choose and reserve a name in the directory that is not in use
+     * @param filename desired name for the file
+     * @return file with either the desired name or a numbered variant
+     */
+    synchronized File reserve(String filename) throws IOException {
+        if (!isTaken(filename)) {
+            mReserved.add(filename);
+            mNextSuffixes.remove(filename);
+            return new File(mDirectory, filename);
+        }
+        Matcher matcher = sRenamePattern.matcher(filename);
+        if (!matcher.matches()) {
+            throw new IOException("unable to match regexp");
+        }
+        String base = matcher.group(1);
+        String extension = matcher.group(2) == null ? "" : matcher.group(2);
+        Integer nextSuffix = mNextSuffixes.get(filename);
+        int i = nextSuffix == null ? 2 : nextSuffix;
+        String newFilename;
+        while (isTaken(newFilename = base + "_" + i + extension)) {
+            i++;
+        }
+        mNextSuffixes.put(filename, i + 1);
+        mReserved.add(newFilename);
+        return new File(mDirectory, newFilename);
+    }
+
+    /**
+     * Release a name reserved by reserve()
+     * @param filename name returned by reserve()
+     *
+     * This is done once the file exists or if it will not be created.
+     */
+    synchronized void release(String filename) {
+        mReserved.remove(filename);
+    }
+}
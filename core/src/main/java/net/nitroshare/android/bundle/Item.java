@@ -0,0 +1,265 @@
+package net.nitroshare.android.bundle;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Individual item for transfer
+ *
+ * Every individual file, URL, etc. for transfer must be an instance of a
+ * class that extends Item. Items can have any number of properties, but
+ * they must implement TYPE, NAME, and SIZE at a minimum.
+ *
+ * The core properties are stored in fields and converted to and from their
+ * over-the-wire representation only when the item header is sent or
+ * received. Any other properties are kept in a map that is only created when
+ * needed.
+ *
+ * If items contain content (SIZE is nonzero), the I/O functions are used to
+ * read and write the contents.
+ */
+abstract public class Item {
+
+    /**
+     * Unique identifier for the type of item
+     */
+    public static final String TYPE = "type";
+
+    /**
+     * Name of the item
+     *
+     * This value is displayed in some clients during transfer. Files, for
+     * example, also use this property for the relative filename.
+     */
+    public static final String NAME = "name";
+
+    /**
+     * Size of the item content during transmission
+     *
+     * This number is sent over-the-wire as a string to avoid problems with
+     * large integers in JSON. This number can be zero if there is no payload.
+     */
+    public static final String SIZE = "size";
+
+    /**
+     * Time the item was last modified in milliseconds since the epoch
+     *
+     * Like SIZE, this number is sent over-the-wire as a string.
+     */
+    static final String LAST_MODIFIED = "last_modified";
+
+    /**
+     * Item should not be writable once received
+     */
+    static final String READ_ONLY = "read_only";
+
+    /**
+     * Item should be executable once received
+     */
+    static final String EXECUTABLE = "executable";
+
+    /**
+     * Flag values for boolean properties
+     */
+    static final int FLAG_READ_ONLY = 1;
+    static final int FLAG_EXECUTABLE = 2;
+
+    /**
+     * Mode for opening items
+     */
+    public enum Mode {
+        Read,
+        Write,
+    }
+
+    private String mType;
+    private String mName;
+    private long mSize;
+    private long mLastModified;
+    private int mFlags;
+
+    private Map<String, Object> mExtraProperties;
+
+    /**
+     * Create an item with the specified core properties
+     */
+    Item(String type, String name, long size) {
+        mType = type;
+        mName = name;
+        mSize = size;
+    }
+
+    /**
+     * Create an item from properties received from the remote device
+     * @param properties map of properties decoded from JSON
+     */
+    Item(Map<String, Object> properties) throws IOException {
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            switch (key) {
+                case TYPE:
+                    mType = toString(key, value);
+                    break;
+                case NAME:
+                    mName = toString(key, value);
+                    break;
+                case SIZE:
+                    mSize = toLong(key, value);
+                    break;
+                case LAST_MODIFIED:
+                    mLastModified = toLong(key, value);
+                    break;
+                case READ_ONLY:
+                    setFlag(FLAG_READ_ONLY, toBoolean(key, value));
+                    break;
+                case EXECUTABLE:
+                    setFlag(FLAG_EXECUTABLE, toBoolean(key, value));
+                    break;
+                default:
+                    setExtraProperty(key, value);
+            }
+        }
+        if (mName == null) {
+            throw new IOException(String.format("missing \"%s\" property", NAME));
+        }
+    }
+
+    /**
+     * Convert a property value to a string
+     */
+    private static String toString(String key, Object value) throws IOException {
+        if (value instanceof String) {
+            return (String) value;
+        }
+        throw new IOException(String.format("cannot read \"%s\" property", key));
+    }
+
+    /**
+     * Convert a property value (usually a string) to a long
+     */
+    private static long toLong(String key, Object value) throws IOException {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        try {
+            return Long.parseLong(toString(key, value));
+        } catch (NumberFormatException e) {
+            throw new IOException(String.format("\"%s\" is not an integer", key));
+        }
+    }
+
+    /**
+     * Convert a property value to a boolean
+     */
+    private static boolean toBoolean(String key, Object value) throws IOException {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        throw new IOException(String.format("cannot read \"%s\" property", key));
+    }
+
+    public String getType() {
+        return mType;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public long getLastModified() {
+        return mLastModified;
+    }
+
+    void setLastModified(long lastModified) {
+        mLastModified = lastModified;
+    }
+
+    boolean hasFlag(int flag) {
+        return (mFlags & flag) != 0;
+    }
+
+    void setFlag(int flag, boolean value) {
+        mFlags = value ? mFlags | flag : mFlags & ~flag;
+    }
+
+    /**
+     * Retrieve a property that is not one of the core properties
+     * @param key property to retrieve
+     * @return value of the property or null if it is not set
+     */
+    public Object getExtraProperty(String key) {
+        return mExtraProperties == null ? null : mExtraProperties.get(key);
+    }
+
+    /**
+     * Set a property that is not one of the core properties
+     * @param key property to set
+     * @param value value of the property
+     */
+    public void setExtraProperty(String key, Object value) {
+        if (mExtraProperties == null) {
+            mExtraProperties = new HashMap<>();
+        }
+        mExtraProperties.put(key, value);
+    }
+
+    /**
+     * Add the properties for this type of item to the map
+     * @param properties map that will be sent to the remote device
+     *
+     * The default implementation adds the core properties that every item
+     * must have. Subclasses may add to it.
+     */
+    void writeProperties(Map<String, Object> properties) {
+        properties.put(TYPE, mType);
+        properties.put(NAME, mName);
+        properties.put(SIZE, Long.toString(mSize));
+    }
+
+    /**
+     * Retrieve a map of properties in the form they are sent over-the-wire
+     * @return property map
+     */
+    public Map<String, Object> getProperties() {
+        Map<String, Object> properties = new LinkedHashMap<>();
+        writeProperties(properties);
+        if (mExtraProperties != null) {
+            properties.putAll(mExtraProperties);
+        }
+        return properties;
+    }
+
+    /**
+     * Open the item for reading or writing
+     * @param mode open mode
+     */
+    abstract public void open(Mode mode) throws IOException;
+
+    /**
+     * Read data from the item
+     * @param data array of bytes to read
+     * @return number of bytes read
+     * @throws IOException
+     *
+     * This method is invoked multiple times until all content has been read.
+     */
+    abstract public int read(byte[] data) throws IOException;
+
+    /**
+     * Write data to the item
+     * @param data array of bytes to write
+     */
+    abstract public void write(byte[] data) throws IOException;
+
+    /**
+     * Close the item
+     */
+    abstract public void close() throws IOException;
+}
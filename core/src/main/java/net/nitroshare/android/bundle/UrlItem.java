@@ -1,9 +1,6 @@
 package net.nitroshare.android.bundle;
 
-import android.net.Uri;
-
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -16,36 +13,26 @@ public class UrlItem extends Item {
 
     public static final String TYPE_NAME = "url";
 
-    private Map<String, Object> mProperties;
-
     /**
      * Create an item for receiving a URL
      * @param properties item properties
      */
     public UrlItem(Map<String, Object> properties) throws IOException {
-        mProperties = properties;
+        super(properties);
     }
 
     /**
-     * Create a new item for the specified URI
+     * Create a new item for the specified URL
      */
-    public UrlItem(Uri uri) {
-        mProperties = new HashMap<>();
-        mProperties.put(TYPE, TYPE_NAME);
-        mProperties.put(NAME, uri.toString());
-        mProperties.put(SIZE, 0);
+    public UrlItem(String url) {
+        super(TYPE_NAME, url, 0);
     }
 
     /**
      * Retrieve the URL
      */
-    public String getUrl() throws IOException {
-        return getStringProperty(NAME, true);
-    }
-
-    @Override
-    public Map<String, Object> getProperties() {
-        return mProperties;
+    public String getUrl() {
+        return getName();
     }
 
     @Override
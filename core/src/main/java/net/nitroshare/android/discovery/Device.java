@@ -1,7 +1,5 @@
 package net.nitroshare.android.discovery;
 
-import android.net.nsd.NsdServiceInfo;
-
 import java.io.Serializable;
 import java.net.InetAddress;
 
@@ -12,13 +10,15 @@ import java.net.InetAddress;
  */
 public class Device implements Serializable {
 
+    private static final long serialVersionUID = 1L;
+
     public static final String SERVICE_TYPE = "_nitroshare._tcp.";
 
     public static final String UUID = "uuid";
 
     private String mName;
     private String mUuid;
-    private InetAddress mHost;
+    private InetAddress[] mAddresses;
     private int mPort;
 
     /**
@@ -29,9 +29,20 @@ public class Device implements Serializable {
      * @param port port for the service
      */
     public Device(String name, String uuid, InetAddress host, int port) {
+        this(name, uuid, host == null ? new InetAddress[0] : new InetAddress[]{host}, port);
+    }
+
+    /**
+     * Create a device with more than one address
+     * @param name device name
+     * @param uuid unique identifier for the device
+     * @param addresses all known addresses for the device, preferred first
+     * @param port port for the service
+     */
+    public Device(String name, String uuid, InetAddress[] addresses, int port) {
         mName = name;
         mUuid = uuid;
-        mHost = host;
+        mAddresses = addresses;
         mPort = port;
     }
 
@@ -39,20 +50,26 @@ public class Device implements Serializable {
         return mName;
     }
 
+    public String getUuid() {
+        return mUuid;
+    }
+
+    /**
+     * Retrieve the preferred address for the device
+     * @return address or null if none are known
+     */
     public InetAddress getHost() {
-        return mHost;
+        return mAddresses.length == 0 ? null : mAddresses[0];
     }
 
-    public int getPort() {
-        return mPort;
+    /**
+     * Retrieve all known addresses for the device
+     */
+    public InetAddress[] getAddresses() {
+        return mAddresses;
     }
 
-    public NsdServiceInfo toServiceInfo() {
-        NsdServiceInfo serviceInfo = new NsdServiceInfo();
-        serviceInfo.setServiceType(SERVICE_TYPE);
-        serviceInfo.setServiceName(mName);
-        //serviceInfo.setAttribute(UUID, mUuid);
-        serviceInfo.setPort(mPort);
-        return serviceInfo;
+    public int getPort() {
+        return mPort;
     }
 }
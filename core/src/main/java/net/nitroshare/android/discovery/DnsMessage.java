@@ -0,0 +1,380 @@
+package net.nitroshare.android.discovery;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * DNS message as used by mDNS
+ *
+ * Only the record types needed for DNS-SD are understood (PTR, SRV, TXT, A
+ * and AAAA); anything else is skipped when parsing. Names are written in
+ * presentation form ("My Device._nitroshare._tcp.local.") with any dots or
+ * backslashes inside a label escaped with a backslash.
+ */
+class DnsMessage {
+
+    static final int TYPE_A = 1;
+    static final int TYPE_PTR = 12;
+    static final int TYPE_TXT = 16;
+    static final int TYPE_AAAA = 28;
+    static final int TYPE_SRV = 33;
+    static final int TYPE_ANY = 255;
+
+    private static final int CLASS_IN = 1;
+
+    // Top bit of the class: "cache flush" in records, "unicast response" in questions
+    private static final int CLASS_FLAG = 0x8000;
+
+    private static final int FLAG_RESPONSE = 0x8400;
+
+    /**
+     * Question for records with a particular name and type
+     */
+    static class Question {
+
+        final String mName;
+        final int mType;
+
+        Question(String name, int type) {
+            mName = name;
+            mType = type;
+        }
+
+        /**
+         * Determine if a record answers the question
+         */
+        boolean isAnsweredBy(Record record) {
+            return (mType == TYPE_ANY || mType == record.mType) &&
+                    mName.equalsIgnoreCase(record.mName);
+        }
+    }
+
+    /**
+     * Resource record
+     *
+     * Only the fields relevant to the type are used: mTarget for PTR and SRV,
+     * mPort for SRV, mAttributes for TXT and mAddress for A and AAAA.
+     */
+    static class Record {
+
+        final String mName;
+        final int mType;
+        final long mTtl;
+        boolean mFlush;
+
+        String mTarget;
+        int mPort;
+        Map<String, String> mAttributes;
+        InetAddress mAddress;
+
+        Record(String name, int type, long ttl) {
+            mName = name;
+            mType = type;
+            mTtl = ttl;
+        }
+
+        /**
+         * Create a copy of the record with a different TTL
+         */
+        Record withTtl(long ttl) {
+            Record record = new Record(mName, mType, ttl);
+            record.mFlush = mFlush;
+            record.mTarget = mTarget;
+            record.mPort = mPort;
+            record.mAttributes = mAttributes;
+            record.mAddress = mAddress;
+            return record;
+        }
+
+        /**
+         * Determine if two records have the same name, type and data
+         */
+        boolean isSameAs(Record other) {
+            if (mType != other.mType || !mName.equalsIgnoreCase(other.mName)) {
+                return false;
+            }
+            switch (mType) {
+                case TYPE_PTR:
+                    return mTarget.equalsIgnoreCase(other.mTarget);
+                case TYPE_SRV:
+                    return mPort == other.mPort && mTarget.equalsIgnoreCase(other.mTarget);
+                case TYPE_TXT:
+                    return mAttributes.equals(other.mAttributes);
+                default:
+                    return mAddress.equals(other.mAddress);
+            }
+        }
+    }
+
+    int mId;
+    boolean mResponse;
+    final List<Question> mQuestions = new ArrayList<>();
+    final List<Record> mAnswers = new ArrayList<>();
+    final List<Record> mAdditional = new ArrayList<>();
+
+    /**
+     * Split a name into labels, removing escapes
+     */
+    static List<String> splitName(String name) {
+        List<String> labels = new ArrayList<>();
+        StringBuilder label = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '\\' && i + 1 < name.length()) {
+                label.append(name.charAt(++i));
+            } else if (c == '.') {
+                labels.add(label.toString());
+                label.setLength(0);
+            } else {
+                label.append(c);
+            }
+        }
+        if (label.length() > 0) {
+            labels.add(label.toString());
+        }
+        return labels;
+    }
+
+    /**
+     * Escape a label for use in a name
+     */
+    static String escapeLabel(String label) {
+        return label.replace("\\", "\\\\").replace(".", "\\.");
+    }
+
+    /**
+     * Retrieve the first label of a name (the instance name for a service)
+     */
+    static String firstLabel(String name) {
+        List<String> labels = splitName(name);
+        return labels.isEmpty() ? "" : labels.get(0);
+    }
+
+    /**
+     * Parse a message received from the network
+     * @param data buffer containing the message
+     * @param length length of the message
+     * @return parsed message
+     * @throws IOException if the message is malformed
+     */
+    static DnsMessage parse(byte[] data, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        DnsMessage message = new DnsMessage();
+        try {
+            message.mId = buffer.getShort() & 0xffff;
+            message.mResponse = (buffer.getShort() & 0x8000) != 0;
+            int numQuestions = buffer.getShort() & 0xffff;
+            int numAnswers = buffer.getShort() & 0xffff;
+            int numAuthority = buffer.getShort() & 0xffff;
+            int numAdditional = buffer.getShort() & 0xffff;
+            for (int i = 0; i < numQuestions; i++) {
+                String name = readName(buffer);
+                int type = buffer.getShort() & 0xffff;
+                buffer.getShort();
+                message.mQuestions.add(new Question(name, type));
+            }
+            for (int i = 0; i < numAnswers + numAuthority + numAdditional; i++) {
+                Record record = readRecord(buffer);
+                if (record == null || i >= numAnswers && i < numAnswers + numAuthority) {
+                    continue;
+                }
+                (i < numAnswers ? message.mAnswers : message.mAdditional).add(record);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("truncated DNS message");
+        }
+        return message;
+    }
+
+    /**
+     * Read a (possibly compressed) name
+     */
+    private static String readName(ByteBuffer buffer) throws IOException {
+        StringBuilder name = new StringBuilder();
+        int position = -1;
+        int jumps = 0;
+        while (true) {
+            int length = buffer.get() & 0xff;
+            if (length == 0) {
+                break;
+            }
+            if ((length & 0xc0) == 0xc0) {
+                int offset = ((length & 0x3f) << 8) | (buffer.get() & 0xff);
+                if (position < 0) {
+                    position = buffer.position();
+                }
+                if (++jumps > 64) {
+                    throw new IOException("DNS name compression loop");
+                }
+                buffer.position(offset);
+                continue;
+            }
+            byte[] label = new byte[length];
+            buffer.get(label);
+            name.append(escapeLabel(new String(label, "UTF-8"))).append('.');
+        }
+        if (position >= 0) {
+            buffer.position(position);
+        }
+        return name.toString();
+    }
+
+    /**
+     * Read a single record, returning null if the type is not understood
+     */
+    private static Record readRecord(ByteBuffer buffer) throws IOException {
+        String name = readName(buffer);
+        int type = buffer.getShort() & 0xffff;
+        int cls = buffer.getShort() & 0xffff;
+        long ttl = buffer.getInt() & 0xffffffffL;
+        int length = buffer.getShort() & 0xffff;
+        int end = buffer.position() + length;
+        Record record = new Record(name, type, ttl);
+        record.mFlush = (cls & CLASS_FLAG) != 0;
+        switch (type) {
+            case TYPE_PTR:
+                record.mTarget = readName(buffer);
+                break;
+            case TYPE_SRV:
+                buffer.getShort();
+                buffer.getShort();
+                record.mPort = buffer.getShort() & 0xffff;
+                record.mTarget = readName(buffer);
+                break;
+            case TYPE_TXT:
+                record.mAttributes = new LinkedHashMap<>();
+                while (buffer.position() < end) {
+                    byte[] string = new byte[buffer.get() & 0xff];
+                    buffer.get(string);
+                    String attribute = new String(string, "UTF-8");
+                    int index = attribute.indexOf('=');
+                    if (index < 0) {
+                        record.mAttributes.put(attribute, "");
+                    } else {
+                        record.mAttributes.put(attribute.substring(0, index),
+                                attribute.substring(index + 1));
+                    }
+                }
+                break;
+            case TYPE_A:
+            case TYPE_AAAA:
+                byte[] address = new byte[length];
+                buffer.get(address);
+                record.mAddress = InetAddress.getByAddress(address);
+                break;
+            default:
+                record = null;
+        }
+        buffer.position(end);
+        return record;
+    }
+
+    /**
+     * Encode the message for sending
+     * @return message data
+     */
+    byte[] toByteArray() {
+        ByteBuffer buffer = ByteBuffer.allocate(9000);
+        Map<String, Integer> names = new HashMap<>();
+        buffer.putShort((short) mId);
+        buffer.putShort((short) (mResponse ? FLAG_RESPONSE : 0));
+        buffer.putShort((short) mQuestions.size());
+        buffer.putShort((short) mAnswers.size());
+        buffer.putShort((short) 0);
+        buffer.putShort((short) mAdditional.size());
+        for (Question question : mQuestions) {
+            writeName(buffer, names, question.mName);
+            buffer.putShort((short) question.mType);
+            buffer.putShort((short) CLASS_IN);
+        }
+        for (Record record : mAnswers) {
+            writeRecord(buffer, names, record);
+        }
+        for (Record record : mAdditional) {
+            writeRecord(buffer, names, record);
+        }
+        byte[] data = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(data);
+        return data;
+    }
+
+    /**
+     * Write a name, compressing any suffix that has already been written
+     */
+    private static void writeName(ByteBuffer buffer, Map<String, Integer> names, String name) {
+        List<String> labels = splitName(name);
+        for (int i = 0; i < labels.size(); i++) {
+            StringBuilder suffix = new StringBuilder();
+            for (int j = i; j < labels.size(); j++) {
+                suffix.append(escapeLabel(labels.get(j))).append('.');
+            }
+            String key = suffix.toString().toLowerCase(Locale.US);
+            Integer offset = names.get(key);
+            if (offset != null) {
+                buffer.putShort((short) (0xc000 | offset));
+                return;
+            }
+            if (buffer.position() < 0x3fff) {
+                names.put(key, buffer.position());
+            }
+            byte[] label = toBytes(labels.get(i));
+            buffer.put((byte) Math.min(label.length, 63));
+            buffer.put(label, 0, Math.min(label.length, 63));
+        }
+        buffer.put((byte) 0);
+    }
+
+    /**
+     * Write a record, filling in the data length once it is known
+     */
+    private static void writeRecord(ByteBuffer buffer, Map<String, Integer> names, Record record) {
+        writeName(buffer, names, record.mName);
+        buffer.putShort((short) record.mType);
+        buffer.putShort((short) (CLASS_IN | (record.mFlush ? CLASS_FLAG : 0)));
+        buffer.putInt((int) record.mTtl);
+        int lengthPosition = buffer.position();
+        buffer.putShort((short) 0);
+        switch (record.mType) {
+            case TYPE_PTR:
+                writeName(buffer, names, record.mTarget);
+                break;
+            case TYPE_SRV:
+                buffer.putShort((short) 0);
+                buffer.putShort((short) 0);
+                buffer.putShort((short) record.mPort);
+                writeName(buffer, names, record.mTarget);
+                break;
+            case TYPE_TXT:
+                if (record.mAttributes.isEmpty()) {
+                    buffer.put((byte) 0);
+                }
+                for (Map.Entry<String, String> attribute : record.mAttributes.entrySet()) {
+                    byte[] string = toBytes(attribute.getKey() + "=" + attribute.getValue());
+                    buffer.put((byte) Math.min(string.length, 255));
+                    buffer.put(string, 0, Math.min(string.length, 255));
+                }
+                break;
+            default:
+                buffer.put(record.mAddress.getAddress());
+        }
+        buffer.putShort(lengthPosition, (short) (buffer.position() - lengthPosition - 2));
+    }
+
+    private static byte[] toBytes(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,701 @@
+package net.nitroshare.android.discovery;
+
+import net.nitroshare.android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Browse for and advertise NitroShare services using multicast DNS
+ *
+ * This is a small, self-contained implementation of mDNS and DNS-SD that
+ * does not depend on NsdManager. A single thread owns the socket and does
+ * all of the work:
+ *
+ *  - when advertising, the service is announced on start, queries for it are
+ *    answered (omitting records the querier already knows) and a goodbye is
+ *    sent on stop
+ *  - when browsing, a single query asking for the service type along with
+ *    any missing SRV, TXT and address records is sent with a doubling
+ *    interval; known answers are included so that responders can suppress
+ *    them; answers are cached until their TTL expires
+ *
+ * Errors sending a message are logged and otherwise ignored. Any other
+ * socket error closes the socket, which is reopened (and the group joined
+ * again) after REOPEN_INTERVAL. The local addresses are checked every
+ * ADDRESS_CHECK_INTERVAL; when they change, the socket is reopened on the
+ * new network, the service is announced with the new addresses and browsing
+ * starts again with a short query interval.
+ *
+ * The class has no Android dependencies so that it can be exercised on a
+ * desktop JVM (using the loopback interface and a different port).
+ */
+public class MdnsService implements Runnable {
+
+    public static final String GROUP = "224.0.0.251";
+    public static final int PORT = 5353;
+
+    private static final String TAG = "MdnsService";
+
+    /**
+     * Listener for devices that are found and lost while browsing
+     *
+     * The listener is invoked on the service's thread.
+     */
+    public interface Listener {
+        void onDeviceFound(Device device);
+        void onDeviceLost(String name);
+    }
+
+    // TTL for every record advertised
+    private static final long TTL = 120;
+
+    private static final long INITIAL_QUERY_INTERVAL = 1000;
+    private static final long MAX_QUERY_INTERVAL = 60000;
+    private static final long ANNOUNCE_INTERVAL = 1000;
+    private static final int NUM_ANNOUNCEMENTS = 2;
+
+    private static final long ADDRESS_CHECK_INTERVAL = 5000;
+    private static final long REOPEN_INTERVAL = 1000;
+
+    private static final int MAX_PACKET_SIZE = 9000;
+
+    /**
+     * Cached record and the time it expires
+     */
+    private static class CacheEntry {
+
+        private final DnsMessage.Record mRecord;
+        private final long mReceived;
+        private final long mExpires;
+
+        CacheEntry(DnsMessage.Record record, long now) {
+            mRecord = record;
+            mReceived = now;
+            mExpires = now + record.mTtl * 1000;
+        }
+
+        /**
+         * Determine if less than half of the TTL remains
+         */
+        boolean isStale(long now) {
+            return now - mReceived > (mExpires - mReceived) / 2;
+        }
+    }
+
+    private final InetAddress mGroup;
+    private final int mPort;
+    private final String mServiceType;
+
+    private Thread mThread;
+    private MulticastSocket mSocket;
+    private volatile boolean mStop;
+    private long mNextReopen;
+
+    // Addresses of this device
+    private List<InetAddress> mAddresses;
+    private long mNextAddressCheck;
+
+    // Advertised service
+    private Device mDevice;
+    private String mInstanceName;
+    private List<DnsMessage.Record> mRecords;
+    private int mAnnouncementsRemaining;
+    private long mNextAnnouncement;
+
+    // Browsing state
+    private Listener mListener;
+    private long mQueryInterval;
+    private long mNextQuery;
+    private final Map<String, CacheEntry> mCache = new LinkedHashMap<>();
+    private final Map<String, Device> mDevices = new HashMap<>();
+
+    /**
+     * Create a service using the standard mDNS group and port
+     * @param serviceType DNS-SD service type (for example, "_nitroshare._tcp.")
+     */
+    public MdnsService(String serviceType) throws IOException {
+        this(InetAddress.getByName(GROUP), PORT, serviceType);
+    }
+
+    /**
+     * Create a service using the specified multicast group and port
+     */
+    public MdnsService(InetAddress group, int port, String serviceType) {
+        mGroup = group;
+        mPort = port;
+        mServiceType = serviceType + "local.";
+    }
+
+    /**
+     * Advertise a service once the service is started
+     * @param device device to advertise (the host is ignored)
+     */
+    public void advertise(Device device) throws SocketException {
+        mDevice = device;
+        mAddresses = getLocalAddresses();
+        createRecords();
+    }
+
+    /**
+     * Create the records for the advertised service and current addresses
+     */
+    private void createRecords() {
+        Device device = mDevice;
+        mInstanceName = DnsMessage.escapeLabel(device.getName()) + "." + mServiceType;
+        String uuid = device.getUuid() == null ? "" : device.getUuid();
+        String hostName = "nitroshare-" + uuid.replaceAll("[^0-9A-Za-z]", "").toLowerCase(Locale.US) +
+                ".local.";
+
+        mRecords = new ArrayList<>();
+        DnsMessage.Record ptr = new DnsMessage.Record(mServiceType, DnsMessage.TYPE_PTR, TTL);
+        ptr.mTarget = mInstanceName;
+        mRecords.add(ptr);
+        DnsMessage.Record srv = new DnsMessage.Record(mInstanceName, DnsMessage.TYPE_SRV, TTL);
+        srv.mFlush = true;
+        srv.mPort = device.getPort();
+        srv.mTarget = hostName;
+        mRecords.add(srv);
+        DnsMessage.Record txt = new DnsMessage.Record(mInstanceName, DnsMessage.TYPE_TXT, TTL);
+        txt.mFlush = true;
+        txt.mAttributes = new LinkedHashMap<>();
+        txt.mAttributes.put(Device.UUID, uuid);
+        mRecords.add(txt);
+        for (InetAddress address : mAddresses) {
+            DnsMessage.Record record = new DnsMessage.Record(hostName,
+                    address instanceof Inet4Address ? DnsMessage.TYPE_A : DnsMessage.TYPE_AAAA, TTL);
+            record.mFlush = true;
+            record.mAddress = address;
+            mRecords.add(record);
+        }
+    }
+
+    /**
+     * Browse for services once the service is started
+     * @param listener listener for devices found and lost
+     */
+    public void browse(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Open the socket and begin advertising and browsing
+     */
+    public void start() throws IOException {
+        if (mAddresses == null) {
+            mAddresses = getLocalAddresses();
+        }
+        mSocket = openSocket();
+        mStop = false;
+        mThread = new Thread(this);
+        mThread.start();
+    }
+
+    /**
+     * Send a goodbye for the advertised service and close the socket
+     */
+    public void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mStop = true;
+        try {
+            mThread.join();
+        } catch (InterruptedException ignored) {
+        }
+        mThread = null;
+    }
+
+    /**
+     * Create a socket bound to the port that has joined the group
+     */
+    private MulticastSocket openSocket() throws IOException {
+        MulticastSocket socket = new MulticastSocket(null);
+        try {
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(mPort));
+            socket.setTimeToLive(255);
+            socket.joinGroup(mGroup);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Close the socket and schedule it to be opened again
+     * @param delay time in milliseconds to wait before opening it
+     */
+    private void closeSocket(long now, long delay) {
+        mSocket.close();
+        mSocket = null;
+        mNextReopen = now + delay;
+    }
+
+    /**
+     * Start announcing and querying from the beginning
+     */
+    private void resetTimers(long now) {
+        mNextAnnouncement = now;
+        mAnnouncementsRemaining = mRecords == null ? 0 : NUM_ANNOUNCEMENTS;
+        mQueryInterval = INITIAL_QUERY_INTERVAL;
+        mNextQuery = now;
+    }
+
+    @Override
+    public void run() {
+        long now = System.currentTimeMillis();
+        resetTimers(now);
+        mNextAddressCheck = now + ADDRESS_CHECK_INTERVAL;
+
+        byte[] data = new byte[MAX_PACKET_SIZE];
+        DatagramPacket packet = new DatagramPacket(data, data.length);
+        while (!mStop) {
+            now = System.currentTimeMillis();
+            if (now >= mNextAddressCheck) {
+                mNextAddressCheck = now + ADDRESS_CHECK_INTERVAL;
+                if (checkAddresses() && mSocket != null) {
+                    closeSocket(now, 0);
+                }
+            }
+
+            // Wait for the network to recover before opening the socket again
+            if (mSocket == null) {
+                if (now < mNextReopen) {
+                    sleep(Math.min(250, mNextReopen - now));
+                    continue;
+                }
+                try {
+                    mSocket = openSocket();
+                } catch (IOException e) {
+                    Log.e(TAG, String.format("unable to open socket: %s", e.getMessage()));
+                    mNextReopen = now + REOPEN_INTERVAL;
+                    continue;
+                }
+                resetTimers(now);
+            }
+
+            try {
+                processTimers(now);
+                long timeout = Math.max(1, Math.min(250, nextTimer() - now));
+                mSocket.setSoTimeout((int) timeout);
+                packet.setLength(data.length);
+                mSocket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                continue;
+            } catch (IOException e) {
+                Log.e(TAG, String.format("socket error: %s", e.getMessage()));
+                closeSocket(now, REOPEN_INTERVAL);
+                continue;
+            }
+            DnsMessage message;
+            try {
+                message = DnsMessage.parse(packet.getData(), packet.getLength());
+            } catch (IOException e) {
+                continue;
+            }
+            if (message.mResponse) {
+                processResponse(message, System.currentTimeMillis());
+            } else if (mRecords != null) {
+                processQuery(message, (InetSocketAddress) packet.getSocketAddress());
+            }
+        }
+        if (mSocket != null) {
+            if (mRecords != null) {
+                sendGoodbye();
+            }
+            mSocket.close();
+            mSocket = null;
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * Determine if the addresses of this device have changed
+     *
+     * The advertised records are updated to use the new addresses.
+     */
+    private boolean checkAddresses() {
+        List<InetAddress> addresses;
+        try {
+            addresses = getLocalAddresses();
+        } catch (SocketException e) {
+            Log.e(TAG, String.format("unable to list addresses: %s", e.getMessage()));
+            return false;
+        }
+        if (new HashSet<>(addresses).equals(new HashSet<>(mAddresses))) {
+            return false;
+        }
+        Log.i(TAG, "local addresses changed");
+        mAddresses = addresses;
+        if (mRecords != null) {
+            createRecords();
+        }
+        return true;
+    }
+
+    /**
+     * Determine when the next timer is due
+     */
+    private long nextTimer() {
+        long next = Long.MAX_VALUE;
+        if (mAnnouncementsRemaining > 0) {
+            next = Math.min(next, mNextAnnouncement);
+        }
+        if (mListener != null) {
+            next = Math.min(next, mNextQuery);
+        }
+        return next;
+    }
+
+    /**
+     * Send announcements and queries that are due and expire the cache
+     */
+    private void processTimers(long now) {
+        if (mAnnouncementsRemaining > 0 && now >= mNextAnnouncement) {
+            DnsMessage message = new DnsMessage();
+            message.mResponse = true;
+            message.mAnswers.addAll(mRecords);
+            send(message, null);
+            mAnnouncementsRemaining--;
+            mNextAnnouncement = now + ANNOUNCE_INTERVAL;
+        }
+        if (mListener != null) {
+            expireCache(now);
+            if (now >= mNextQuery) {
+                sendQuery(now);
+                mNextQuery = now + mQueryInterval;
+                mQueryInterval = Math.min(mQueryInterval * 2, MAX_QUERY_INTERVAL);
+            }
+        }
+    }
+
+    /**
+     * Send a query for the service type and any records still missing
+     *
+     * Records in the cache with more than half of their TTL remaining are
+     * included as known answers.
+     */
+    private void sendQuery(long now) {
+        DnsMessage message = new DnsMessage();
+        message.mQuestions.add(new DnsMessage.Question(mServiceType, DnsMessage.TYPE_PTR));
+        for (CacheEntry entry : mCache.values()) {
+            DnsMessage.Record record = entry.mRecord;
+            if (record.mType == DnsMessage.TYPE_PTR && !entry.isStale(now)) {
+                message.mAnswers.add(record.withTtl((entry.mExpires - now) / 1000));
+            }
+        }
+        for (String instanceName : getInstanceNames()) {
+            DnsMessage.Record srv = find(instanceName, DnsMessage.TYPE_SRV);
+            if (srv == null) {
+                message.mQuestions.add(new DnsMessage.Question(instanceName, DnsMessage.TYPE_SRV));
+            } else if (getAddresses(srv.mTarget).isEmpty()) {
+                message.mQuestions.add(new DnsMessage.Question(srv.mTarget, DnsMessage.TYPE_A));
+                message.mQuestions.add(new DnsMessage.Question(srv.mTarget, DnsMessage.TYPE_AAAA));
+            }
+            if (find(instanceName, DnsMessage.TYPE_TXT) == null) {
+                message.mQuestions.add(new DnsMessage.Question(instanceName, DnsMessage.TYPE_TXT));
+            }
+        }
+        send(message, null);
+    }
+
+    /**
+     * Answer the parts of a query that concern the advertised service
+     */
+    private void processQuery(DnsMessage query, InetSocketAddress source) {
+        List<DnsMessage.Record> answers = new ArrayList<>();
+        for (DnsMessage.Question question : query.mQuestions) {
+            for (DnsMessage.Record record : mRecords) {
+                if (question.isAnsweredBy(record) && !answers.contains(record) &&
+                        !isKnownAnswer(query, record)) {
+                    answers.add(record);
+                }
+            }
+        }
+        if (answers.isEmpty()) {
+            return;
+        }
+        DnsMessage response = new DnsMessage();
+        response.mResponse = true;
+        response.mAnswers.addAll(answers);
+        for (DnsMessage.Record record : mRecords) {
+            if (!answers.contains(record) && !isKnownAnswer(query, record)) {
+                response.mAdditional.add(record);
+            }
+        }
+
+        // Queries from a port other than the mDNS port come from simple
+        // resolvers which expect a unicast reply echoing the question
+        if (source.getPort() != mPort) {
+            response.mId = query.mId;
+            response.mQuestions.addAll(query.mQuestions);
+            send(response, source);
+        } else {
+            send(response, null);
+        }
+    }
+
+    /**
+     * Determine if the querier already has a record with enough TTL left
+     */
+    private static boolean isKnownAnswer(DnsMessage query, DnsMessage.Record record) {
+        for (DnsMessage.Record known : query.mAnswers) {
+            if (known.isSameAs(record) && known.mTtl >= record.mTtl / 2) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add the records in a response to the cache
+     */
+    private void processResponse(DnsMessage response, long now) {
+        if (mListener == null) {
+            return;
+        }
+        List<DnsMessage.Record> records = new ArrayList<>(response.mAnswers);
+        records.addAll(response.mAdditional);
+        for (DnsMessage.Record record : records) {
+            if (record.mFlush) {
+                flush(record);
+            }
+        }
+        for (DnsMessage.Record record : records) {
+            String key = getKey(record);
+            if (record.mTtl == 0) {
+                mCache.remove(key);
+            } else {
+                mCache.put(key, new CacheEntry(record, now));
+            }
+        }
+        updateDevices();
+    }
+
+    /**
+     * Remove cached records with the same name and type as a unique record
+     */
+    private void flush(DnsMessage.Record record) {
+        Iterator<CacheEntry> iterator = mCache.values().iterator();
+        while (iterator.hasNext()) {
+            DnsMessage.Record cached = iterator.next().mRecord;
+            if (cached.mType == record.mType && cached.mName.equalsIgnoreCase(record.mName)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Remove expired records from the cache
+     */
+    private void expireCache(long now) {
+        boolean changed = false;
+        Iterator<CacheEntry> iterator = mCache.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().mExpires <= now) {
+                iterator.remove();
+                changed = true;
+            }
+        }
+        if (changed) {
+            updateDevices();
+        }
+    }
+
+    /**
+     * Report devices that are now complete or that have disappeared
+     */
+    private void updateDevices() {
+        List<String> instanceNames = getInstanceNames();
+        for (String instanceName : instanceNames) {
+            String name = DnsMessage.firstLabel(instanceName);
+            DnsMessage.Record srv = find(instanceName, DnsMessage.TYPE_SRV);
+            if (srv == null) {
+                continue;
+            }
+            List<InetAddress> addresses = getAddresses(srv.mTarget);
+            if (addresses.isEmpty()) {
+                continue;
+            }
+            DnsMessage.Record txt = find(instanceName, DnsMessage.TYPE_TXT);
+            String uuid = txt == null ? null : txt.mAttributes.get(Device.UUID);
+            Device device = new Device(name, uuid == null ? "" : uuid,
+                    addresses.toArray(new InetAddress[addresses.size()]), srv.mPort);
+            Device previous = mDevices.get(name);
+            if (previous == null ||
+                    !Arrays.equals(previous.getAddresses(), device.getAddresses()) ||
+                    previous.getPort() != device.getPort() ||
+                    !previous.getUuid().equals(device.getUuid())) {
+                mDevices.put(name, device);
+                mListener.onDeviceFound(device);
+            }
+        }
+        Iterator<String> iterator = mDevices.keySet().iterator();
+        while (iterator.hasNext()) {
+            String name = iterator.next();
+            boolean found = false;
+            for (String instanceName : instanceNames) {
+                if (DnsMessage.firstLabel(instanceName).equals(name)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                iterator.remove();
+                mListener.onDeviceLost(name);
+            }
+        }
+    }
+
+    /**
+     * Retrieve the names of all cached instances of the service type
+     *
+     * The instance being advertised is excluded.
+     */
+    private List<String> getInstanceNames() {
+        List<String> instanceNames = new ArrayList<>();
+        for (CacheEntry entry : mCache.values()) {
+            DnsMessage.Record record = entry.mRecord;
+            if (record.mType == DnsMessage.TYPE_PTR && record.mName.equalsIgnoreCase(mServiceType) &&
+                    !record.mTarget.equalsIgnoreCase(mInstanceName)) {
+                instanceNames.add(record.mTarget);
+            }
+        }
+        return instanceNames;
+    }
+
+    /**
+     * Find a cached record with the specified name and type
+     */
+    private DnsMessage.Record find(String name, int type) {
+        for (CacheEntry entry : mCache.values()) {
+            DnsMessage.Record record = entry.mRecord;
+            if (record.mType == type && record.mName.equalsIgnoreCase(name)) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Retrieve cached addresses for a host, IPv4 addresses first
+     */
+    private List<InetAddress> getAddresses(String hostName) {
+        List<InetAddress> addresses = new ArrayList<>();
+        for (CacheEntry entry : mCache.values()) {
+            DnsMessage.Record record = entry.mRecord;
+            if ((record.mType == DnsMessage.TYPE_A || record.mType == DnsMessage.TYPE_AAAA) &&
+                    record.mName.equalsIgnoreCase(hostName)) {
+                if (record.mType == DnsMessage.TYPE_A) {
+                    addresses.add(0, record.mAddress);
+                } else {
+                    addresses.add(record.mAddress);
+                }
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Create a key that identifies a record by name, type and data
+     */
+    private static String getKey(DnsMessage.Record record) {
+        String data;
+        switch (record.mType) {
+            case DnsMessage.TYPE_PTR:
+            case DnsMessage.TYPE_SRV:
+                data = record.mTarget.toLowerCase(Locale.US) + ":" + record.mPort;
+                break;
+            case DnsMessage.TYPE_TXT:
+                data = "";
+                break;
+            default:
+                data = record.mAddress.getHostAddress();
+        }
+        return record.mName.toLowerCase(Locale.US) + "/" + record.mType + "/" + data;
+    }
+
+    /**
+     * Send a goodbye (records with a TTL of zero) for the advertised service
+     */
+    private void sendGoodbye() {
+        DnsMessage message = new DnsMessage();
+        message.mResponse = true;
+        message.mAnswers.add(mRecords.get(0).withTtl(0));
+        send(message, null);
+    }
+
+    /**
+     * Send a message to the multicast group or the specified address
+     *
+     * A message that cannot be sent (for example, because the network is
+     * briefly unreachable) is logged and dropped; it will be sent again with
+     * the next announcement or query.
+     */
+    private void send(DnsMessage message, InetSocketAddress address) {
+        try {
+            byte[] data = message.toByteArray();
+            if (address == null) {
+                mSocket.send(new DatagramPacket(data, data.length, mGroup, mPort));
+            } else {
+                mSocket.send(new DatagramPacket(data, data.length, address));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, String.format("unable to send message: %s", e.getMessage()));
+        }
+    }
+
+    /**
+     * Find the addresses that should be advertised for this device
+     *
+     * Link-local IPv6 addresses are omitted since they are unusable without a
+     * scope. Loopback addresses are only used if there is nothing else.
+     */
+    private static List<InetAddress> getLocalAddresses() throws SocketException {
+        List<InetAddress> addresses = new ArrayList<>();
+        List<InetAddress> loopbackAddresses = new ArrayList<>();
+        for (NetworkInterface networkInterface :
+                Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!networkInterface.isUp()) {
+                continue;
+            }
+            for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+                if (address instanceof Inet6Address && address.isLinkLocalAddress()) {
+                    continue;
+                }
+                if (address.isLoopbackAddress()) {
+                    loopbackAddresses.add(address);
+                } else {
+                    addresses.add(address);
+                }
+            }
+        }
+        return addresses.isEmpty() ? loopbackAddresses : addresses;
+    }
+}
@@ -0,0 +1,191 @@
+package net.nitroshare.android.transfer;
+
+import com.google.gson.annotations.SerializedName;
+
+import net.nitroshare.android.discovery.Device;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optional protocol features supported by a device
+ *
+ * The sender includes its capabilities in the header of the first transfer
+ * on a connection. A receiver that understands them replies with the
+ * features both devices support before sending anything else, so the
+ * exchange does not add a round trip. Older receivers ignore the offer and
+ * the connection continues with the original protocol. Lists are in order
+ * of preference and the first entry both devices support is used.
+ *
+ * The outcome is remembered for each device so that later connections can
+ * respect the peer's limits from the first packet and do not offer
+ * capabilities to devices that ignored them. An entry no longer applies once
+ * the device is found on a different port (or with a different UUID) since
+ * it was probably restarted or updated. Devices that ignored the offer are
+ * offered capabilities again after LEGACY_TTL in case they were updated in
+ * place.
+ */
+class Capabilities {
+
+    /**
+     * Current version of the capability exchange
+     */
+    static final int VERSION = 1;
+
+    /**
+     * Transfer and item headers encoded as JSON (the original encoding)
+     */
+    static final String ENCODING_JSON = "json";
+
+    /**
+     * Time in milliseconds after which a device that ignored the offer is asked again
+     */
+    static final long LEGACY_TTL = 10 * 60 * 1000;
+
+    /**
+     * Capabilities agreed upon with a device and how it was reached
+     */
+    private static class CacheEntry {
+
+        final Capabilities mCapabilities;
+        final int mPort;
+        final long mTime;
+
+        CacheEntry(Capabilities capabilities, int port, long time) {
+            mCapabilities = capabilities;
+            mPort = port;
+            mTime = time;
+        }
+    }
+
+    // Capabilities agreed upon with each device
+    private static final Map<String, CacheEntry> sCache = new HashMap<>();
+
+    int version;
+    boolean session;
+    @SerializedName("max_frame_size")
+    int maxFrameSize;
+    @SerializedName("header_encodings")
+    List<String> headerEncodings;
+    List<String> compression;
+    List<String> checksums;
+    boolean resume;
+    boolean keepalive;
+
+    /**
+     * Create the capabilities supported by this device
+     *
+     * No compression codecs or checksum algorithms are implemented yet and
+     * resuming is not supported; they are exchanged so that peers that add
+     * them can agree on them.
+     */
+    static Capabilities local() {
+        Capabilities capabilities = new Capabilities();
+        capabilities.version = VERSION;
+        capabilities.session = true;
+        capabilities.maxFrameSize = Packet.MAX_SIZE;
+        capabilities.headerEncodings = Arrays.asList(ENCODING_JSON);
+        capabilities.compression = new ArrayList<>();
+        capabilities.checksums = new ArrayList<>();
+        capabilities.resume = false;
+        capabilities.keepalive = true;
+        return capabilities;
+    }
+
+    /**
+     * Create capabilities for a device that did not respond to the offer
+     */
+    private static Capabilities legacy() {
+        Capabilities capabilities = new Capabilities();
+        capabilities.maxFrameSize = Packet.MAX_SIZE;
+        return capabilities;
+    }
+
+    /**
+     * Determine the capabilities supported by both this device and another
+     * @param remote capabilities of the other device
+     * @return agreed capabilities
+     */
+    Capabilities negotiate(Capabilities remote) {
+        Capabilities agreed = new Capabilities();
+        agreed.version = Math.min(version, remote.version);
+        agreed.session = session && remote.session;
+        agreed.maxFrameSize = remote.maxFrameSize > 0 ?
+                Math.min(maxFrameSize, remote.maxFrameSize) : maxFrameSize;
+        agreed.headerEncodings = intersect(headerEncodings, remote.headerEncodings);
+        if (agreed.headerEncodings.isEmpty()) {
+            agreed.headerEncodings.add(ENCODING_JSON);
+        }
+        agreed.compression = intersect(compression, remote.compression);
+        agreed.checksums = intersect(checksums, remote.checksums);
+        agreed.resume = resume && remote.resume;
+        agreed.keepalive = keepalive && remote.keepalive;
+        return agreed;
+    }
+
+    /**
+     * Determine if the device ignored the capability offer
+     */
+    boolean isLegacy() {
+        return version == 0;
+    }
+
+    /**
+     * Retrieve the capabilities agreed upon with a device
+     * @param device device to look up
+     * @return capabilities or null if they are not known
+     */
+    static Capabilities getCached(Device device) {
+        return getCached(device, System.currentTimeMillis());
+    }
+
+    /**
+     * Retrieve the capabilities agreed upon with a device as of the specified time
+     */
+    static Capabilities getCached(Device device, long now) {
+        String key = Connector.getKey(device);
+        synchronized (sCache) {
+            CacheEntry entry = sCache.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.mPort != device.getPort() ||
+                    (entry.mCapabilities.isLegacy() && now - entry.mTime > LEGACY_TTL)) {
+                sCache.remove(key);
+                return null;
+            }
+            return entry.mCapabilities;
+        }
+    }
+
+    /**
+     * Remember the capabilities agreed upon with a device
+     * @param device device the capabilities were agreed with
+     * @param capabilities agreed capabilities or null if the offer was ignored
+     */
+    static void putCached(Device device, Capabilities capabilities) {
+        synchronized (sCache) {
+            sCache.put(Connector.getKey(device), new CacheEntry(
+                    capabilities == null ? legacy() : capabilities,
+                    device.getPort(), System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Keep the entries from the first list that are also in the second
+     */
+    private static List<String> intersect(List<String> preferred, List<String> other) {
+        List<String> result = new ArrayList<>();
+        if (preferred != null && other != null) {
+            for (String value : preferred) {
+                if (other.contains(value)) {
+                    result.add(value);
+                }
+            }
+        }
+        return result;
+    }
+}
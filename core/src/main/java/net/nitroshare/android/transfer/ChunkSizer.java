@@ -0,0 +1,68 @@
+package net.nitroshare.android.transfer;
+
+/**
+ * Choose the size of BINARY packets based on observed throughput
+ *
+ * Packets start small so that the first progress update arrives quickly. The
+ * time taken for each packet to drain into the socket is used to estimate
+ * throughput and the size moves toward the amount of data that can be written
+ * in TARGET_DURATION. It can at most double or halve after each packet.
+ * The receiver's limit is applied last, so packets never exceed it even if
+ * it is smaller than MIN_SIZE.
+ */
+class ChunkSizer {
+
+    /**
+     * Smallest (and initial) packet size unless the receiver's limit is lower
+     */
+    static final int MIN_SIZE = 16384;
+
+    /**
+     * Largest packet size that will be sent
+     */
+    static final int MAX_SIZE = 4194304;
+
+    private static final long TARGET_DURATION = 100000000L;
+
+    private final int mMaxSize;
+
+    private int mSize;
+    private long mStart;
+
+    /**
+     * Create a sizer that never exceeds the specified size
+     * @param maxSize largest size the receiver will accept
+     */
+    ChunkSizer(int maxSize) {
+        mMaxSize = Math.max(1, Math.min(MAX_SIZE, maxSize));
+        mSize = Math.min(MIN_SIZE, mMaxSize);
+    }
+
+    /**
+     * Retrieve the size to use for the next packet
+     */
+    int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Indicate that a packet is about to be written
+     */
+    void begin() {
+        mStart = System.nanoTime();
+    }
+
+    /**
+     * Indicate that the packet has been completely written to the socket
+     * @param numBytes number of bytes in the packet
+     */
+    void end(int numBytes) {
+        long elapsed = Math.max(System.nanoTime() - mStart, 1);
+        long targetSize = numBytes * TARGET_DURATION / elapsed;
+        int newSize = (int) Math.max(mSize / 2, Math.min((long) mSize * 2, targetSize));
+
+        // Keep the size a multiple of 4 KiB to play nicely with disk reads
+        newSize = Math.min(mMaxSize, Math.max(MIN_SIZE, newSize & ~4095));
+        mSize = newSize;
+    }
+}
@@ -0,0 +1,351 @@
+package net.nitroshare.android.transfer;
+
+import net.nitroshare.android.discovery.Device;
+import net.nitroshare.android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keep idle connections to recently used devices
+ *
+ * After a transfer to a device succeeds, a new connection to it is opened in
+ * the background and held until the next transfer to the device takes it,
+ * which then begins sending immediately. Nothing is sent on an idle
+ * connection; the TransferServer on the other end holds connections until
+ * data arrives or its own timeout expires.
+ *
+ * Idle connections are closed if the remote end closes them, once they have
+ * been idle for too long or (least recently used first) when there are more
+ * of them than the limit allows.
+ *
+ * A transfer only takes a connection if it cannot join a Session with the
+ * device, and no connection is opened to a device that has one. Instead, a
+ * session that closes after being idle for a while warms a connection to its
+ * device, so the pool serves devices that support sessions as well as those
+ * that do not (older versions of the app).
+ */
+class ConnectionPool implements Runnable {
+
+    private static final String TAG = "ConnectionPool";
+
+    /**
+     * Idle connection to a device
+     */
+    private static class Entry {
+
+        final Device mDevice;
+        final SocketChannel mSocketChannel;
+        final long mTime = System.currentTimeMillis();
+        SelectionKey mKey;
+
+        Entry(Device device, SocketChannel socketChannel) {
+            mDevice = device;
+            mSocketChannel = socketChannel;
+        }
+    }
+
+    private final Thread mThread = new Thread(this);
+    private volatile boolean mStop = false;
+
+    private final Selector mSelector = Selector.open();
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    private long mIdleTimeout;
+    private int mMaxIdle;
+    private long mConnectTimeout;
+
+    // Idle connections in order of use and those not yet registered
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final List<Entry> mUnregistered = new ArrayList<>();
+
+    // Devices with a connection being established
+    private final Set<String> mConnecting = new HashSet<>();
+
+    /**
+     * Create a connection pool and start watching idle connections
+     * @param idleTimeout time in milliseconds after which idle connections are closed
+     * @param maxIdle maximum number of idle connections
+     * @param connectTimeout maximum time in milliseconds to spend connecting
+     */
+    ConnectionPool(long idleTimeout, int maxIdle, long connectTimeout) throws IOException {
+        configure(idleTimeout, maxIdle, connectTimeout);
+        mThread.start();
+    }
+
+    /**
+     * Change the limits, closing any connections that now exceed them
+     * @param idleTimeout time in milliseconds after which idle connections are closed
+     * @param maxIdle maximum number of idle connections
+     * @param connectTimeout maximum time in milliseconds to spend connecting
+     */
+    synchronized void configure(long idleTimeout, int maxIdle, long connectTimeout) {
+        mIdleTimeout = idleTimeout;
+        mMaxIdle = maxIdle;
+        mConnectTimeout = connectTimeout;
+        evictExcess();
+        mSelector.wakeup();
+    }
+
+    /**
+     * Open an idle connection to the device in the background
+     * @param device device to connect to
+     *
+     * Nothing is done if there is already a connection or session with the device.
+     */
+    synchronized void warm(final Device device) {
+        final String key = Connector.getKey(device);
+        if (mStop || mMaxIdle <= 0 || mEntries.containsKey(key) || mConnecting.contains(key) ||
+                Session.find(device) != null) {
+            return;
+        }
+        mConnecting.add(key);
+        final long connectTimeout = mConnectTimeout;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                SocketChannel socketChannel = null;
+                try {
+                    Selector selector = Selector.open();
+                    try {
+                        socketChannel = new Connector(device, connectTimeout).connect(selector);
+                    } finally {
+                        selector.close();
+                    }
+                } catch (IOException e) {
+                    Log.d(TAG, String.format("unable to connect to \"%s\": %s",
+                            device.getName(), e.getMessage()));
+                }
+                add(key, device, socketChannel);
+            }
+        });
+    }
+
+    /**
+     * Add a newly established connection to the pool
+     */
+    private synchronized void add(String key, Device device, SocketChannel socketChannel) {
+        mConnecting.remove(key);
+        if (socketChannel == null) {
+            return;
+        }
+        if (mStop) {
+            close(socketChannel);
+            return;
+        }
+        Log.d(TAG, String.format("holding connection to \"%s\"", device.getName()));
+        Entry entry = new Entry(device, socketChannel);
+        mEntries.put(key, entry);
+        mUnregistered.add(entry);
+        evictExcess();
+        mSelector.wakeup();
+    }
+
+    /**
+     * Take the idle connection to the device (if there is one)
+     * @param device device to connect to
+     * @return connected channel or null if there is no usable connection
+     *
+     * The connection is only returned if the device is still at the address
+     * it was made to and the remote end has not closed it.
+     */
+    synchronized SocketChannel take(Device device) {
+        Entry entry = remove(Connector.getKey(device));
+        if (entry == null) {
+            return null;
+        }
+        SocketChannel socketChannel = entry.mSocketChannel;
+        if (!isSameAddress(device, socketChannel) || !isOpen(socketChannel)) {
+            close(socketChannel);
+            mSelector.wakeup();
+            return null;
+        }
+        Log.d(TAG, String.format("reusing connection to \"%s\"", device.getName()));
+        return socketChannel;
+    }
+
+    /**
+     * Retrieve the number of idle connections
+     */
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Close all idle connections and stop watching them
+     */
+    void close() {
+        synchronized (this) {
+            mStop = true;
+        }
+        mExecutor.shutdownNow();
+        mSelector.wakeup();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Log.e(TAG, e.getMessage());
+        }
+    }
+
+    /**
+     * Determine if the channel is connected to one of the device's addresses
+     */
+    private static boolean isSameAddress(Device device, SocketChannel socketChannel) {
+        if (socketChannel.socket().getPort() != device.getPort()) {
+            return false;
+        }
+        InetAddress remoteAddress = socketChannel.socket().getInetAddress();
+        for (InetAddress address : device.getAddresses()) {
+            if (address.equals(remoteAddress)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determine if the remote end has left the connection open and silent
+     */
+    private static boolean isOpen(SocketChannel socketChannel) {
+        try {
+            return socketChannel.read(ByteBuffer.allocate(1)) == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void close(SocketChannel socketChannel) {
+        try {
+            socketChannel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Remove an entry from the pool without closing its connection
+     */
+    private Entry remove(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            if (entry.mKey == null) {
+                mUnregistered.remove(entry);
+            } else {
+                entry.mKey.cancel();
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Close the least recently used connections beyond the limit
+     */
+    private void evictExcess() {
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mEntries.size() > Math.max(0, mMaxIdle) && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            iterator.remove();
+            if (entry.mKey == null) {
+                mUnregistered.remove(entry);
+            }
+            close(entry.mSocketChannel);
+        }
+    }
+
+    /**
+     * Close connections that have been idle too long
+     * @return time in milliseconds until the next connection expires or 0
+     */
+    private long expireIdle() {
+        long now = System.currentTimeMillis();
+        long next = 0;
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            long remaining = entry.mTime + mIdleTimeout - now;
+            if (remaining <= 0) {
+                Log.d(TAG, String.format("closing idle connection to \"%s\"",
+                        entry.mDevice.getName()));
+                iterator.remove();
+                if (entry.mKey == null) {
+                    mUnregistered.remove(entry);
+                }
+                close(entry.mSocketChannel);
+            } else if (next == 0 || remaining < next) {
+                next = remaining;
+            }
+        }
+        return next;
+    }
+
+    @Override
+    public void run() {
+        long timeout = 0;
+        try {
+            while (true) {
+                mSelector.select(timeout);
+                synchronized (this) {
+                    if (mStop) {
+                        break;
+                    }
+
+                    // Watch new connections for the remote end closing them
+                    for (Entry entry : mUnregistered) {
+                        try {
+                            entry.mKey = entry.mSocketChannel.register(
+                                    mSelector, SelectionKey.OP_READ, entry);
+                        } catch (IOException e) {
+                            remove(Connector.getKey(entry.mDevice));
+                            close(entry.mSocketChannel);
+                        }
+                    }
+                    mUnregistered.clear();
+
+                    // An idle connection becomes readable when the remote end
+                    // closes it (or misbehaves) and it can no longer be used
+                    for (SelectionKey key : mSelector.selectedKeys()) {
+                        Entry entry = (Entry) key.attachment();
+                        if (key.isValid() && !isOpen(entry.mSocketChannel)) {
+                            Log.d(TAG, String.format("connection to \"%s\" was closed",
+                                    entry.mDevice.getName()));
+                            remove(Connector.getKey(entry.mDevice));
+                            close(entry.mSocketChannel);
+                        }
+                    }
+                    mSelector.selectedKeys().clear();
+
+                    timeout = expireIdle();
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+        }
+
+        // Close everything that remains
+        synchronized (this) {
+            mStop = true;
+            for (Entry entry : mEntries.values()) {
+                close(entry.mSocketChannel);
+            }
+            mEntries.clear();
+            mUnregistered.clear();
+        }
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+        }
+    }
+}
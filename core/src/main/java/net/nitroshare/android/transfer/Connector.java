@@ -0,0 +1,185 @@
+package net.nitroshare.android.transfer;
+
+import net.nitroshare.android.discovery.Device;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Connect to a device by racing attempts to each of its addresses
+ *
+ * This follows the "happy eyeballs" approach: a connection attempt to the
+ * next address begins every ATTEMPT_DELAY (or as soon as an attempt fails)
+ * while earlier attempts are still pending, and the first to succeed is used.
+ * Addresses alternate between families, starting with the family that won
+ * the last time this device was connected to (IPv4 if it is not known).
+ *
+ * The whole process is abandoned once the timeout elapses.
+ */
+class Connector {
+
+    // Delay before starting the next attempt
+    private static final long ATTEMPT_DELAY = 250;
+
+    // Family of the address that last succeeded for each device
+    private static final Map<String, Boolean> sPreferIpv6 = new HashMap<>();
+
+    private final Device mDevice;
+    private final long mTimeout;
+    private volatile boolean mCancelled = false;
+
+    /**
+     * Create a connector for the specified device
+     * @param device device to connect to
+     * @param timeout maximum time to spend connecting in milliseconds
+     */
+    Connector(Device device, long timeout) {
+        mDevice = device;
+        mTimeout = timeout;
+    }
+
+    /**
+     * Abandon connecting (the selector must be woken up separately)
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Key used to identify connections to a device
+     * @param device device being connected to
+     * @return key for the device
+     */
+    static String getKey(Device device) {
+        return device.getName() + "/" + device.getUuid();
+    }
+
+    /**
+     * Order the addresses so that the two families alternate
+     */
+    private List<InetAddress> orderAddresses() {
+        Boolean preferIpv6;
+        synchronized (sPreferIpv6) {
+            preferIpv6 = sPreferIpv6.get(getKey(mDevice));
+        }
+        LinkedList<InetAddress> preferred = new LinkedList<>();
+        LinkedList<InetAddress> other = new LinkedList<>();
+        for (InetAddress address : mDevice.getAddresses()) {
+            boolean ipv6 = address instanceof Inet6Address;
+            (ipv6 == (preferIpv6 != null && preferIpv6) ? preferred : other).add(address);
+        }
+        List<InetAddress> addresses = new ArrayList<>();
+        while (!preferred.isEmpty() || !other.isEmpty()) {
+            if (!preferred.isEmpty()) {
+                addresses.add(preferred.removeFirst());
+            }
+            if (!other.isEmpty()) {
+                addresses.add(other.removeFirst());
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Connect to the device
+     * @param selector selector to use while waiting for connections
+     * @return connected (non-blocking) channel
+     * @throws IOException if no connection could be established
+     */
+    SocketChannel connect(Selector selector) throws IOException {
+        List<InetAddress> addresses = orderAddresses();
+        if (addresses.isEmpty()) {
+            throw new IOException("no address for device");
+        }
+        List<SocketChannel> pending = new ArrayList<>();
+        SocketChannel winner = null;
+        IOException lastError = null;
+        long deadline = System.currentTimeMillis() + mTimeout;
+        long nextAttempt = 0;
+        int next = 0;
+        try {
+            while (winner == null) {
+                if (mCancelled || Thread.currentThread().isInterrupted()) {
+                    throw new IOException("transfer was cancelled");
+                }
+                long now = System.currentTimeMillis();
+                if (now >= deadline) {
+                    throw new IOException("connection timed out");
+                }
+
+                // Begin the next attempt if it is due
+                if (next < addresses.size() && (now >= nextAttempt || pending.isEmpty())) {
+                    InetAddress address = addresses.get(next++);
+                    nextAttempt = now + ATTEMPT_DELAY;
+                    SocketChannel socketChannel = SocketChannel.open();
+                    try {
+                        socketChannel.configureBlocking(false);
+                        if (socketChannel.connect(new InetSocketAddress(address, mDevice.getPort()))) {
+                            winner = socketChannel;
+                            break;
+                        }
+                        socketChannel.register(selector, SelectionKey.OP_CONNECT);
+                        pending.add(socketChannel);
+                    } catch (IOException e) {
+                        socketChannel.close();
+                        lastError = e;
+                    }
+                    continue;
+                }
+                if (pending.isEmpty()) {
+                    throw lastError == null ? new IOException("unable to connect") : lastError;
+                }
+
+                // Wait for an attempt to complete or for the next one to be due
+                long timeout = deadline - now;
+                if (next < addresses.size()) {
+                    timeout = Math.min(timeout, nextAttempt - now);
+                }
+                selector.select(Math.max(1, timeout));
+                for (SelectionKey key : selector.selectedKeys()) {
+                    SocketChannel socketChannel = (SocketChannel) key.channel();
+                    if (winner != null || !key.isConnectable()) {
+                        continue;
+                    }
+                    try {
+                        if (socketChannel.finishConnect()) {
+                            key.cancel();
+                            pending.remove(socketChannel);
+                            winner = socketChannel;
+                        }
+                    } catch (IOException e) {
+                        pending.remove(socketChannel);
+                        socketChannel.close();
+                        lastError = e;
+                        nextAttempt = 0;
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } finally {
+            for (SocketChannel socketChannel : pending) {
+                socketChannel.close();
+            }
+        }
+
+        // Deregister the cancelled keys so that the winner can be registered again
+        selector.selectNow();
+        selector.selectedKeys().clear();
+
+        // Remember the family that won
+        synchronized (sPreferIpv6) {
+            sPreferIpv6.put(getKey(mDevice), winner.socket().getInetAddress() instanceof Inet6Address);
+        }
+        return winner;
+    }
+}
@@ -0,0 +1,247 @@
+package net.nitroshare.android.transfer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters for the transfer engine as a whole
+ *
+ * These are updated by the sessions and the transfer server as they work
+ * and written out in the Prometheus text format by MetricsServer. Counters
+ * are plain atomics so that updating them costs about as much as an
+ * increment; histograms use fixed buckets for the same reason.
+ */
+class EngineMetrics {
+
+    // Causes of failed transfers and turned away connections
+    static final int CAUSE_BUSY = 0;      // connection turned away
+    static final int CAUSE_CANCELLED = 1; // stopped on this device
+    static final int CAUSE_NETWORK = 2;   // connection failed or closed
+    static final int CAUSE_REMOTE = 3;    // remote device reported an error
+    static final int CAUSE_TIMEOUT = 4;   // connection silent or too slow
+    static final int CAUSE_TRANSFER = 5;  // error reading or writing items
+
+    private static final String[] CAUSES = {
+            "busy", "cancelled", "network", "remote", "timeout", "transfer"
+    };
+
+    // Reasons for changing the number of transfers received at once
+    static final int LIMIT_NETWORK = 0;     // raised: waiting on the network
+    static final int LIMIT_STORAGE = 1;     // raised: storage keeping up
+    static final int LIMIT_SLOW_WRITES = 2; // lowered: writes slowed down
+    static final int LIMIT_THROUGHPUT = 3;  // lowered: throughput dropped
+
+    static final String[] LIMIT_REASONS = {
+            "network", "storage", "slow_writes", "throughput"
+    };
+    private static final String[] LIMIT_DIRECTIONS = {
+            "increase", "increase", "decrease", "decrease"
+    };
+
+    /**
+     * Histogram with fixed upper bounds
+     */
+    static class Histogram {
+
+        private final long[] mBounds;
+        private final String[] mLabels;
+        private final double mScale;
+        private final AtomicLongArray mCounts;
+        private final AtomicLong mSum = new AtomicLong();
+
+        /**
+         * Create a histogram
+         * @param bounds upper bound of each bucket in recorded units
+         * @param labels bounds as they appear in the output
+         * @param scale factor converting recorded units to output units
+         */
+        Histogram(long[] bounds, String[] labels, double scale) {
+            mBounds = bounds;
+            mLabels = labels;
+            mScale = scale;
+            mCounts = new AtomicLongArray(bounds.length + 1);
+        }
+
+        void observe(long value) {
+            int i = 0;
+            while (i < mBounds.length && value > mBounds[i]) {
+                i++;
+            }
+            mCounts.incrementAndGet(i);
+            mSum.addAndGet(value);
+        }
+
+        /**
+         * Write the histogram in the Prometheus text format
+         */
+        void write(StringBuilder out, String name, String help) {
+            writeHeader(out, name, help, "histogram");
+            long cumulative = 0;
+            for (int i = 0; i <= mBounds.length; i++) {
+                cumulative += mCounts.get(i);
+                out.append(name).append("_bucket{le=\"")
+                        .append(i < mBounds.length ? mLabels[i] : "+Inf")
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            out.append(name).append("_sum ").append(mSum.get() * mScale).append('\n');
+            out.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+
+    private static final AtomicLong sBytesReceived = new AtomicLong();
+    private static final AtomicLong sBytesSent = new AtomicLong();
+    private static final AtomicLong sConnectionsAccepted = new AtomicLong();
+    private static final AtomicLong sConnectionsRejected = new AtomicLong();
+    private static final AtomicLongArray sErrors = new AtomicLongArray(CAUSES.length);
+    private static final AtomicLongArray sLimitChanges = new AtomicLongArray(LIMIT_REASONS.length);
+
+    private static volatile int sActiveSends;
+    private static volatile int sActiveReceives;
+    private static volatile int sQueuedSends;
+    private static volatile int sQueuedReceives;
+    private static volatile int sReceiveLimit;
+    private static volatile ConnectionPool sConnectionPool;
+
+    // Average throughput of each successful transfer (bytes per second)
+    private static final Histogram sThroughput = new Histogram(
+            new long[]{65536, 262144, 1048576, 4194304, 16777216, 67108864},
+            new String[]{"65536", "262144", "1048576", "4194304", "16777216", "67108864"},
+            1);
+
+    // Time taken by each read or write of item content (nanoseconds)
+    private static final Histogram sStorageLatency = new Histogram(
+            new long[]{100000, 500000, 1000000, 5000000, 10000000, 50000000, 100000000, 500000000},
+            new String[]{"0.0001", "0.0005", "0.001", "0.005", "0.01", "0.05", "0.1", "0.5"},
+            1e-9);
+
+    private EngineMetrics() {
+    }
+
+    static void addBytesReceived(int numBytes) {
+        if (numBytes > 0) {
+            sBytesReceived.addAndGet(numBytes);
+        }
+    }
+
+    static void addBytesSent(int numBytes) {
+        if (numBytes > 0) {
+            sBytesSent.addAndGet(numBytes);
+        }
+    }
+
+    static void connectionAccepted() {
+        sConnectionsAccepted.incrementAndGet();
+    }
+
+    static void connectionRejected() {
+        sConnectionsRejected.incrementAndGet();
+        sErrors.incrementAndGet(CAUSE_BUSY);
+    }
+
+    /**
+     * Record a failed transfer
+     * @param cause one of the CAUSE_* constants
+     */
+    static void transferFailed(int cause) {
+        sErrors.incrementAndGet(cause);
+    }
+
+    static void transferSucceeded(long throughput) {
+        sThroughput.observe(throughput);
+    }
+
+    static void recordStorageLatency(long nanos) {
+        sStorageLatency.observe(nanos);
+    }
+
+    /**
+     * Update the number of transfers in progress and waiting
+     */
+    static void setTransfers(int activeSends, int activeReceives, int queuedSends, int queuedReceives) {
+        sActiveSends = activeSends;
+        sActiveReceives = activeReceives;
+        sQueuedSends = queuedSends;
+        sQueuedReceives = queuedReceives;
+    }
+
+    /**
+     * Update the number of transfers that may be received at once
+     * @param receiveLimit current limit or 0 if there is none
+     */
+    static void setReceiveLimit(int receiveLimit) {
+        sReceiveLimit = receiveLimit;
+    }
+
+    /**
+     * Record a change to the number of transfers received at once
+     * @param reason one of the LIMIT_* constants
+     */
+    static void receiveLimitChanged(int reason) {
+        sLimitChanges.incrementAndGet(reason);
+    }
+
+    /**
+     * Set the pool of idle connections to report on (or null if there is none)
+     */
+    static void setConnectionPool(ConnectionPool connectionPool) {
+        sConnectionPool = connectionPool;
+    }
+
+    private static void writeHeader(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void writeValue(StringBuilder out, String name, String help, String type, long value) {
+        writeHeader(out, name, help, type);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void writeDirections(StringBuilder out, String name, String help, int sends, int receives) {
+        writeHeader(out, name, help, "gauge");
+        out.append(name).append("{direction=\"send\"} ").append(sends).append('\n');
+        out.append(name).append("{direction=\"receive\"} ").append(receives).append('\n');
+    }
+
+    /**
+     * Write all metrics in the Prometheus text format
+     * @param out destination (appended to)
+     */
+    static void write(StringBuilder out) {
+        writeDirections(out, "nitroshare_transfers_active",
+                "Transfers in progress", sActiveSends, sActiveReceives);
+        writeDirections(out, "nitroshare_transfers_queued",
+                "Transfers waiting to start", sQueuedSends, sQueuedReceives);
+        writeValue(out, "nitroshare_receive_limit",
+                "Transfers that may be received at once (0 for no limit)", "gauge", sReceiveLimit);
+        writeHeader(out, "nitroshare_receive_limit_changes_total",
+                "Changes made to the receive limit", "counter");
+        for (int i = 0; i < LIMIT_REASONS.length; i++) {
+            out.append("nitroshare_receive_limit_changes_total{direction=\"")
+                    .append(LIMIT_DIRECTIONS[i]).append("\",reason=\"")
+                    .append(LIMIT_REASONS[i]).append("\"} ")
+                    .append(sLimitChanges.get(i)).append('\n');
+        }
+        writeValue(out, "nitroshare_received_bytes_total",
+                "Bytes read from connections", "counter", sBytesReceived.get());
+        writeValue(out, "nitroshare_sent_bytes_total",
+                "Bytes written to connections", "counter", sBytesSent.get());
+        writeValue(out, "nitroshare_connections_accepted_total",
+                "Incoming connections accepted", "counter", sConnectionsAccepted.get());
+        writeValue(out, "nitroshare_connections_rejected_total",
+                "Incoming connections turned away", "counter", sConnectionsRejected.get());
+        ConnectionPool connectionPool = sConnectionPool;
+        writeValue(out, "nitroshare_connection_pool_idle",
+                "Idle connections held open", "gauge",
+                connectionPool == null ? 0 : connectionPool.size());
+        writeHeader(out, "nitroshare_errors_total", "Failed transfers and turned away connections", "counter");
+        for (int i = 0; i < CAUSES.length; i++) {
+            out.append("nitroshare_errors_total{cause=\"").append(CAUSES[i]).append("\"} ")
+                    .append(sErrors.get(i)).append('\n');
+        }
+        sThroughput.write(out, "nitroshare_transfer_throughput_bytes_per_second",
+                "Average throughput of successful transfers");
+        sStorageLatency.write(out, "nitroshare_storage_latency_seconds",
+                "Time taken by each read or write of item content");
+    }
+}
@@ -0,0 +1,170 @@
+package net.nitroshare.android.transfer;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ring buffer of recent events in the transfer engine
+ *
+ * Events are recorded by the session threads without locking: each claims
+ * the next slot with an atomic increment and overwrites whatever was there.
+ * A slot's sequence number is cleared before its fields are written and
+ * published after, so export() can tell complete events from ones that were
+ * being overwritten while it read them and skip the latter. The fields are
+ * kept in atomic arrays so that neither the writes nor export()'s reads can
+ * be reordered across the sequence number. When disabled, recording an
+ * event costs a single volatile read.
+ *
+ * The trace is exported in the Chrome trace event format, which can be
+ * loaded into chrome://tracing or Perfetto.
+ */
+public class EventTrace {
+
+    /**
+     * Number of events retained (must be a power of two)
+     */
+    static final int CAPACITY = 8192;
+
+    // Event types
+    static final int WAKEUP = 0;     // value is the time spent waiting (ns)
+    static final int READ = 1;       // value is the number of bytes read
+    static final int WRITE = 2;      // value is the number of bytes written
+    static final int PACKET_IN = 3;  // value is the size of the packet
+    static final int PACKET_OUT = 4; // value is the size of the packet
+    static final int ITEM_OPEN = 5;  // value is the size of the item
+    static final int ITEM_CLOSE = 6; // value is unused
+    static final int DISK = 7;       // value is the time taken (ns)
+
+    private static final String[] NAMES = {
+            "wakeup", "read", "write", "packet in", "packet out", "item", "item", "disk"
+    };
+
+    private static volatile boolean sEnabled = true;
+
+    private static final AtomicLong sNext = new AtomicLong();
+    private static final AtomicLongArray sSequence = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray sTimes = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray sValues = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray sThreads = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray sTransfers = new AtomicLongArray(CAPACITY);
+
+    // Stream in the upper bits and type in the lowest byte
+    private static final AtomicLongArray sStreamTypes = new AtomicLongArray(CAPACITY);
+
+    private EventTrace() {
+    }
+
+    /**
+     * Enable or disable recording of events
+     */
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * Record an event that does not belong to a transfer
+     * @param type one of the event types
+     * @param stream stream the event belongs to or 0 for the session
+     * @param value meaning depends on the type
+     */
+    static void record(int type, int stream, long value) {
+        record(type, 0, stream, value);
+    }
+
+    /**
+     * Record an event
+     * @param type one of the event types
+     * @param transfer ID of the transfer the event belongs to (see Transfer.getTransferId())
+     * @param stream stream the event belongs to or 0 for the session
+     * @param value meaning depends on the type
+     */
+    static void record(int type, long transfer, int stream, long value) {
+        if (!sEnabled) {
+            return;
+        }
+        long sequence = sNext.getAndIncrement();
+        int i = (int) (sequence & (CAPACITY - 1));
+        sSequence.lazySet(i, 0);
+        sTimes.lazySet(i, System.nanoTime());
+        sValues.lazySet(i, value);
+        sThreads.lazySet(i, Thread.currentThread().getId());
+        sTransfers.lazySet(i, transfer);
+        sStreamTypes.lazySet(i, ((long) stream << 8) | type);
+        sSequence.lazySet(i, sequence + 1);
+    }
+
+    /**
+     * Write the retained events as a JSON trace (oldest first)
+     * @param writer destination for the trace
+     */
+    public static void export(Writer writer) throws IOException {
+        JsonWriter jsonWriter = new JsonWriter(writer);
+        jsonWriter.beginObject();
+        jsonWriter.name("displayTimeUnit").value("ns");
+        jsonWriter.name("traceEvents").beginArray();
+        long end = sNext.get();
+        for (long sequence = Math.max(0, end - CAPACITY); sequence < end; ++sequence) {
+            int i = (int) (sequence & (CAPACITY - 1));
+            if (sSequence.get(i) != sequence + 1) {
+                continue;
+            }
+            long time = sTimes.get(i);
+            long value = sValues.get(i);
+            long thread = sThreads.get(i);
+            long transfer = sTransfers.get(i);
+            long streamType = sStreamTypes.get(i);
+            if (sSequence.get(i) != sequence + 1) {
+                continue;
+            }
+            writeEvent(jsonWriter, (int) (streamType & 0xff), transfer, (int) (streamType >> 8),
+                    time, value, thread);
+        }
+        jsonWriter.endArray();
+        jsonWriter.endObject();
+        jsonWriter.flush();
+    }
+
+    private static void writeEvent(JsonWriter jsonWriter, int type, long transfer, int stream,
+                                   long time, long value, long thread) throws IOException {
+        boolean duration = type == WAKEUP || type == DISK;
+        jsonWriter.beginObject();
+        jsonWriter.name("name").value(NAMES[type]);
+        jsonWriter.name("pid").value(0);
+        jsonWriter.name("tid").value(thread);
+        switch (type) {
+            case ITEM_OPEN:
+            case ITEM_CLOSE:
+                // Items in different transfers overlap so use async events;
+                // streams are only unique within a session so use the transfer
+                jsonWriter.name("ph").value(type == ITEM_OPEN ? "b" : "e");
+                jsonWriter.name("cat").value("item");
+                jsonWriter.name("id").value(transfer);
+                break;
+            default:
+                jsonWriter.name("ph").value(duration ? "X" : "i");
+                if (!duration) {
+                    jsonWriter.name("s").value("t");
+                }
+        }
+        if (duration) {
+            jsonWriter.name("ts").value((time - value) / 1000.0);
+            jsonWriter.name("dur").value(value / 1000.0);
+        } else {
+            jsonWriter.name("ts").value(time / 1000.0);
+        }
+        jsonWriter.name("args").beginObject();
+        jsonWriter.name("stream").value(stream);
+        if (transfer != 0) {
+            jsonWriter.name("transfer").value(transfer);
+        }
+        if (!duration && type != ITEM_CLOSE) {
+            jsonWriter.name("bytes").value(value);
+        }
+        jsonWriter.endObject();
+        jsonWriter.endObject();
+    }
+}
@@ -0,0 +1,173 @@
+package net.nitroshare.android.transfer;
+
+import net.nitroshare.android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Serve engine metrics over HTTP in the Prometheus text format
+ *
+ * Requests are handled one at a time on a single thread, which is plenty
+ * for a scraper polling every few seconds. The request, response and
+ * metrics text are built in buffers that are reused from one request to
+ * the next.
+ */
+class MetricsServer implements Runnable {
+
+    private static final String TAG = "MetricsServer";
+
+    // Requests that are not received within this many milliseconds are dropped
+    private static final int READ_TIMEOUT = 5000;
+
+    // Request line prefix (the path may be followed by a query string)
+    private static final String REQUEST_PREFIX = "GET /metrics";
+
+    private final Thread mThread = new Thread(this);
+    private final ServerSocket mServerSocket;
+
+    private final byte[] mRequest = new byte[4096];
+    private final StringBuilder mBody = new StringBuilder(8192);
+    private final StringBuilder mHeaders = new StringBuilder(256);
+    private byte[] mResponse = new byte[8192];
+
+    /**
+     * Create a server listening on the specified port
+     * @param port TCP port to listen on
+     */
+    MetricsServer(int port) throws IOException {
+        mServerSocket = new ServerSocket();
+        mServerSocket.setReuseAddress(true);
+        mServerSocket.bind(new InetSocketAddress(port));
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    /**
+     * Stop the server and wait for it to finish
+     */
+    void stop() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Log.e(TAG, e.getMessage());
+        }
+    }
+
+    /**
+     * Read the request headers
+     * @return number of bytes read or -1 if the request was incomplete
+     */
+    private int readRequest(InputStream inputStream) throws IOException {
+        int length = 0;
+        while (length < mRequest.length) {
+            int numBytes = inputStream.read(mRequest, length, mRequest.length - length);
+            if (numBytes < 0) {
+                return -1;
+            }
+            length += numBytes;
+            for (int i = Math.max(3, length - numBytes); i < length; i++) {
+                if (mRequest[i - 3] == '\r' && mRequest[i - 2] == '\n' &&
+                        mRequest[i - 1] == '\r' && mRequest[i] == '\n') {
+                    return length;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Determine if the request line asks for the metrics
+     */
+    private boolean isMetricsRequest(int length) {
+        if (length <= REQUEST_PREFIX.length()) {
+            return false;
+        }
+        for (int i = 0; i < REQUEST_PREFIX.length(); i++) {
+            if (mRequest[i] != REQUEST_PREFIX.charAt(i)) {
+                return false;
+            }
+        }
+        byte next = mRequest[REQUEST_PREFIX.length()];
+        return next == ' ' || next == '?';
+    }
+
+    /**
+     * Write the headers and body as a single response
+     */
+    private void writeResponse(OutputStream outputStream) throws IOException {
+        int length = mHeaders.length() + mBody.length();
+        if (mResponse.length < length) {
+            mResponse = new byte[Math.max(length, mResponse.length * 2)];
+        }
+        int offset = 0;
+        for (int i = 0; i < mHeaders.length(); i++) {
+            mResponse[offset++] = (byte) mHeaders.charAt(i);
+        }
+        for (int i = 0; i < mBody.length(); i++) {
+            mResponse[offset++] = (byte) mBody.charAt(i);
+        }
+        outputStream.write(mResponse, 0, length);
+        outputStream.flush();
+    }
+
+    /**
+     * Respond to a single request
+     */
+    private void handle(Socket socket) throws IOException {
+        socket.setSoTimeout(READ_TIMEOUT);
+        int length = readRequest(socket.getInputStream());
+        if (length < 0) {
+            return;
+        }
+        mBody.setLength(0);
+        mHeaders.setLength(0);
+        if (isMetricsRequest(length)) {
+            EngineMetrics.write(mBody);
+            mHeaders.append("HTTP/1.1 200 OK\r\n")
+                    .append("Content-Type: text/plain; version=0.0.4\r\n");
+        } else {
+            mBody.append("not found\n");
+            mHeaders.append("HTTP/1.1 404 Not Found\r\n")
+                    .append("Content-Type: text/plain\r\n");
+        }
+        mHeaders.append("Content-Length: ").append(mBody.length()).append("\r\n")
+                .append("Connection: close\r\n\r\n");
+        writeResponse(socket.getOutputStream());
+    }
+
+    @Override
+    public void run() {
+        Log.i(TAG, String.format("serving metrics on port %d", mServerSocket.getLocalPort()));
+        while (true) {
+            Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                break;
+            }
+            try {
+                handle(socket);
+            } catch (IOException e) {
+                Log.w(TAG, e.getMessage());
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        Log.i(TAG, "metrics server stopped");
+    }
+}
@@ -0,0 +1,212 @@
+package net.nitroshare.android.transfer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Individual packet of information in a transfer
+ *
+ * Transfers are (at a high level) essentially a stream of packets being
+ * exchanged back and forth. The packet format is described here:
+ * https://goo.gl/fL890p
+ *
+ * Once a session has been agreed upon (see Session), packets for additional
+ * transfers on the connection are framed: FRAMED is set in the type and a
+ * 32-bit stream ID follows it.
+ */
+class Packet {
+
+    /**
+     * Transfer succeeded
+     *
+     * This packet is sent by the receiver to indicate the transfer succeeded
+     * and the connection may be closed.
+     */
+    static final int SUCCESS = 0;
+
+    /**
+     * Transfer failed
+     *
+     * This packet is sent by either end to indicate an error. The content of
+     * packet describes the error.
+     */
+    static final int ERROR = 1;
+
+    /**
+     * JSON data
+     */
+    static final int JSON = 2;
+
+    /**
+     * Binary data
+     */
+    static final int BINARY = 3;
+
+    /**
+     * Keepalive
+     *
+     * This packet is sent by either end of a session when it has sent nothing
+     * else for a while, if both ends agreed to it. It has no content.
+     */
+    static final int KEEPALIVE = 4;
+
+    /**
+     * Flag set in the type of packets that include a stream ID
+     */
+    static final int FRAMED = 0x80;
+
+    /**
+     * Largest packet that will be accepted from the remote device
+     *
+     * This is larger than anything the sender will produce but guards against
+     * allocating an absurd buffer when a corrupt size is received.
+     */
+    static final int MAX_SIZE = 16777216;
+
+    private int mType;
+    private int mStream;
+    private int mHeaderSize = 5;
+    private ByteBuffer mBuffer;
+    private boolean mHaveSize = false;
+
+    /**
+     * Retrieve the packet type
+     * @return packet type
+     */
+    int getType() {
+        return mType;
+    }
+
+    /**
+     * Retrieve the stream the packet belongs to
+     * @return stream ID or 0 if the packet is not framed
+     */
+    int getStream() {
+        return mStream;
+    }
+
+    /**
+     * Retrieve the number of bytes preceding the data on the wire
+     * @return 5 for plain packets or 9 for framed packets
+     */
+    int getHeaderSize() {
+        return mHeaderSize;
+    }
+
+    /**
+     * Retrieve the buffer for the packet
+     * @return byte array
+     */
+    ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Determine if the buffer is full
+     * @return true if full
+     */
+    boolean isFull() {
+        return mBuffer.position() == mBuffer.capacity();
+    }
+
+    /**
+     * Create an empty packet
+     */
+    Packet() {
+        mBuffer = ByteBuffer.allocate(9);
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        mBuffer.limit(5);
+    }
+
+    Packet(int type) {
+        this(type, null);
+    }
+
+    /**
+     * Create a packet of the specified type with the specified data
+     */
+    Packet(int type, byte[] data) {
+        this(type, data, data == null ? 0 : data.length);
+    }
+
+    Packet(int type, byte[] data, int length) {
+        this(type, 0, data, length);
+    }
+
+    /**
+     * Create a packet for the specified stream (framed unless the stream is 0)
+     */
+    Packet(int type, int stream, byte[] data, int length) {
+        mType = type;
+        mStream = stream;
+        int headerSize = stream == 0 ? 5 : 9;
+        mHeaderSize = headerSize;
+        mBuffer = ByteBuffer.allocate(headerSize + length);
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        mBuffer.putInt(headerSize - 4 + length);
+        if (stream == 0) {
+            mBuffer.put((byte) type);
+        } else {
+            mBuffer.put((byte) (type | FRAMED)).putInt(stream);
+        }
+        if (data != null) {
+            mBuffer.put(data, 0, length);
+        }
+        mBuffer.flip();
+    }
+
+    /**
+     * Read a packet from a channel (normally the session's socket)
+     * @return number of bytes read
+     * @throws EOFException if the connection was closed
+     */
+    int read(ReadableByteChannel channel) throws IOException {
+        int numBytes = 0;
+
+        // If the 32-bit size hasn't yet been read, do so
+        if (!mHaveSize) {
+            int numRead = channel.read(mBuffer);
+            if (numRead < 0) {
+                throw new EOFException("connection closed unexpectedly");
+            }
+            numBytes += numRead;
+
+            // Framed packets have a 32-bit stream ID after the type
+            if (mBuffer.position() == 5 && mBuffer.limit() == 5 &&
+                    (mBuffer.get(4) & FRAMED) != 0) {
+                mBuffer.limit(9);
+                numBytes += Math.max(channel.read(mBuffer), 0);
+            }
+            if (mBuffer.hasRemaining()) {
+                return numBytes;
+            }
+
+            // Remaining data is 8-bit type and data
+            mBuffer.flip();
+            int size = mBuffer.getInt() - 1;
+            mType = mBuffer.get() & 0xff;
+            if ((mType & FRAMED) != 0) {
+                mType &= ~FRAMED;
+                mStream = mBuffer.getInt();
+                mHeaderSize = 9;
+                size -= 4;
+            }
+            if (size < 0 || size > MAX_SIZE) {
+                throw new IOException("packet size out of range");
+            }
+            mBuffer = ByteBuffer.allocate(size);
+            mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            mHaveSize = true;
+        }
+
+        // The size is known, read data into the buffer
+        int numRead = channel.read(mBuffer);
+        if (numRead < 0) {
+            throw new EOFException("connection closed unexpectedly");
+        }
+        return numBytes + numRead;
+    }
+}
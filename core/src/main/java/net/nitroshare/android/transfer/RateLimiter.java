@@ -0,0 +1,307 @@
+package net.nitroshare.android.transfer;
+
+import net.nitroshare.android.discovery.Device;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Limit the rate at which transfers are sent
+ *
+ * Each packet must pass through three token buckets: one for the transfer,
+ * one for the device it is sent to and one shared by all transfers. A limit
+ * of 0 disables the corresponding bucket. The limits are ceilings rather
+ * than reservations, so capacity left unused by an idle transfer or device
+ * is available to the others under the shared limit.
+ *
+ * A packet may be sent whenever no bucket is in debt; its size is then
+ * deducted, possibly leaving the buckets in debt until they refill. This
+ * means a packet is never delayed by more than the time taken to repay the
+ * one before it.
+ *
+ * Packets are kept no larger than the amount of data each bucket refills
+ * in BURST. Otherwise a single large packet could leave the buckets in debt
+ * for seconds, stalling every transfer that shares them.
+ *
+ * Device buckets that have been idle for DEVICE_EXPIRY and are not in debt
+ * are dropped, so the limiter does not keep one for every device it has
+ * ever sent to.
+ *
+ * The limits are read again every RELOAD_INTERVAL so that they
+ * can be changed at any time. They can be restricted to certain hours of
+ * the day (for example "09:00-17:00", which may wrap around midnight).
+ */
+class RateLimiter {
+
+    private static final long RELOAD_INTERVAL = 1000;
+
+    /**
+     * Time in milliseconds after which an unused device bucket is dropped
+     */
+    static final long DEVICE_EXPIRY = 60000;
+
+    // Unused capacity is kept for at most this many milliseconds
+    private static final long BURST = 100;
+
+    /**
+     * Smallest packet size returned by getMaxChunkSize()
+     */
+    static final int MIN_CHUNK_SIZE = 4096;
+
+    /**
+     * Source of the configured limits
+     */
+    interface Limits {
+
+        /**
+         * Retrieve a limit in KiB/s (0 for no limit)
+         */
+        int getRate();
+        int getDeviceRate();
+        int getTransferRate();
+
+        /**
+         * Retrieve the hours the limits apply (see isWithinHours())
+         */
+        String getHours();
+    }
+
+    /**
+     * Token bucket for a single limit
+     */
+    private static class Bucket {
+
+        private long mRate;
+        private double mTokens;
+        private long mLast = System.currentTimeMillis();
+
+        void setRate(long rate) {
+            mRate = rate;
+        }
+
+        long getRate() {
+            return mRate;
+        }
+
+        long getLast() {
+            return mLast;
+        }
+
+        /**
+         * Add the tokens accumulated since the last refill
+         */
+        void refill(long now) {
+            if (mRate > 0) {
+                mTokens = Math.min(mTokens + mRate * (now - mLast) / 1000.0,
+                        mRate * BURST / 1000.0);
+            } else {
+                mTokens = 0;
+            }
+            mLast = now;
+        }
+
+        /**
+         * Determine how long until the bucket is out of debt
+         * @return time in milliseconds (0 if a packet may be sent now)
+         */
+        long getDelay() {
+            if (mRate <= 0 || mTokens >= 0) {
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil(-mTokens * 1000 / mRate));
+        }
+
+        void consume(int numBytes) {
+            if (mRate > 0) {
+                mTokens -= numBytes;
+            }
+        }
+    }
+
+    private final Limits mLimits;
+    private long mLastReload;
+
+    private long mDeviceRate;
+    private long mTransferRate;
+
+    private final Bucket mGlobal = new Bucket();
+    private final Map<String, Bucket> mDevices = new HashMap<>();
+    private final Map<Transfer, Bucket> mTransfers = new WeakHashMap<>();
+
+    /**
+     * Create a rate limiter
+     * @param limits source of the limits
+     */
+    RateLimiter(Limits limits) {
+        mLimits = limits;
+    }
+
+    /**
+     * Determine if the current time is within the hours the limits apply
+     * @param hours range in the form "HH:MM-HH:MM" or empty for all day
+     */
+    static boolean isWithinHours(String hours, Calendar now) {
+        if (hours == null || hours.trim().isEmpty()) {
+            return true;
+        }
+        String[] range = hours.trim().split("-");
+        if (range.length != 2) {
+            return true;
+        }
+        int start = parseTime(range[0]);
+        int end = parseTime(range[1]);
+        if (start < 0 || end < 0) {
+            return true;
+        }
+        int minute = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+        return start <= end ?
+                minute >= start && minute < end :
+                minute >= start || minute < end;
+    }
+
+    /**
+     * Parse a time in the form "HH:MM"
+     * @return minutes since midnight or -1 if the time is invalid
+     */
+    private static int parseTime(String time) {
+        String[] parts = time.trim().split(":");
+        try {
+            int hour = Integer.parseInt(parts[0]);
+            int minute = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+            if (hour < 0 || hour > 24 || minute < 0 || minute > 59) {
+                return -1;
+            }
+            return hour * 60 + minute;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Read the limits again if they may have changed
+     */
+    private void reload(long now) {
+        if (now - mLastReload < RELOAD_INTERVAL) {
+            return;
+        }
+        mLastReload = now;
+        expire(now);
+        boolean active = isWithinHours(mLimits.getHours(), Calendar.getInstance());
+        mGlobal.setRate(active ? mLimits.getRate() * 1024L : 0);
+        long deviceRate = active ? mLimits.getDeviceRate() * 1024L : 0;
+        long transferRate = active ? mLimits.getTransferRate() * 1024L : 0;
+        if (deviceRate != mDeviceRate) {
+            mDeviceRate = deviceRate;
+            for (Bucket bucket : mDevices.values()) {
+                bucket.setRate(mDeviceRate);
+            }
+        }
+        if (transferRate != mTransferRate) {
+            mTransferRate = transferRate;
+            for (Bucket bucket : mTransfers.values()) {
+                bucket.setRate(mTransferRate);
+            }
+        }
+    }
+
+    /**
+     * Drop device buckets that are no longer needed
+     * @param now current time in milliseconds
+     */
+    synchronized void expire(long now) {
+        Iterator<Bucket> iterator = mDevices.values().iterator();
+        while (iterator.hasNext()) {
+            Bucket bucket = iterator.next();
+            if (now - bucket.getLast() < DEVICE_EXPIRY) {
+                continue;
+            }
+            bucket.refill(now);
+            if (bucket.getDelay() == 0) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Retrieve the number of devices with a bucket
+     */
+    synchronized int getNumDevices() {
+        return mDevices.size();
+    }
+
+    private Bucket getDeviceBucket(Device device) {
+        String key = Connector.getKey(device);
+        Bucket bucket = mDevices.get(key);
+        if (bucket == null) {
+            bucket = new Bucket();
+            bucket.setRate(mDeviceRate);
+            mDevices.put(key, bucket);
+        }
+        return bucket;
+    }
+
+    private Bucket getTransferBucket(Transfer transfer) {
+        Bucket bucket = mTransfers.get(transfer);
+        if (bucket == null) {
+            bucket = new Bucket();
+            bucket.setRate(mTransferRate);
+            mTransfers.put(transfer, bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     * Determine how long the transfer must wait before sending its next packet
+     * @param device device the transfer is sent to
+     * @param transfer transfer about to send
+     * @return time in milliseconds (0 if it may send now)
+     */
+    synchronized long getDelay(Device device, Transfer transfer) {
+        long now = System.currentTimeMillis();
+        reload(now);
+        Bucket deviceBucket = getDeviceBucket(device);
+        Bucket transferBucket = getTransferBucket(transfer);
+        mGlobal.refill(now);
+        deviceBucket.refill(now);
+        transferBucket.refill(now);
+        return Math.max(mGlobal.getDelay(),
+                Math.max(deviceBucket.getDelay(), transferBucket.getDelay()));
+    }
+
+    /**
+     * Determine the largest packet the transfer should send
+     * @param device device the transfer is sent to
+     * @param transfer transfer about to send
+     * @return size in bytes (0 if the transfer is not limited)
+     */
+    synchronized int getMaxChunkSize(Device device, Transfer transfer) {
+        reload(System.currentTimeMillis());
+        long rate = 0;
+        for (Bucket bucket : new Bucket[]{mGlobal, getDeviceBucket(device),
+                getTransferBucket(transfer)}) {
+            if (bucket.getRate() > 0) {
+                rate = rate == 0 ? bucket.getRate() : Math.min(rate, bucket.getRate());
+            }
+        }
+        if (rate == 0) {
+            return 0;
+        }
+        long maxSize = Math.min(rate * BURST / 1000, Integer.MAX_VALUE) & ~4095;
+        return (int) Math.max(MIN_CHUNK_SIZE, maxSize);
+    }
+
+    /**
+     * Deduct a packet that is being sent
+     * @param device device the transfer is sent to
+     * @param transfer transfer sending the packet
+     * @param numBytes size of the packet
+     */
+    synchronized void consume(Device device, Transfer transfer, int numBytes) {
+        mGlobal.consume(numBytes);
+        getDeviceBucket(device).consume(numBytes);
+        getTransferBucket(transfer).consume(numBytes);
+    }
+}
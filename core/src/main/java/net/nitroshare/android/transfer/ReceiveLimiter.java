@@ -0,0 +1,199 @@
+package net.nitroshare.android.transfer;
+
+import net.nitroshare.android.util.Log;
+
+/**
+ * Adjust the number of transfers received at once to suit the storage
+ *
+ * The limit starts at the maximum and is only lowered on evidence that
+ * storage is struggling. Receiving transfers report how long each write to
+ * storage takes. Every WINDOW the total throughput and the average time
+ * taken to write a byte are compared with what was seen before. Once writes
+ * take more than LATENCY_FACTOR times the baseline, or an increase lowered
+ * throughput, the limit is halved. While every allowed transfer is busy and
+ * writes are not slowing down, the limit grows by one again. Storage that
+ * copes well with parallel writes therefore settles on a higher limit than
+ * storage that does not.
+ *
+ * Windows end when the next write is recorded or when poll() is invoked,
+ * which the owner does periodically. A window in which nothing was written
+ * while every allowed transfer was busy means that the transfers are
+ * waiting on the network rather than storage, so the limit grows.
+ *
+ * The baseline drifts upward slowly so that a burst of fast writes (into
+ * the page cache, for example) does not hold the limit down indefinitely.
+ *
+ * Each change is logged and counted in EngineMetrics along with its reason.
+ */
+class ReceiveLimiter {
+
+    private static final String TAG = "ReceiveLimiter";
+
+    /**
+     * Length of the window over which writes are measured
+     */
+    static final long WINDOW = 2000;
+
+    private static final double LATENCY_FACTOR = 2.0;
+    private static final double BASELINE_DRIFT = 1.1;
+    private static final double THROUGHPUT_TOLERANCE = 0.9;
+
+    /**
+     * Largest limit used when there is no upper bound
+     */
+    static final int MAX_LIMIT = 8;
+
+    /**
+     * Listener for changes to the limit
+     */
+    interface Listener {
+        void onLimitChanged(int limit);
+    }
+
+    private final Listener mListener;
+
+    private int mLimit = MAX_LIMIT;
+    private int mMaxLimit = MAX_LIMIT;
+    private int mActive;
+
+    private long mWindowStart = System.currentTimeMillis();
+    private long mWindowBytes;
+    private long mWindowNanos;
+    private boolean mWindowSaturated = true;
+
+    private double mBaseline;
+    private long mLastThroughput;
+    private boolean mLastIncreased;
+
+    /**
+     * Create a limiter
+     * @param listener callback for changes to the limit
+     */
+    ReceiveLimiter(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Retrieve the current limit
+     */
+    synchronized int getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * Set the largest limit that may be chosen
+     * @param maxLimit upper bound or 0 for MAX_LIMIT
+     */
+    synchronized void setMaxLimit(int maxLimit) {
+        mMaxLimit = maxLimit > 0 ? maxLimit : MAX_LIMIT;
+        mLimit = Math.min(mLimit, mMaxLimit);
+    }
+
+    /**
+     * Indicate how many transfers are being received
+     */
+    synchronized void setActive(int active) {
+        mActive = active;
+        if (active < mLimit) {
+            mWindowSaturated = false;
+        }
+    }
+
+    /**
+     * Record a write to storage by a receiving transfer
+     * @param numBytes number of bytes written
+     * @param nanos time taken in nanoseconds
+     */
+    void recordWrite(int numBytes, long nanos) {
+        synchronized (this) {
+            mWindowBytes += numBytes;
+            mWindowNanos += nanos;
+        }
+        poll(System.currentTimeMillis());
+    }
+
+    /**
+     * End the current window if it has run its course
+     *
+     * This must be invoked periodically so that the limit is still adjusted
+     * while nothing is written.
+     */
+    void poll() {
+        poll(System.currentTimeMillis());
+    }
+
+    /**
+     * End the current window if it has run its course by the specified time
+     */
+    void poll(long now) {
+        int limit;
+        synchronized (this) {
+            if (now - mWindowStart < WINDOW) {
+                return;
+            }
+            limit = evaluate(now);
+        }
+        if (limit != 0) {
+            mListener.onLimitChanged(limit);
+        }
+    }
+
+    /**
+     * Decide whether to change the limit at the end of a window
+     * @return new limit or 0 if it did not change
+     */
+    private int evaluate(long now) {
+        boolean idle = mWindowBytes == 0;
+        long throughput = mWindowBytes * 1000 / (now - mWindowStart);
+        double latency = (double) mWindowNanos / Math.max(mWindowBytes, 1);
+        boolean saturated = mWindowSaturated && mActive >= mLimit;
+        mWindowStart = now;
+        mWindowBytes = 0;
+        mWindowNanos = 0;
+        mWindowSaturated = true;
+
+        // Nothing was written, so there is nothing to learn about storage
+        if (idle) {
+            mLastIncreased = false;
+            if (!saturated || mLimit >= mMaxLimit) {
+                return 0;
+            }
+            return change(mLimit + 1, 0, 0, EngineMetrics.LIMIT_NETWORK);
+        }
+
+        // Track the fastest writes seen recently
+        mBaseline = mBaseline == 0 ? latency : Math.min(latency, mBaseline * BASELINE_DRIFT);
+
+        int limit = mLimit;
+        int reason = 0;
+        if (latency > mBaseline * LATENCY_FACTOR) {
+            limit = Math.max(1, mLimit / 2);
+            reason = EngineMetrics.LIMIT_SLOW_WRITES;
+        } else if (mLastIncreased && throughput < mLastThroughput * THROUGHPUT_TOLERANCE) {
+            limit = Math.max(1, mLimit / 2);
+            reason = EngineMetrics.LIMIT_THROUGHPUT;
+        } else if (saturated && mLimit < mMaxLimit) {
+            limit = mLimit + 1;
+            reason = EngineMetrics.LIMIT_STORAGE;
+        }
+        mLastIncreased = limit > mLimit;
+        mLastThroughput = throughput;
+        if (limit == mLimit) {
+            return 0;
+        }
+        return change(limit, throughput, latency, reason);
+    }
+
+    /**
+     * Change the limit and record the reason
+     * @param reason one of the EngineMetrics.LIMIT_* constants
+     * @return new limit
+     */
+    private int change(int limit, long throughput, double latency, int reason) {
+        Log.i(TAG, String.format("limit %d -> %d (%s, %d B/s, %.1f ns/B)",
+                mLimit, limit, EngineMetrics.LIMIT_REASONS[reason], throughput, latency));
+        mLimit = limit;
+        EngineMetrics.receiveLimitChanged(reason);
+        return limit;
+    }
+}
@@ -0,0 +1,710 @@
+package net.nitroshare.android.transfer;
+
+import net.nitroshare.android.discovery.Device;
+import net.nitroshare.android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Connection carrying one or more transfers
+ *
+ * The first transfer on a connection uses plain packets, exactly as older
+ * versions of the protocol do. Its header offers the sender's Capabilities
+ * and a receiver that understands them replies with the agreed capabilities
+ * before anything else. If both support sessions, the connection stays open
+ * after the first transfer completes and the sender may start more transfers
+ * on it at any time, each on its own stream with framed packets (see
+ * Packet.FRAMED). Plain packets always belong to the first transfer.
+ *
+ * Packets from different streams are interleaved: the next packet is taken
+ * from the highest priority stream that has one ready, rotating between
+ * streams of equal priority, and BINARY packets are kept small so that an
+ * interactive transfer never waits long behind bulk data. An ERROR packet
+ * on a stream only ends that stream. Streams that must wait for their
+ * RateLimiter are skipped until it allows them to send.
+ *
+ * While transfers are in progress, the connection fails if nothing is sent
+ * or received for longer than the idle timeout or if less than the minimum
+ * throughput is achieved over THROUGHPUT_WINDOW. Time spent deliberately
+ * waiting (for a bundle, a rate limit or admission of a queued transfer)
+ * does not count. If both ends agreed to keepalives, a KEEPALIVE packet is
+ * sent whenever nothing else has been for a third of the idle timeout. A
+ * sender also treats one as a sign that the receiver is deliberately not
+ * reading; a receiver does not, so that a client trickling data cannot
+ * hold a connection open indefinitely.
+ */
+class Session implements Runnable {
+
+    private static final String TAG = "Session";
+
+    /**
+     * Largest BINARY packet sent once a session has been agreed upon
+     */
+    static final int MAX_FRAME_SIZE = 262144;
+
+    // How long to wait for an incomplete bundle before checking again
+    private static final long BUNDLE_WAIT = 100;
+
+    // Sessions with no transfers are closed after these many milliseconds
+    // (the receiver waits longer so that the sender is the one to close it)
+    private static final long SENDER_IDLE_TIMEOUT = 60000;
+    private static final long RECEIVER_IDLE_TIMEOUT = 120000;
+
+    /**
+     * Default time a connection with transfers in progress may be silent
+     */
+    static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+    // Throughput is measured over windows of this many milliseconds
+    private static final long THROUGHPUT_WINDOW = 30000;
+
+    // Longest wait in select() while transfers are in progress
+    private static final long TICK = 1000;
+
+    /**
+     * Listener for streams opened by the remote device
+     */
+    interface Listener {
+        Transfer onNewStream(Session session, int stream);
+    }
+
+    // Sessions that new transfers to a device can join
+    private static final Map<String, Session> sSessions = new HashMap<>();
+
+    private final Thread mThread = new Thread(this);
+    private final SocketChannel mSocketChannel;
+    private final Selector mSelector = Selector.open();
+    private final Device mDevice;
+    private final Listener mListener;
+    private ConnectionPool mConnectionPool;
+
+    // Transfers in the order they will be given a chance to send
+    private final List<Transfer> mStreams = new ArrayList<>();
+    private boolean mClosed = false;
+
+    private Capabilities mCapabilities;
+    private boolean mUpgraded = false;
+    private boolean mFirstStreamSeen = false;
+
+    // Cause reported for transfers still in progress if the session fails
+    private int mErrorCause = EngineMetrics.CAUSE_NETWORK;
+    private int mLastStream = 0;
+
+    private Packet mReceivingPacket;
+    private int mReceivingReads;
+    private int mSendingWrites;
+    private Packet mHeldPacket;
+    private Transfer mHeldTransfer;
+    private Packet mSendingPacket;
+    private Transfer mSendingTransfer;
+    private final List<Packet> mControlPackets = new ArrayList<>();
+    private long mRateDelay;
+
+    private long mIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private volatile long mSessionTimeout;
+    private long mMinThroughput = 0;
+    private long mLastActivity = System.currentTimeMillis();
+    private long mLastSent = System.currentTimeMillis();
+    private long mWindowStart = System.currentTimeMillis();
+    private long mWindowBytes;
+    private boolean mWindowExempt;
+
+    /**
+     * Create a session for sending transfers to a device
+     * @param socketChannel connected channel
+     * @param device device the channel is connected to
+     */
+    Session(SocketChannel socketChannel, Device device) throws IOException {
+        mSocketChannel = socketChannel;
+        mSocketChannel.configureBlocking(false);
+        mDevice = device;
+        mListener = null;
+        mSessionTimeout = SENDER_IDLE_TIMEOUT;
+    }
+
+    /**
+     * Create a session for receiving transfers
+     * @param socketChannel incoming channel
+     * @param received data already read from the channel (at most 5 bytes) or null
+     * @param listener listener used to create transfers for new streams
+     */
+    Session(SocketChannel socketChannel, ByteBuffer received, Listener listener) throws IOException {
+        mSocketChannel = socketChannel;
+        mSocketChannel.configureBlocking(false);
+        mDevice = null;
+        mListener = listener;
+        mSessionTimeout = RECEIVER_IDLE_TIMEOUT;
+        if (received != null) {
+            mReceivingPacket = new Packet();
+            mReceivingPacket.getBuffer().put(received);
+        }
+    }
+
+    /**
+     * Find a session with the device that new transfers can join
+     * @param device device to send to
+     * @return session or null if there is none
+     */
+    static Session find(Device device) {
+        synchronized (sSessions) {
+            return sSessions.get(Connector.getKey(device));
+        }
+    }
+
+    /**
+     * Set the limits used to detect dead or slow connections
+     * @param idleTimeout time in milliseconds the connection may be silent
+     * @param minThroughput slowest rate accepted in bytes per second (0 for any)
+     *
+     * This method should not be invoked after starting the session.
+     */
+    void setTimeouts(long idleTimeout, long minThroughput) {
+        mIdleTimeout = idleTimeout;
+        mMinThroughput = minThroughput;
+    }
+
+    /**
+     * Change how long the session is kept open without any transfers
+     * @param sessionTimeout time in milliseconds
+     */
+    void setSessionTimeout(long sessionTimeout) {
+        mSessionTimeout = sessionTimeout;
+        mSelector.wakeup();
+    }
+
+    /**
+     * Set the pool that keeps a connection to the device once the session
+     * has been closed for being idle (or null for none)
+     */
+    void setConnectionPool(ConnectionPool connectionPool) {
+        mConnectionPool = connectionPool;
+    }
+
+    /**
+     * Determine if the connection has been closed
+     */
+    synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Close the session unless a transfer has attached to it
+     * @return true if the session was closed
+     *
+     * Transfers may attach at any time, so the decision must be made under
+     * the same lock as attach() rather than from a snapshot of the streams.
+     */
+    synchronized boolean closeIfEmpty() {
+        if (!mStreams.isEmpty()) {
+            return false;
+        }
+        mClosed = true;
+        return true;
+    }
+
+    /**
+     * Start driving the connection
+     */
+    void start() {
+        mThread.start();
+    }
+
+    /**
+     * Wake the session so that it notices stopped transfers
+     */
+    void wakeup() {
+        mSelector.wakeup();
+    }
+
+    /**
+     * Add a sending transfer to the session
+     * @param transfer transfer to add
+     * @return true if the transfer was added
+     *
+     * The first transfer is always accepted; later ones only once a session
+     * has been agreed upon and while the connection is open.
+     */
+    synchronized boolean attach(Transfer transfer) {
+        if (mClosed || (mFirstStreamSeen && !mUpgraded)) {
+            return false;
+        }
+        if (mFirstStreamSeen) {
+            transfer.setMaxChunkSize(getMaxChunkSize());
+            transfer.attach(this, ++mLastStream, false);
+        } else {
+            mFirstStreamSeen = true;
+            Capabilities cached = Capabilities.getCached(mDevice);
+            if (cached != null) {
+                transfer.setMaxChunkSize(cached.maxFrameSize);
+            }
+            transfer.attach(this, 0, cached == null || !cached.isLegacy());
+        }
+        mStreams.add(transfer);
+        mSelector.wakeup();
+        return true;
+    }
+
+    /**
+     * Largest BINARY packet that may currently be sent
+     */
+    private int getMaxChunkSize() {
+        int maxSize = mCapabilities == null ? Packet.MAX_SIZE : mCapabilities.maxFrameSize;
+        return mUpgraded ? Math.min(maxSize, MAX_FRAME_SIZE) : maxSize;
+    }
+
+    /**
+     * Apply the capabilities agreed upon by the first transfer
+     * @param capabilities agreed capabilities
+     *
+     * If both devices support sessions, the connection is kept open for
+     * further transfers.
+     */
+    synchronized void setCapabilities(Capabilities capabilities) {
+        mCapabilities = capabilities;
+        mUpgraded = capabilities.session;
+        for (Transfer transfer : mStreams) {
+            transfer.setMaxChunkSize(getMaxChunkSize());
+        }
+        if (mDevice != null) {
+            Capabilities.putCached(mDevice, capabilities);
+            if (mUpgraded) {
+                synchronized (sSessions) {
+                    sSessions.put(Connector.getKey(mDevice), this);
+                }
+            }
+        }
+        Log.i(TAG, String.format("capabilities agreed (version %d, session %b)",
+                capabilities.version, capabilities.session));
+    }
+
+    /**
+     * Find the transfer for a stream, creating one if the remote device has
+     * opened a new stream
+     * @return transfer or null if the stream has already ended
+     */
+    private Transfer getStream(int stream) throws IOException {
+        synchronized (this) {
+            for (Transfer transfer : mStreams) {
+                if (transfer.getStream() == stream) {
+                    return transfer;
+                }
+            }
+        }
+        if (mListener == null) {
+            return null;
+        }
+        if (stream == 0) {
+            if (mFirstStreamSeen) {
+                return null;
+            }
+        } else {
+            if (!mUpgraded) {
+                throw new IOException("unexpected packet");
+            }
+            if (stream <= mLastStream) {
+                return null;
+            }
+        }
+        Transfer transfer = mListener.onNewStream(this, stream);
+        synchronized (this) {
+            if (stream == 0) {
+                mFirstStreamSeen = true;
+            } else {
+                mLastStream = stream;
+            }
+            mStreams.add(transfer);
+        }
+        return transfer;
+    }
+
+    /**
+     * Remove a transfer from the session and report the outcome
+     * @param error description of the error or null if it succeeded
+     * @param notify true to tell the remote device about the error
+     *
+     * Before a session is agreed upon an error ends the connection, just as
+     * it does with older versions of the protocol.
+     */
+    private void endStream(Transfer transfer, String error, boolean notify) throws IOException {
+        if (error != null) {
+            int cause = !notify ? EngineMetrics.CAUSE_REMOTE :
+                    transfer.isStopped() ? EngineMetrics.CAUSE_CANCELLED :
+                            EngineMetrics.CAUSE_TRANSFER;
+            if (!mUpgraded) {
+                mErrorCause = cause;
+                throw new IOException(error);
+            }
+            EngineMetrics.transferFailed(cause);
+        }
+        synchronized (this) {
+            mStreams.remove(transfer);
+        }
+        if (mSendingTransfer == transfer) {
+            mSendingTransfer = null;
+        }
+        if (error == null && mDevice != null && transfer.isOfferPending()) {
+            Capabilities.putCached(mDevice, null);
+        }
+        if (error != null && notify) {
+            byte[] data = error.getBytes(Charset.forName("UTF-8"));
+            mControlPackets.add(new Packet(Packet.ERROR, transfer.getStream(), data, data.length));
+        }
+        transfer.finish(error);
+    }
+
+    /**
+     * Choose the next packet to send
+     *
+     * Streams are sorted by priority; the sort is stable so streams of equal
+     * priority keep the order they are rotated through. If no packet can be
+     * sent because of rate limits, mRateDelay is set to the time until one can.
+     */
+    private void chooseNextPacket(List<Transfer> streams) throws IOException {
+        mRateDelay = 0;
+        if (!mControlPackets.isEmpty()) {
+            mSendingPacket = mControlPackets.remove(0);
+            return;
+        }
+        Collections.sort(streams, new Comparator<Transfer>() {
+            @Override
+            public int compare(Transfer lhs, Transfer rhs) {
+                return rhs.getPriority() - lhs.getPriority();
+            }
+        });
+        for (Transfer transfer : streams) {
+            RateLimiter rateLimiter = transfer.getRateLimiter();
+            if (rateLimiter != null && mDevice != null) {
+                long delay = rateLimiter.getDelay(mDevice, transfer);
+                if (delay > 0) {
+                    mRateDelay = mRateDelay == 0 ? delay : Math.min(mRateDelay, delay);
+                    continue;
+                }
+            }
+            Packet packet;
+            try {
+                packet = transfer.nextPacket();
+            } catch (IOException e) {
+                endStream(transfer, e.getMessage(), true);
+                continue;
+            }
+            if (packet != null) {
+                if (rateLimiter != null && mDevice != null) {
+                    rateLimiter.consume(mDevice, transfer, packet.getBuffer().remaining());
+                }
+                mRateDelay = 0;
+                mSendingPacket = packet;
+                mSendingTransfer = transfer;
+                synchronized (this) {
+                    if (mStreams.remove(transfer)) {
+                        mStreams.add(transfer);
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Read the next packet and pass it to its transfer once complete
+     */
+    private void readPacket() throws IOException {
+        if (mReceivingPacket == null) {
+            mReceivingPacket = new Packet();
+        }
+        int numBytes = mReceivingPacket.read(mSocketChannel);
+        EventTrace.record(EventTrace.READ, 0, numBytes);
+        EngineMetrics.addBytesReceived(numBytes);
+        recordActivity(numBytes);
+        mReceivingReads++;
+        if (!mReceivingPacket.isFull()) {
+            return;
+        }
+        Packet packet = mReceivingPacket;
+        int numReads = mReceivingReads;
+        mReceivingPacket = null;
+        mReceivingReads = 0;
+        EventTrace.record(EventTrace.PACKET_IN, packet.getStream(), packet.getBuffer().capacity());
+        if (packet.getType() == Packet.KEEPALIVE) {
+            if (mListener == null) {
+                mWindowExempt = true;
+            }
+            return;
+        }
+        Transfer transfer = getStream(packet.getStream());
+        if (transfer == null) {
+            return;
+        }
+        transfer.packetReceived(packet, numReads);
+        if (transfer.isHoldingPackets()) {
+            mHeldPacket = packet;
+            mHeldTransfer = transfer;
+            return;
+        }
+        dispatchPacket(transfer, packet);
+    }
+
+    /**
+     * Pass a received packet to its transfer
+     */
+    private void dispatchPacket(Transfer transfer, Packet packet) throws IOException {
+        if (packet.getType() == Packet.ERROR) {
+            endStream(transfer, new String(packet.getBuffer().array(),
+                    Charset.forName("UTF-8")), false);
+            return;
+        }
+        try {
+            transfer.processPacket(packet);
+        } catch (IOException e) {
+            endStream(transfer, e.getMessage(), true);
+            return;
+        }
+        if (transfer.isComplete()) {
+            endStream(transfer, null, false);
+        }
+    }
+
+    /**
+     * Continue writing the current packet
+     */
+    private void writePacket() throws IOException {
+        int numBytes = mSocketChannel.write(mSendingPacket.getBuffer());
+        mSendingWrites++;
+        EventTrace.record(EventTrace.WRITE, 0, numBytes);
+        EngineMetrics.addBytesSent(numBytes);
+        if (numBytes > 0) {
+            mLastSent = System.currentTimeMillis();
+            recordActivity(numBytes);
+        }
+        if (mSendingPacket.isFull()) {
+            Transfer transfer = mSendingTransfer;
+            Packet packet = mSendingPacket;
+            int numWrites = mSendingWrites;
+            mSendingPacket = null;
+            mSendingTransfer = null;
+            mSendingWrites = 0;
+            EventTrace.record(EventTrace.PACKET_OUT, packet.getStream(), packet.getBuffer().capacity());
+            if (transfer != null) {
+                transfer.packetSent(packet, numWrites);
+                if (transfer.isComplete()) {
+                    endStream(transfer, null, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Note that data was sent or received
+     */
+    private void recordActivity(int numBytes) {
+        if (numBytes > 0) {
+            mLastActivity = System.currentTimeMillis();
+            mWindowBytes += numBytes;
+        }
+    }
+
+    /**
+     * Fail the connection if it has been silent or slow for too long
+     * @param waiting true if the session is deliberately not sending or reading
+     */
+    private void checkTimeouts(boolean waiting, long now) throws IOException {
+        if (waiting) {
+            mLastActivity = now;
+            mWindowExempt = true;
+        }
+        if (now - mLastActivity > mIdleTimeout) {
+            mErrorCause = EngineMetrics.CAUSE_TIMEOUT;
+            throw new IOException("connection timed out");
+        }
+        if (now - mWindowStart >= THROUGHPUT_WINDOW) {
+            if (!mWindowExempt && mMinThroughput > 0 &&
+                    mWindowBytes * 1000 < mMinThroughput * (now - mWindowStart)) {
+                mErrorCause = EngineMetrics.CAUSE_TIMEOUT;
+                throw new IOException("connection too slow");
+            }
+            mWindowStart = now;
+            mWindowBytes = 0;
+            mWindowExempt = false;
+        }
+    }
+
+    /**
+     * Determine if both ends agreed to send keepalives
+     */
+    synchronized boolean isKeepaliveAgreed() {
+        return mUpgraded && mCapabilities != null && mCapabilities.keepalive;
+    }
+
+    @Override
+    public void run() {
+        List<Transfer> streams = new ArrayList<>();
+        String error = null;
+        boolean idle = false;
+        try {
+            SelectionKey selectionKey = mSocketChannel.register(mSelector, SelectionKey.OP_READ);
+            long idleSince = System.currentTimeMillis();
+
+            while (true) {
+                synchronized (this) {
+                    streams.clear();
+                    streams.addAll(mStreams);
+                }
+
+                // Abandon any transfers that were stopped
+                for (Transfer transfer : streams) {
+                    if (transfer.isStopped()) {
+                        endStream(transfer, "transfer was cancelled", true);
+                    }
+                }
+                synchronized (this) {
+                    streams.clear();
+                    streams.addAll(mStreams);
+                }
+
+                // Once the first transfer is done, a connection without a
+                // session ends; a session ends once it has been idle too long
+                boolean waitingForBundle = false;
+                if (streams.isEmpty()) {
+                    if (mFirstStreamSeen && !mUpgraded && closeIfEmpty()) {
+                        break;
+                    }
+                    if (System.currentTimeMillis() - idleSince > mSessionTimeout) {
+                        if (closeIfEmpty()) {
+                            Log.i(TAG, "closing idle session");
+                            idle = true;
+                            break;
+                        }
+                        continue;
+                    }
+                } else {
+                    idleSince = System.currentTimeMillis();
+                    for (Transfer transfer : streams) {
+                        waitingForBundle |= transfer.isWaitingForBundle();
+                    }
+                }
+
+                // A packet for a queued transfer stops reading until the
+                // transfer is admitted (or the packet is no longer needed)
+                if (mHeldPacket != null && (!streams.contains(mHeldTransfer) ||
+                        !mHeldTransfer.isQueued())) {
+                    Packet packet = mHeldPacket;
+                    Transfer transfer = mHeldTransfer;
+                    mHeldPacket = null;
+                    mHeldTransfer = null;
+                    if (streams.contains(transfer)) {
+                        dispatchPacket(transfer, packet);
+                        continue;
+                    }
+                }
+
+                // Give up on connections that have stopped making progress
+                // (including a new connection that never completes a packet)
+                long now = System.currentTimeMillis();
+                checkTimeouts((streams.isEmpty() && mFirstStreamSeen) || waitingForBundle ||
+                        mHeldPacket != null || mRateDelay > 0, now);
+
+                // Write if there is anything to send, or else a keepalive
+                if (mSendingPacket == null) {
+                    chooseNextPacket(streams);
+                }
+                if (mSendingPacket == null && !streams.isEmpty() && isKeepaliveAgreed() &&
+                        now - mLastSent >= mIdleTimeout / 3) {
+                    mSendingPacket = new Packet(Packet.KEEPALIVE, 0, new byte[0], 0);
+                }
+                int interestOps = mHeldPacket == null ? SelectionKey.OP_READ : 0;
+                if (mSendingPacket != null) {
+                    interestOps |= SelectionKey.OP_WRITE;
+                }
+                selectionKey.interestOps(interestOps);
+
+                long timeout = 0;
+                if (waitingForBundle) {
+                    timeout = BUNDLE_WAIT;
+                } else if (streams.isEmpty()) {
+                    timeout = Math.max(1, idleSince + mSessionTimeout - System.currentTimeMillis());
+                }
+                if (mSendingPacket == null && mRateDelay > 0) {
+                    timeout = timeout == 0 ? mRateDelay : Math.min(timeout, mRateDelay);
+                }
+                if (!streams.isEmpty()) {
+                    timeout = timeout == 0 ? TICK : Math.min(timeout, TICK);
+                }
+                long waitStart = System.nanoTime();
+                mSelector.select(timeout);
+                long waited = System.nanoTime() - waitStart;
+                EventTrace.record(EventTrace.WAKEUP, 0, waited);
+                for (Transfer transfer : streams) {
+                    transfer.waited(waited);
+                }
+                if (!mSelector.selectedKeys().remove(selectionKey)) {
+                    continue;
+                }
+                if (selectionKey.isReadable()) {
+                    try {
+                        readPacket();
+                    } catch (EOFException e) {
+                        synchronized (this) {
+                            if (mStreams.isEmpty() && mSendingPacket == null) {
+                                Log.i(TAG, "session closed by remote device");
+                                mClosed = true;
+                                break;
+                            }
+                        }
+                        throw e;
+                    }
+                }
+                if (selectionKey.isValid() && selectionKey.isWritable() && mSendingPacket != null) {
+                    writePacket();
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+            error = e.getMessage();
+        }
+
+        // Prevent any more transfers from joining and close the connection
+        synchronized (this) {
+            mClosed = true;
+            streams.clear();
+            streams.addAll(mStreams);
+            mStreams.clear();
+        }
+        if (mDevice != null) {
+            synchronized (sSessions) {
+                if (sSessions.get(Connector.getKey(mDevice)) == this) {
+                    sSessions.remove(Connector.getKey(mDevice));
+                }
+            }
+        }
+        try {
+            mSocketChannel.close();
+            mSelector.close();
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+        }
+
+        // Have a connection ready for the next transfer to the device
+        if (idle && mDevice != null && mConnectionPool != null) {
+            mConnectionPool.warm(mDevice);
+        }
+
+        // Anything still in progress has failed
+        for (Transfer transfer : streams) {
+            EngineMetrics.transferFailed(transfer.isStopped() ?
+                    EngineMetrics.CAUSE_CANCELLED : mErrorCause);
+            transfer.finish(transfer.isStopped() ? "transfer was cancelled" :
+                    error == null ? "connection closed unexpectedly" : error);
+        }
+    }
+}
@@ -0,0 +1,883 @@
+package net.nitroshare.android.transfer;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
+
+import net.nitroshare.android.bundle.Bundle;
+import net.nitroshare.android.bundle.FileItem;
+import net.nitroshare.android.bundle.Item;
+import net.nitroshare.android.bundle.UrlItem;
+import net.nitroshare.android.discovery.Device;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Perform a transfer from one device to another
+ *
+ * This class takes care of the packets exchanged with another device to
+ * transfer a bundle (list of items). The connection itself is driven by a
+ * Session, which may carry other transfers at the same time.
+ */
+public class Transfer implements Runnable {
+
+    private static final Gson mGson = new Gson();
+
+    // How long to wait for a connection to be established by default
+    private static final long DEFAULT_CONNECT_TIMEOUT = 10000;
+
+    // Bundles up to this size are sent ahead of larger ones on a session
+    private static final long INTERACTIVE_SIZE = 1048576;
+
+    // How long to wait for an incomplete bundle before checking again
+    private static final long BUNDLE_WAIT = 100;
+
+    /**
+     * Priority of transfers that are small enough to overtake others
+     */
+    static final int PRIORITY_INTERACTIVE = 1;
+
+    /**
+     * Priority of all other transfers
+     */
+    static final int PRIORITY_BULK = 0;
+
+    /**
+     * Listener for status changes
+     */
+    interface StatusChangedListener {
+        void onStatusChanged(TransferStatus transferStatus);
+    }
+
+    /**
+     * Listener for item received events
+     */
+    interface ItemReceivedListener {
+        void onItemReceived(Item item);
+    }
+
+    /**
+     * Transfer header
+     */
+    private class TransferHeader {
+        String name;
+        String count;
+        String size;
+        Capabilities capabilities;
+    }
+
+    /**
+     * Reply to a capability offer
+     */
+    private static class CapabilitiesReply {
+        Capabilities capabilities;
+    }
+
+    // Internal state of the transfer
+    private enum InternalState {
+        TransferHeader,
+        ItemHeader,
+        ItemContent,
+        Finished,
+    }
+
+    private static final AtomicLong sNextTransferId = new AtomicLong();
+
+    private final long mTransferId = sNextTransferId.incrementAndGet();
+    private final TransferStatus mTransferStatus;
+    private volatile boolean mStop = false;
+    private volatile boolean mQueued = false;
+
+    private final List<StatusChangedListener> mStatusChangedListeners = new ArrayList<>();
+    private final List<ItemReceivedListener> mItemReceivedListeners = new ArrayList<>();
+
+    private Device mDevice;
+    private Bundle mBundle;
+    private String mDeviceName;
+    private String mTransferDirectory;
+    private boolean mOverwrite;
+
+    private ConnectionPool mConnectionPool;
+    private volatile Connector mConnector;
+    private long mConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private long mIdleTimeout = Session.DEFAULT_IDLE_TIMEOUT;
+    private long mMinThroughput = 0;
+
+    private volatile Session mSession;
+    private int mStream;
+    private boolean mOfferCapabilities;
+    private Capabilities mReply;
+    private int mPriority = PRIORITY_INTERACTIVE;
+    private ReceiveLimiter mReceiveLimiter;
+    private RateLimiter mRateLimiter;
+
+    private InternalState mInternalState = InternalState.TransferHeader;
+    private boolean mSuccessSent;
+    private boolean mComplete;
+
+    private ChunkSizer mChunkSizer = new ChunkSizer(Packet.MAX_SIZE);
+    private byte[] mChunk;
+
+    private int mTransferItems;
+    private long mTransferBytesTotal;
+    private long mTransferBytesTransferred;
+
+    private Item mItem;
+    private int mItemIndex;
+    private long mItemBytesRemaining;
+
+    /**
+     * Create a transfer for receiving items
+     * @param session session the items are received on
+     * @param stream stream the items are received on
+     * @param transferDirectory directory for incoming files
+     * @param overwrite true to overwrite existing files
+     * @param unknownDeviceName device name shown before being received
+     */
+    Transfer(Session session, int stream, String transferDirectory, boolean overwrite, String unknownDeviceName) {
+        mTransferStatus = new TransferStatus(unknownDeviceName,
+                TransferStatus.Direction.Receive, TransferStatus.State.Transferring);
+        mTransferDirectory = transferDirectory;
+        mOverwrite = overwrite;
+        mSession = session;
+        mStream = stream;
+    }
+
+    /**
+     * Create a transfer for sending items
+     * @param device device to connect to
+     * @param deviceName device name to send to the remote device
+     * @param bundle bundle to transfer
+     */
+    public Transfer(Device device, String deviceName, Bundle bundle) throws IOException {
+        mTransferStatus = new TransferStatus(device.getName(),
+                TransferStatus.Direction.Send, TransferStatus.State.Connecting);
+        mDevice = device;
+        mBundle = bundle;
+        mDeviceName = deviceName;
+        mTransferBytesTotal = bundle.getTotalSize();
+        mTransferStatus.setBytesTotal(mTransferBytesTotal);
+    }
+
+    /**
+     * Set the transfer ID
+     */
+    public void setId(int id) {
+        synchronized (mTransferStatus) {
+            mTransferStatus.setId(id);
+        }
+    }
+
+    /**
+     * Set the maximum time to spend connecting to the remote device
+     * @param connectTimeout timeout in milliseconds
+     */
+    public void setConnectTimeout(long connectTimeout) {
+        mConnectTimeout = connectTimeout;
+    }
+
+    /**
+     * Set the limits used to detect a dead or slow connection when sending
+     * @param idleTimeout time in milliseconds the connection may be silent
+     * @param minThroughput slowest rate accepted in bytes per second (0 for any)
+     *
+     * These only apply if the transfer starts a new session.
+     */
+    public void setTimeouts(long idleTimeout, long minThroughput) {
+        mIdleTimeout = idleTimeout;
+        mMinThroughput = minThroughput;
+    }
+
+    /**
+     * Take an idle connection from a pool instead of connecting when sending
+     * @param connectionPool pool of idle connections
+     *
+     * A connection is only taken if the transfer must start a new session.
+     */
+    void setConnectionPool(ConnectionPool connectionPool) {
+        mConnectionPool = connectionPool;
+    }
+
+    /**
+     * Retrieve the current transfer status
+     * @return copy of the current status
+     */
+    public TransferStatus getStatus() {
+        synchronized (mTransferStatus) {
+            return new TransferStatus(mTransferStatus);
+        }
+    }
+
+    /**
+     * Abort the transfer
+     */
+    void stop() {
+        mStop = true;
+        Connector connector = mConnector;
+        if (connector != null) {
+            connector.cancel();
+        }
+        Session session = mSession;
+        if (session != null) {
+            session.wakeup();
+        }
+    }
+
+    /**
+     * Add a listener for status changes
+     *
+     * This method should not be invoked after starting the transfer.
+     */
+    void addStatusChangedListener(StatusChangedListener statusChangedListener) {
+        mStatusChangedListeners.add(statusChangedListener);
+    }
+
+    /**
+     * Add a listener for items being recieved
+     *
+     * This method should not be invoked after starting the transfer.
+     */
+    void addItemReceivedListener(ItemReceivedListener itemReceivedListener) {
+        mItemReceivedListeners.add(itemReceivedListener);
+    }
+
+    /**
+     * Notify all listeners that the status has changed
+     * @param transferStatus copy of the status taken while holding its lock
+     *
+     * Listeners must not be invoked while holding the lock since they may
+     * take locks of their own that are held while retrieving the status.
+     */
+    private void notifyStatusChangedListeners(TransferStatus transferStatus) {
+        for (StatusChangedListener statusChangedListener : mStatusChangedListeners) {
+            statusChangedListener.onStatusChanged(new TransferStatus(transferStatus));
+        }
+    }
+
+    /**
+     * Update current transfer progress
+     */
+    private void updateProgress() {
+        int newProgress = (int) (100.0 * (mTransferBytesTotal != 0 ?
+                (double) mTransferBytesTransferred / (double) mTransferBytesTotal : 0.0));
+        if (newProgress != mTransferStatus.getProgress()) {
+            TransferStatus transferStatus;
+            synchronized (mTransferStatus) {
+                mTransferStatus.setProgress(newProgress);
+                mTransferStatus.setBytesTransferred(mTransferBytesTransferred);
+                transferStatus = new TransferStatus(mTransferStatus);
+            }
+            notifyStatusChangedListeners(transferStatus);
+        }
+    }
+
+    /**
+     * Create a packet for this transfer's stream
+     */
+    private Packet createPacket(int type, byte[] data) {
+        return new Packet(type, mStream, data, data == null ? 0 : data.length);
+    }
+
+    /**
+     * Decode a JSON packet
+     */
+    private Map<String, Object> parseJson(Packet packet) throws IOException {
+        Type type = new TypeToken<Map<String, Object>>(){}.getType();
+        try {
+            return mGson.fromJson(new String(
+                    packet.getBuffer().array(), Charset.forName("UTF-8")), type);
+        } catch (JsonSyntaxException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Process the transfer header
+     */
+    private void processTransferHeader(Packet packet) throws IOException {
+        TransferHeader transferHeader;
+        try {
+            transferHeader = mGson.fromJson(new String(
+                    packet.getBuffer().array(), Charset.forName("UTF-8")),
+                    TransferHeader.class);
+            mTransferItems = Integer.parseInt(transferHeader.count);
+            mTransferBytesTotal = Long.parseLong(transferHeader.size);
+        } catch (JsonSyntaxException|NumberFormatException e) {
+            throw new IOException(e.getMessage());
+        }
+        mInternalState = mItemIndex == mTransferItems ? InternalState.Finished : InternalState.ItemHeader;
+        if (mStream == 0 && transferHeader.capabilities != null) {
+            mReply = Capabilities.local().negotiate(transferHeader.capabilities);
+            mSession.setCapabilities(mReply);
+        }
+        TransferStatus transferStatus;
+        synchronized (mTransferStatus) {
+            mTransferStatus.setRemoteDeviceName(transferHeader.name);
+            mTransferStatus.setBytesTotal(mTransferBytesTotal);
+            transferStatus = new TransferStatus(mTransferStatus);
+        }
+        notifyStatusChangedListeners(transferStatus);
+    }
+
+    /**
+     * Process the header for an individual item
+     */
+    private void processItemHeader(Packet packet) throws IOException {
+        Map<String, Object> map = parseJson(packet);
+        String itemType = (String) map.get(Item.TYPE);
+        if (itemType == null) {
+            itemType = FileItem.TYPE_NAME;
+        }
+        switch (itemType) {
+            case FileItem.TYPE_NAME:
+                mItem = new FileItem(mTransferDirectory, map, mOverwrite);
+                break;
+            case UrlItem.TYPE_NAME:
+                mItem = new UrlItem(map);
+                break;
+            default:
+                throw new IOException("unrecognized item type");
+        }
+        long itemSize = mItem.getSize();
+        if (itemSize != 0) {
+            mInternalState = InternalState.ItemContent;
+            mItem.open(Item.Mode.Write);
+            mItemBytesRemaining = itemSize;
+            EventTrace.record(EventTrace.ITEM_OPEN, mTransferId, mStream, itemSize);
+        } else {
+
+            // Empty items are never opened but may have reserved a filename
+            mItem.close();
+            processNext();
+        }
+    }
+
+    /**
+     * Process item contents
+     */
+    private void processItemContent(Packet packet) throws IOException {
+        long start = System.nanoTime();
+        mItem.write(packet.getBuffer().array());
+        int numBytes = packet.getBuffer().capacity();
+        mTransferBytesTransferred += numBytes;
+        mItemBytesRemaining -= numBytes;
+        if (mItemBytesRemaining <= 0) {
+            mItem.close();
+            EventTrace.record(EventTrace.ITEM_CLOSE, mTransferId, mStream, 0);
+        }
+        long elapsed = System.nanoTime() - start;
+        EventTrace.record(EventTrace.DISK, mTransferId, mStream, elapsed);
+        EngineMetrics.recordStorageLatency(elapsed);
+        synchronized (mTransferStatus) {
+            mTransferStatus.getMetrics().recordDisk(elapsed);
+        }
+        if (mReceiveLimiter != null) {
+            mReceiveLimiter.recordWrite(numBytes, elapsed);
+        }
+        updateProgress();
+        if (mItemBytesRemaining <= 0) {
+            processNext();
+        }
+    }
+
+    /**
+     * Prepare to process the next item
+     */
+    private void processNext() {
+        mItemIndex += 1;
+        mInternalState = mItemIndex == mTransferItems ? InternalState.Finished : InternalState.ItemHeader;
+        for (ItemReceivedListener itemReceivedListener : mItemReceivedListeners) {
+            itemReceivedListener.onItemReceived(mItem);
+        }
+    }
+
+    /**
+     * Process a packet received for this transfer
+     * @param packet complete packet (other than ERROR, which the session handles)
+     */
+    void processPacket(Packet packet) throws IOException {
+        if (mTransferStatus.getDirection() == TransferStatus.Direction.Receive) {
+            if (mInternalState == InternalState.TransferHeader && packet.getType() == Packet.JSON) {
+                processTransferHeader(packet);
+            } else if (mInternalState == InternalState.ItemHeader && packet.getType() == Packet.JSON) {
+                processItemHeader(packet);
+            } else if (mInternalState == InternalState.ItemContent && packet.getType() == Packet.BINARY) {
+                processItemContent(packet);
+            } else {
+                throw new IOException("unexpected packet");
+            }
+        } else {
+            if (mInternalState == InternalState.Finished && packet.getType() == Packet.SUCCESS) {
+                mComplete = true;
+            } else if (mOfferCapabilities && packet.getType() == Packet.JSON) {
+                CapabilitiesReply reply;
+                try {
+                    reply = mGson.fromJson(new String(packet.getBuffer().array(),
+                            Charset.forName("UTF-8")), CapabilitiesReply.class);
+                } catch (JsonSyntaxException e) {
+                    throw new IOException(e.getMessage());
+                }
+                if (reply == null || reply.capabilities == null) {
+                    throw new IOException("unexpected packet");
+                }
+                mOfferCapabilities = false;
+                mSession.setCapabilities(reply.capabilities);
+            } else {
+                throw new IOException("unexpected packet");
+            }
+        }
+    }
+
+    /**
+     * Update the total shown for a bundle that is still growing
+     */
+    private void updateBundleEstimate() {
+        long bytesTotal = mBundle.getTotalSize();
+        if (bytesTotal != mTransferBytesTotal) {
+            mTransferBytesTotal = bytesTotal;
+            TransferStatus transferStatus;
+            synchronized (mTransferStatus) {
+                mTransferStatus.setBytesTotal(mTransferBytesTotal);
+                transferStatus = new TransferStatus(mTransferStatus);
+            }
+            notifyStatusChangedListeners(transferStatus);
+        }
+    }
+
+    /**
+     * Send the transfer header
+     */
+    private Packet sendTransferHeader() {
+        mTransferItems = mBundle.size();
+        mTransferBytesTotal = mBundle.getTotalSize();
+        mPriority = mTransferBytesTotal <= INTERACTIVE_SIZE ?
+                PRIORITY_INTERACTIVE : PRIORITY_BULK;
+        synchronized (mTransferStatus) {
+            mTransferStatus.setBytesTotal(mTransferBytesTotal);
+        }
+        Map<String, Object> map = new HashMap<>();
+        map.put("name", mDeviceName);
+        map.put("count", Integer.toString(mTransferItems));
+        map.put("size", Long.toString(mTransferBytesTotal));
+        if (mOfferCapabilities) {
+            map.put("capabilities", Capabilities.local());
+        }
+        mInternalState = mItemIndex == mTransferItems ? InternalState.Finished : InternalState.ItemHeader;
+        return createPacket(Packet.JSON, mGson.toJson(map).getBytes(Charset.forName("UTF-8")));
+    }
+
+    /**
+     * Send the header for an individual item
+     */
+    private Packet sendItemHeader() throws IOException {
+        mItem = mBundle.get(mItemIndex);
+        Packet packet = createPacket(Packet.JSON, mGson.toJson(
+                mItem.getProperties()).getBytes(Charset.forName("UTF-8")));
+        long itemSize = mItem.getSize();
+        if (itemSize != 0) {
+            mInternalState = InternalState.ItemContent;
+            mItem.open(Item.Mode.Read);
+            mItemBytesRemaining = itemSize;
+            EventTrace.record(EventTrace.ITEM_OPEN, mTransferId, mStream, itemSize);
+        } else {
+            mItemIndex += 1;
+            mInternalState = mItemIndex == mTransferItems ? InternalState.Finished : InternalState.ItemHeader;
+        }
+        return packet;
+    }
+
+    /**
+     * Send item contents
+     */
+    private Packet sendItemContent() throws IOException {
+        int chunkSize = mChunkSizer.getSize();
+        if (mRateLimiter != null && mDevice != null) {
+            int maxSize = mRateLimiter.getMaxChunkSize(mDevice, this);
+            if (maxSize > 0) {
+                chunkSize = Math.min(chunkSize, maxSize);
+            }
+        }
+        if (mChunk == null || mChunk.length != chunkSize) {
+            mChunk = new byte[chunkSize];
+        }
+        long start = System.nanoTime();
+        int numBytes = mItem.read(mChunk);
+        long elapsed = System.nanoTime() - start;
+        EventTrace.record(EventTrace.DISK, mTransferId, mStream, elapsed);
+        EngineMetrics.recordStorageLatency(elapsed);
+        synchronized (mTransferStatus) {
+            mTransferStatus.getMetrics().recordDisk(elapsed);
+        }
+        Packet packet = new Packet(Packet.BINARY, mStream, mChunk, numBytes);
+        mChunkSizer.begin();
+        mTransferBytesTransferred += numBytes;
+        mItemBytesRemaining -= numBytes;
+        updateProgress();
+        if (mItemBytesRemaining <= 0) {
+            mItem.close();
+            EventTrace.record(EventTrace.ITEM_CLOSE, mTransferId, mStream, 0);
+            mItemIndex += 1;
+            mInternalState = mItemIndex == mTransferItems ? InternalState.Finished : InternalState.ItemHeader;
+        }
+        return packet;
+    }
+
+    /**
+     * Create the next packet to send by evaluating the current state
+     * @return packet or null if there is nothing to send right now
+     */
+    Packet nextPacket() throws IOException {
+        if (mTransferStatus.getDirection() == TransferStatus.Direction.Receive) {
+            if (mReply != null) {
+                CapabilitiesReply reply = new CapabilitiesReply();
+                reply.capabilities = mReply;
+                mReply = null;
+                return createPacket(Packet.JSON, mGson.toJson(reply).getBytes(
+                        Charset.forName("UTF-8")));
+            }
+            if (mInternalState == InternalState.Finished && !mSuccessSent) {
+                mSuccessSent = true;
+                return createPacket(Packet.SUCCESS, null);
+            }
+            return null;
+        }
+        switch (mInternalState) {
+            case TransferHeader:
+                if (!mBundle.waitForComplete(0)) {
+                    updateBundleEstimate();
+                    return null;
+                }
+                return sendTransferHeader();
+            case ItemHeader:
+                return sendItemHeader();
+            case ItemContent:
+                return sendItemContent();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Indicate that a packet created by nextPacket() has been completely sent
+     * @param packet packet that was sent
+     * @param numWrites number of writes needed to send it
+     */
+    void packetSent(Packet packet, int numWrites) {
+        int wireBytes = packet.getBuffer().capacity();
+        synchronized (mTransferStatus) {
+            mTransferStatus.getMetrics().recordFrameSent(wireBytes,
+                    packet.getType() == Packet.BINARY ? wireBytes - packet.getHeaderSize() : 0,
+                    numWrites);
+            mTransferStatus.getMetrics().sample(System.currentTimeMillis());
+        }
+        if (packet.getType() == Packet.BINARY) {
+            mChunkSizer.end(packet.getBuffer().capacity());
+        } else if (packet.getType() == Packet.SUCCESS) {
+            mComplete = true;
+        }
+    }
+
+    /**
+     * Record a packet received for the transfer
+     * @param packet complete packet
+     * @param numReads number of reads needed to receive it
+     */
+    void packetReceived(Packet packet, int numReads) {
+        int contentBytes = packet.getBuffer().capacity();
+        synchronized (mTransferStatus) {
+            mTransferStatus.getMetrics().recordFrameReceived(
+                    contentBytes + packet.getHeaderSize(),
+                    packet.getType() == Packet.BINARY ? contentBytes : 0,
+                    numReads);
+            mTransferStatus.getMetrics().sample(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Record time the session spent waiting for the socket
+     * @param nanos time in nanoseconds
+     */
+    void waited(long nanos) {
+        synchronized (mTransferStatus) {
+            mTransferStatus.getMetrics().recordWait(nanos);
+            mTransferStatus.getMetrics().sample(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Determine if the transfer is waiting for its bundle to be complete
+     */
+    boolean isWaitingForBundle() {
+        return mTransferStatus.getDirection() == TransferStatus.Direction.Send &&
+                mInternalState == InternalState.TransferHeader;
+    }
+
+    /**
+     * Determine if all packets for the transfer have been exchanged
+     */
+    boolean isComplete() {
+        return mComplete;
+    }
+
+    /**
+     * Determine if capabilities were offered without a reply (yet)
+     */
+    boolean isOfferPending() {
+        return mOfferCapabilities;
+    }
+
+    /**
+     * Hold the transfer until it is admitted
+     *
+     * This must be invoked before the transfer is started.
+     */
+    void queue() {
+        mQueued = true;
+        TransferStatus transferStatus;
+        synchronized (mTransferStatus) {
+            mTransferStatus.setState(TransferStatus.State.Queued);
+            transferStatus = new TransferStatus(mTransferStatus);
+        }
+        notifyStatusChangedListeners(transferStatus);
+    }
+
+    /**
+     * Allow a queued transfer to proceed
+     *
+     * Sending transfers must be started after being admitted; receiving
+     * transfers resume on their session.
+     */
+    void admit() {
+        mQueued = false;
+        TransferStatus transferStatus;
+        synchronized (mTransferStatus) {
+            mTransferStatus.setState(
+                    mTransferStatus.getDirection() == TransferStatus.Direction.Receive ?
+                            TransferStatus.State.Transferring : TransferStatus.State.Connecting);
+            transferStatus = new TransferStatus(mTransferStatus);
+        }
+        notifyStatusChangedListeners(transferStatus);
+        Session session = mSession;
+        if (session != null) {
+            session.wakeup();
+        }
+    }
+
+    /**
+     * Determine if the transfer is waiting to be admitted
+     */
+    boolean isQueued() {
+        return mQueued;
+    }
+
+    /**
+     * Determine if received packets must wait until the transfer is admitted
+     *
+     * The transfer header is still processed so that the name of the device
+     * and the size of the bundle are known while queued.
+     */
+    boolean isHoldingPackets() {
+        return mQueued && mInternalState != InternalState.TransferHeader;
+    }
+
+    /**
+     * Report the time taken to write received data
+     * @param receiveLimiter limiter to report to
+     *
+     * This method should not be invoked after starting the transfer.
+     */
+    void setReceiveLimiter(ReceiveLimiter receiveLimiter) {
+        mReceiveLimiter = receiveLimiter;
+    }
+
+    /**
+     * Limit the rate at which the transfer is sent
+     * @param rateLimiter limiter to use
+     *
+     * This method should not be invoked after starting the transfer.
+     */
+    void setRateLimiter(RateLimiter rateLimiter) {
+        mRateLimiter = rateLimiter;
+    }
+
+    /**
+     * Retrieve the limiter for the rate at which the transfer is sent
+     * @return limiter or null if the rate is not limited
+     */
+    RateLimiter getRateLimiter() {
+        return mRateLimiter;
+    }
+
+    /**
+     * Retrieve the session driving the transfer
+     * @return session or null if the transfer has not joined one yet
+     */
+    Session getSession() {
+        return mSession;
+    }
+
+    /**
+     * Determine if the transfer has been asked to stop
+     */
+    boolean isStopped() {
+        return mStop;
+    }
+
+    /**
+     * Retrieve the priority of the transfer on its session
+     * @return PRIORITY_INTERACTIVE or PRIORITY_BULK
+     */
+    int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Retrieve the ID that distinguishes the transfer from all others in the process
+     */
+    long getTransferId() {
+        return mTransferId;
+    }
+
+    /**
+     * Retrieve the stream the transfer uses
+     * @return stream ID (0 for the first transfer on a connection)
+     */
+    int getStream() {
+        return mStream;
+    }
+
+    /**
+     * Indicate that a session has accepted the transfer
+     * @param session session that will drive the transfer
+     * @param stream stream assigned to the transfer
+     * @param offerCapabilities true to offer capabilities in the transfer header
+     */
+    void attach(Session session, int stream, boolean offerCapabilities) {
+        mSession = session;
+        mStream = stream;
+        mOfferCapabilities = offerCapabilities;
+        TransferStatus transferStatus;
+        synchronized (mTransferStatus) {
+            mTransferStatus.setState(TransferStatus.State.Transferring);
+            transferStatus = new TransferStatus(mTransferStatus);
+        }
+        notifyStatusChangedListeners(transferStatus);
+    }
+
+    /**
+     * Limit the size of BINARY packets so that other streams are not delayed
+     * @param maxSize largest packet size
+     */
+    void setMaxChunkSize(int maxSize) {
+        mChunkSizer = new ChunkSizer(maxSize);
+    }
+
+    /**
+     * Indicate that the transfer has finished
+     * @param error description of the error or null if it succeeded
+     */
+    void finish(String error) {
+        TransferStatus transferStatus;
+        synchronized (mTransferStatus) {
+            if (error == null) {
+                long throughput = mTransferStatus.getMetrics().calculateAverageThroughput(
+                        System.currentTimeMillis());
+                if (throughput > 0) {
+                    EngineMetrics.transferSucceeded(throughput);
+                }
+                mTransferStatus.setState(TransferStatus.State.Succeeded);
+            } else {
+                mTransferStatus.setState(TransferStatus.State.Failed);
+                mTransferStatus.setError(error);
+            }
+            transferStatus = new TransferStatus(mTransferStatus);
+        }
+        notifyStatusChangedListeners(transferStatus);
+
+        // Close an item that was only partly sent or received
+        if (mInternalState == InternalState.ItemContent && mItem != null) {
+            try {
+                mItem.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        // Release anything held by the bundle
+        if (mBundle != null) {
+            mBundle.close();
+        }
+    }
+
+    /**
+     * Wait for the bundle to be complete, updating the estimated size meanwhile
+     */
+    private void waitForBundle() throws IOException {
+        while (!mBundle.waitForComplete(BUNDLE_WAIT)) {
+            if (mStop) {
+                throw new IOException("transfer was cancelled");
+            }
+            updateBundleEstimate();
+        }
+    }
+
+    /**
+     * Begin the transfer
+     *
+     * Receiving transfers are already driven by their session. Sending
+     * transfers join an existing session with the device if there is one or
+     * else connect to it and start a new session.
+     *
+     * Nothing can be sent until the bundle is complete. The receiver closes
+     * connections that stay silent for too long, so a new connection is not
+     * made until then; an existing session that sends keepalives is joined
+     * right away.
+     */
+    @Override
+    public void run() {
+        if (mTransferStatus.getDirection() == TransferStatus.Direction.Receive) {
+            return;
+        }
+        try {
+            Session session = Session.find(mDevice);
+            if (session == null || !session.isKeepaliveAgreed()) {
+                waitForBundle();
+                session = Session.find(mDevice);
+            }
+            if (session == null || !session.attach(this)) {
+                SocketChannel socketChannel = null;
+                if (mConnectionPool != null) {
+                    socketChannel = mConnectionPool.take(mDevice);
+                }
+                if (socketChannel == null) {
+                    Selector selector = Selector.open();
+                    mConnector = new Connector(mDevice, mConnectTimeout);
+                    if (mStop) {
+                        mConnector.cancel();
+                    }
+                    try {
+                        socketChannel = mConnector.connect(selector);
+                    } finally {
+                        mConnector = null;
+                        selector.close();
+                    }
+                }
+                session = new Session(socketChannel, mDevice);
+                session.setTimeouts(mIdleTimeout, mMinThroughput);
+                session.setConnectionPool(mConnectionPool);
+                session.attach(this);
+                session.start();
+            }
+        } catch (IOException e) {
+            finish(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package net.nitroshare.android.transfer;
+
+/**
+ * Performance counters for a transfer
+ *
+ * These help determine whether a slow transfer is limited by the network,
+ * storage or the device itself: time spent waiting on storage and on the
+ * socket is recorded separately and the remainder of the elapsed time was
+ * spent processing. Throughput is smoothed with an exponentially weighted
+ * moving average with a time constant of THROUGHPUT_TAU.
+ */
+public class TransferMetrics {
+
+    private static final double THROUGHPUT_TAU = 2000.0;
+    private static final long SAMPLE_INTERVAL = 250;
+
+    private double mThroughput;
+    private double mAverageThroughput;
+    private long mDiskNanos;
+    private long mSocketNanos;
+    private long mSocketBytes;
+    private long mSyscalls;
+    private long mWakeups;
+    private long mFramesSent;
+    private long mFramesReceived;
+    private long mContentBytes;
+    private long mOverheadBytes;
+
+    // Used for calculating throughput (not copied to other components)
+    private long mStart;
+    private long mLastSample;
+    private long mSampleBytes;
+
+    TransferMetrics() {
+    }
+
+    /**
+     * Initialize metrics from another instance
+     */
+    TransferMetrics(TransferMetrics metrics) {
+        mThroughput = metrics.mThroughput;
+        mAverageThroughput = metrics.mAverageThroughput;
+        mDiskNanos = metrics.mDiskNanos;
+        mSocketNanos = metrics.mSocketNanos;
+        mSocketBytes = metrics.mSocketBytes;
+        mSyscalls = metrics.mSyscalls;
+        mWakeups = metrics.mWakeups;
+        mFramesSent = metrics.mFramesSent;
+        mFramesReceived = metrics.mFramesReceived;
+        mContentBytes = metrics.mContentBytes;
+        mOverheadBytes = metrics.mOverheadBytes;
+        mStart = metrics.mStart;
+        mLastSample = metrics.mLastSample;
+        mSampleBytes = metrics.mSampleBytes;
+    }
+
+    /**
+     * Initialize metrics from values copied by another component
+     * @param throughput recent throughput
+     * @param averageThroughput throughput since the transfer started
+     * @param counters counters in the order returned by getCounters()
+     */
+    TransferMetrics(double throughput, double averageThroughput, long[] counters) {
+        mThroughput = throughput;
+        mAverageThroughput = averageThroughput;
+        mDiskNanos = counters[0];
+        mSocketNanos = counters[1];
+        mSocketBytes = counters[2];
+        mSyscalls = counters[3];
+        mWakeups = counters[4];
+        mFramesSent = counters[5];
+        mFramesReceived = counters[6];
+        mContentBytes = counters[7];
+        mOverheadBytes = counters[8];
+    }
+
+    /**
+     * Retrieve the counters so that they can be copied to another component
+     */
+    long[] getCounters() {
+        return new long[]{mDiskNanos, mSocketNanos, mSocketBytes, mSyscalls, mWakeups,
+                mFramesSent, mFramesReceived, mContentBytes, mOverheadBytes};
+    }
+
+    /**
+     * Update the throughput estimates
+     * @param now current time in milliseconds
+     */
+    void sample(long now) {
+        if (mStart == 0) {
+            mStart = now;
+            mLastSample = now;
+            return;
+        }
+        long elapsed = now - mLastSample;
+        if (elapsed < SAMPLE_INTERVAL) {
+            return;
+        }
+        double rate = mSampleBytes * 1000.0 / elapsed;
+        double alpha = 1.0 - Math.exp(-elapsed / THROUGHPUT_TAU);
+        mThroughput += alpha * (rate - mThroughput);
+        mAverageThroughput = mContentBytes * 1000.0 / (now - mStart);
+        mLastSample = now;
+        mSampleBytes = 0;
+    }
+
+    /**
+     * Calculate the throughput since the transfer started
+     * @param now current time in milliseconds
+     * @return bytes of item content per second or 0 if unknown
+     */
+    long calculateAverageThroughput(long now) {
+        if (mStart == 0 || now <= mStart) {
+            return 0;
+        }
+        return mContentBytes * 1000 / (now - mStart);
+    }
+
+    /**
+     * Record a packet written to the socket
+     * @param wireBytes size of the packet
+     * @param contentBytes bytes of item content in the packet
+     * @param numSyscalls number of writes needed to send it
+     */
+    void recordFrameSent(int wireBytes, int contentBytes, int numSyscalls) {
+        mFramesSent++;
+        recordFrame(wireBytes, contentBytes, numSyscalls);
+    }
+
+    /**
+     * Record a packet read from the socket
+     * @param wireBytes size of the packet
+     * @param contentBytes bytes of item content in the packet
+     * @param numSyscalls number of reads needed to receive it
+     */
+    void recordFrameReceived(int wireBytes, int contentBytes, int numSyscalls) {
+        mFramesReceived++;
+        recordFrame(wireBytes, contentBytes, numSyscalls);
+    }
+
+    private void recordFrame(int wireBytes, int contentBytes, int numSyscalls) {
+        mSocketBytes += wireBytes;
+        mSyscalls += numSyscalls;
+        mContentBytes += contentBytes;
+        mSampleBytes += contentBytes;
+        mOverheadBytes += wireBytes - contentBytes;
+    }
+
+    /**
+     * Record time spent reading or writing item content
+     */
+    void recordDisk(long nanos) {
+        mDiskNanos += nanos;
+    }
+
+    /**
+     * Record time spent waiting for the socket and the wakeup that ended it
+     */
+    void recordWait(long nanos) {
+        mSocketNanos += nanos;
+        mWakeups++;
+    }
+
+    /**
+     * Retrieve the recent throughput
+     * @return bytes of item content per second
+     */
+    public double getThroughput() {
+        return mThroughput;
+    }
+
+    /**
+     * Retrieve the throughput since the transfer started
+     * @return bytes of item content per second
+     */
+    public double getAverageThroughput() {
+        return mAverageThroughput;
+    }
+
+    /**
+     * Retrieve the time spent reading or writing item content
+     * @return time in nanoseconds
+     */
+    public long getDiskNanos() {
+        return mDiskNanos;
+    }
+
+    /**
+     * Retrieve the time spent waiting for the socket
+     * @return time in nanoseconds
+     */
+    public long getSocketNanos() {
+        return mSocketNanos;
+    }
+
+    /**
+     * Retrieve the average number of bytes per socket read or write
+     */
+    public long getBytesPerSyscall() {
+        return mSyscalls == 0 ? 0 : mSocketBytes / mSyscalls;
+    }
+
+    /**
+     * Retrieve the number of times the transfer's session woke up
+     */
+    public long getWakeups() {
+        return mWakeups;
+    }
+
+    public long getFramesSent() {
+        return mFramesSent;
+    }
+
+    public long getFramesReceived() {
+        return mFramesReceived;
+    }
+
+    /**
+     * Retrieve the share of bytes on the wire that were not item content
+     * @return fraction between 0 and 1
+     */
+    public double getHeaderOverhead() {
+        return mSocketBytes == 0 ? 0 : (double) mOverheadBytes / mSocketBytes;
+    }
+}
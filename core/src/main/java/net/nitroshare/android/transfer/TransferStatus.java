@@ -1,12 +1,9 @@
 package net.nitroshare.android.transfer;
 
-import android.os.Parcel;
-import android.os.Parcelable;
-
 /**
  * Status information about a transfer
  */
-public class TransferStatus implements Parcelable {
+public class TransferStatus {
 
     /**
      * Direction of transfer relative to the current device
@@ -20,6 +17,7 @@ public class TransferStatus implements Parcelable {
      * State of the transfer
      */
     public enum State {
+        Queued,
         Connecting,
         Transferring,
         Failed,
@@ -34,6 +32,7 @@ public class TransferStatus implements Parcelable {
     private long mBytesTransferred = 0;
     private long mBytesTotal = 0;
     private String mError;
+    private TransferMetrics mMetrics = new TransferMetrics();
 
     /**
      * Initialize transfer status from a transfer
@@ -56,49 +55,7 @@ public class TransferStatus implements Parcelable {
         this.mBytesTransferred = status.mBytesTransferred;
         this.mBytesTotal = status.mBytesTotal;
         this.mError = status.mError;
-    }
-
-    /**
-     * Initialize transfer status from a parcel
-     */
-    private TransferStatus(Parcel in) {
-        this.mId = in.readInt();
-        this.mDirection = Direction.valueOf(in.readString());
-        this.mRemoteDeviceName = in.readString();
-        this.mState = State.valueOf(in.readString());
-        this.mProgress = in.readInt();
-        this.mBytesTransferred = in.readLong();
-        this.mBytesTotal = in.readLong();
-        this.mError = in.readString();
-    }
-
-    public static final Creator<TransferStatus> CREATOR = new Creator<TransferStatus>() {
-        @Override
-        public TransferStatus createFromParcel(Parcel in) {
-            return new TransferStatus(in);
-        }
-
-        @Override
-        public TransferStatus[] newArray(int size) {
-            return new TransferStatus[size];
-        }
-    };
-
-    @Override
-    public int describeContents() {
-        return 0;
-    }
-
-    @Override
-    public void writeToParcel(Parcel out, int flags) {
-        out.writeInt(mId);
-        out.writeString(mDirection.name());
-        out.writeString(mRemoteDeviceName);
-        out.writeString(mState.name());
-        out.writeInt(mProgress);
-        out.writeLong(mBytesTransferred);
-        out.writeLong(mBytesTotal);
-        out.writeString(mError);
+        this.mMetrics = new TransferMetrics(status.mMetrics);
     }
 
     public int getId() {
@@ -165,6 +122,14 @@ public class TransferStatus implements Parcelable {
         mError = error;
     }
 
+    public TransferMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    void setMetrics(TransferMetrics metrics) {
+        mMetrics = metrics;
+    }
+
     public boolean isFinished() {
         return mState == State.Succeeded || mState == State.Failed;
     }
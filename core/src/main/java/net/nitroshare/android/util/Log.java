@@ -0,0 +1,50 @@
+package net.nitroshare.android.util;
+
+/**
+ * Logging for code that does not depend on Android
+ *
+ * Messages are passed to a sink, which the app replaces with one that
+ * writes to the Android log. Until then they are written to stderr.
+ */
+public class Log {
+
+    /**
+     * Destination for log messages
+     */
+    public interface Sink {
+        void log(char level, String tag, String message);
+    }
+
+    private static volatile Sink sSink = new Sink() {
+        @Override
+        public void log(char level, String tag, String message) {
+            System.err.println(String.format("%c/%s: %s", level, tag, message));
+        }
+    };
+
+    private Log() {
+    }
+
+    /**
+     * Set the destination for log messages
+     */
+    public static void setSink(Sink sink) {
+        sSink = sink;
+    }
+
+    public static void d(String tag, String message) {
+        sSink.log('D', tag, message);
+    }
+
+    public static void i(String tag, String message) {
+        sSink.log('I', tag, message);
+    }
+
+    public static void w(String tag, String message) {
+        sSink.log('W', tag, message);
+    }
+
+    public static void e(String tag, String message) {
+        sSink.log('E', tag, message);
+    }
+}
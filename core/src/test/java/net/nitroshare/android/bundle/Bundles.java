@@ -0,0 +1,21 @@
+package net.nitroshare.android.bundle;
+
+/**
+ * Access to bundle internals for tests in other packages
+ */
+public class Bundles {
+
+    /**
+     * Indicate that items are still being added to the bundle
+     */
+    public static void beginAdding(Bundle bundle) {
+        bundle.beginAdding();
+    }
+
+    /**
+     * Indicate that all items have been added to the bundle
+     */
+    public static void finishAdding(Bundle bundle) {
+        bundle.finishAdding(null);
+    }
+}
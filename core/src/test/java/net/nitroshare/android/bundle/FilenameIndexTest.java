@@ -0,0 +1,122 @@
+package net.nitroshare.android.bundle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FilenameIndexTest {
+
+    private File mDirectory;
+    private FilenameIndex mFilenameIndex;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("index", "");
+        assertTrue(mDirectory.delete() && mDirectory.mkdir());
+        mFilenameIndex = FilenameIndex.get(mDirectory);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDirectory.delete();
+    }
+
+    private String reserve(String filename) throws IOException {
+        return mFilenameIndex.reserve(filename).getName();
+    }
+
+    private String create(String filename) throws IOException {
+        String name = reserve(filename);
+        assertTrue(new File(mDirectory, name).createNewFile());
+        mFilenameIndex.release(name);
+        return name;
+    }
+
+    @Test
+    public void testSameIndex() {
+        assertTrue(FilenameIndex.get(new File(mDirectory.getPath())) == mFilenameIndex);
+    }
+
+    @Test
+    public void testReservedNamesAreNotReused() throws IOException {
+        assertEquals("IMG.jpg", reserve("IMG.jpg"));
+        assertEquals("IMG_2.jpg", reserve("IMG.jpg"));
+        assertEquals("IMG_3.jpg", reserve("IMG.jpg"));
+    }
+
+    @Test
+    public void testExtensions() throws IOException {
+        create("backup.tar.gz");
+        assertEquals("backup_2.tar.gz", reserve("backup.tar.gz"));
+        create("README");
+        assertEquals("README_2", reserve("README"));
+    }
+
+    @Test
+    public void testExistingFiles() throws IOException {
+        assertTrue(new File(mDirectory, "IMG.jpg").createNewFile());
+        assertTrue(new File(mDirectory, "IMG_2.jpg").createNewFile());
+        assertEquals("IMG_3.jpg", reserve("IMG.jpg"));
+    }
+
+    @Test
+    public void testReleasedNameIsAvailable() throws IOException {
+        String name = reserve("IMG.jpg");
+        mFilenameIndex.release(name);
+        assertEquals("IMG.jpg", reserve("IMG.jpg"));
+    }
+
+    @Test
+    public void testDeletedFileIsAvailable() throws IOException {
+        assertEquals("IMG.jpg", create("IMG.jpg"));
+        assertEquals("IMG_2.jpg", create("IMG.jpg"));
+        assertTrue(new File(mDirectory, "IMG.jpg").delete());
+        assertEquals("IMG.jpg", reserve("IMG.jpg"));
+    }
+
+    @Test
+    public void testSuffixIsRemembered() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            create("IMG.jpg");
+        }
+
+        // A file created behind the index's back is still skipped
+        assertTrue(new File(mDirectory, "IMG_6.jpg").createNewFile());
+        assertEquals("IMG_7.jpg", reserve("IMG.jpg"));
+    }
+
+    @Test
+    public void testFileItemReleasesName() throws IOException {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put(Item.NAME, "IMG.jpg");
+        properties.put(Item.SIZE, "1");
+
+        // An item that is abandoned before being opened gives up its name
+        FileItem item = new FileItem(mDirectory.getPath(), properties, false);
+        item.close();
+        assertEquals("IMG.jpg", reserve("IMG.jpg"));
+        mFilenameIndex.release("IMG.jpg");
+
+        // Once an item's file exists, the file itself holds the name
+        item = new FileItem(mDirectory.getPath(), properties, false);
+        item.open(Item.Mode.Write);
+        item.close();
+        assertEquals("IMG_2.jpg", reserve("IMG.jpg"));
+    }
+}
@@ -0,0 +1,38 @@
+package net.nitroshare.android.discovery;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DeviceTest {
+
+    @Test
+    public void testSerialization() throws Exception {
+        InetAddress[] addresses = {
+                InetAddress.getByName("192.168.1.2"),
+                InetAddress.getByName("fd00::2"),
+        };
+        Device device = new Device("name", "uuid", addresses, 40818);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
+        objectOutputStream.writeObject(device);
+        objectOutputStream.close();
+        ObjectInputStream objectInputStream = new ObjectInputStream(
+                new ByteArrayInputStream(outputStream.toByteArray()));
+        Device copy = (Device) objectInputStream.readObject();
+
+        assertEquals("name", copy.getName());
+        assertEquals("uuid", copy.getUuid());
+        assertArrayEquals(addresses, copy.getAddresses());
+        assertEquals(addresses[0], copy.getHost());
+        assertEquals(40818, copy.getPort());
+    }
+}
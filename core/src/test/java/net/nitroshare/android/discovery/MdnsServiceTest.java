@@ -0,0 +1,91 @@
+package net.nitroshare.android.discovery;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Advertise and browse over multicast on this host
+ *
+ * A port other than 5353 is used so that the test neither disturbs nor is
+ * disturbed by a real responder.
+ */
+public class MdnsServiceTest {
+
+    private static final int PORT = 15353;
+    private static final String SERVICE_TYPE = "_nitrosharetest._tcp.";
+    private static final long TIMEOUT = 10;
+
+    private final BlockingQueue<Device> mFound = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> mLost = new LinkedBlockingQueue<>();
+
+    private MdnsService mAdvertiser;
+    private MdnsService mBrowser;
+
+    @Before
+    public void setUp() throws IOException {
+        InetAddress group = InetAddress.getByName(MdnsService.GROUP);
+        mAdvertiser = new MdnsService(group, PORT, SERVICE_TYPE);
+        mBrowser = new MdnsService(group, PORT, SERVICE_TYPE);
+        mBrowser.browse(new MdnsService.Listener() {
+            @Override
+            public void onDeviceFound(Device device) {
+                mFound.add(device);
+            }
+
+            @Override
+            public void onDeviceLost(String name) {
+                mLost.add(name);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mAdvertiser.stop();
+        mBrowser.stop();
+    }
+
+    @Test
+    public void testFoundAndLost() throws Exception {
+        String uuid = UUID.randomUUID().toString();
+        mAdvertiser.advertise(new Device("Test Device", uuid, (InetAddress) null, 40818));
+        mAdvertiser.start();
+        mBrowser.start();
+
+        Device device = mFound.poll(TIMEOUT, TimeUnit.SECONDS);
+        assertNotNull(device);
+        assertEquals("Test Device", device.getName());
+        assertEquals(uuid, device.getUuid());
+        assertEquals(40818, device.getPort());
+        assertNotNull(device.getHost());
+
+        // The goodbye sent when stopping removes the device
+        mAdvertiser.stop();
+        assertEquals("Test Device", mLost.poll(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testBrowserStartedFirst() throws Exception {
+        mBrowser.start();
+        Thread.sleep(100);
+        mAdvertiser.advertise(new Device("Late Device", UUID.randomUUID().toString(),
+                (InetAddress) null, 40818));
+        mAdvertiser.start();
+
+        // The announcement is received without waiting for the next query
+        Device device = mFound.poll(TIMEOUT, TimeUnit.SECONDS);
+        assertNotNull(device);
+        assertEquals("Late Device", device.getName());
+    }
+}
@@ -0,0 +1,103 @@
+package net.nitroshare.android.transfer;
+
+import com.google.gson.Gson;
+
+import net.nitroshare.android.discovery.Device;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CapabilitiesTest {
+
+    @Test
+    public void testNegotiateWithSelf() {
+        Capabilities local = Capabilities.local();
+        Capabilities agreed = local.negotiate(Capabilities.local());
+        assertEquals(Capabilities.VERSION, agreed.version);
+        assertTrue(agreed.session);
+        assertTrue(agreed.keepalive);
+        assertFalse(agreed.resume);
+        assertFalse(agreed.isLegacy());
+        assertEquals(Packet.MAX_SIZE, agreed.maxFrameSize);
+        assertEquals(Collections.singletonList(Capabilities.ENCODING_JSON), agreed.headerEncodings);
+    }
+
+    @Test
+    public void testNegotiateWithOlderPeer() {
+        Capabilities remote = new Capabilities();
+        remote.version = 1;
+        remote.maxFrameSize = 65536;
+        Capabilities agreed = Capabilities.local().negotiate(remote);
+        assertFalse(agreed.session);
+        assertFalse(agreed.keepalive);
+        assertEquals(65536, agreed.maxFrameSize);
+
+        // Missing lists are treated as empty and JSON headers always work
+        assertEquals(Collections.singletonList(Capabilities.ENCODING_JSON), agreed.headerEncodings);
+        assertTrue(agreed.compression.isEmpty());
+        assertTrue(agreed.checksums.isEmpty());
+    }
+
+    @Test
+    public void testNegotiateKeepsPreferenceOrder() {
+        Capabilities local = Capabilities.local();
+        local.compression = Arrays.asList("zstd", "lz4", "deflate");
+        Capabilities remote = Capabilities.local();
+        remote.compression = Arrays.asList("deflate", "zstd");
+        assertEquals(Arrays.asList("zstd", "deflate"), local.negotiate(remote).compression);
+    }
+
+    @Test
+    public void testUnspecifiedFrameSize() {
+        Capabilities remote = Capabilities.local();
+        remote.maxFrameSize = 0;
+        assertEquals(Packet.MAX_SIZE, Capabilities.local().negotiate(remote).maxFrameSize);
+    }
+
+    @Test
+    public void testLegacyCacheExpires() {
+        String uuid = UUID.randomUUID().toString();
+        Device device = new Device("device", uuid, InetAddress.getLoopbackAddress(), 1);
+        Capabilities.putCached(device, null);
+        long now = System.currentTimeMillis();
+        assertTrue(Capabilities.getCached(device, now).isLegacy());
+
+        // The device is offered capabilities again once the entry is stale
+        assertEquals(null, Capabilities.getCached(device, now + Capabilities.LEGACY_TTL + 1000));
+
+        // Agreed capabilities do not expire
+        Capabilities.putCached(device, Capabilities.local());
+        assertFalse(Capabilities.getCached(device, now + Capabilities.LEGACY_TTL + 1000).isLegacy());
+    }
+
+    @Test
+    public void testCacheClearedOnNewPort() {
+        String uuid = UUID.randomUUID().toString();
+        Capabilities.putCached(new Device("device", uuid, InetAddress.getLoopbackAddress(), 1), null);
+        Device moved = new Device("device", uuid, InetAddress.getLoopbackAddress(), 2);
+        assertEquals(null, Capabilities.getCached(moved));
+    }
+
+    @Test
+    public void testJson() {
+        Gson gson = new Gson();
+        Capabilities capabilities = gson.fromJson(
+                "{\"version\":2,\"session\":true,\"max_frame_size\":1024," +
+                        "\"header_encodings\":[\"json\"],\"future\":\"ignored\"}",
+                Capabilities.class);
+        assertEquals(2, capabilities.version);
+        assertTrue(capabilities.session);
+        assertEquals(1024, capabilities.maxFrameSize);
+        assertEquals(Capabilities.VERSION,
+                Capabilities.local().negotiate(capabilities).version);
+        assertTrue(gson.toJson(Capabilities.local()).contains("\"max_frame_size\""));
+    }
+}
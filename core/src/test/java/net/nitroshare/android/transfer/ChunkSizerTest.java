@@ -0,0 +1,85 @@
+package net.nitroshare.android.transfer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkSizerTest {
+
+    /**
+     * Write a packet that drains into the socket immediately
+     */
+    private static void writeFast(ChunkSizer chunkSizer) {
+        chunkSizer.begin();
+        chunkSizer.end(chunkSizer.getSize());
+    }
+
+    @Test
+    public void testInitialSize() {
+        assertEquals(ChunkSizer.MIN_SIZE, new ChunkSizer(Packet.MAX_SIZE).getSize());
+    }
+
+    @Test
+    public void testGrowsByAtMostDouble() {
+        ChunkSizer chunkSizer = new ChunkSizer(Packet.MAX_SIZE);
+        int size = chunkSizer.getSize();
+        for (int i = 0; i < 4; i++) {
+            writeFast(chunkSizer);
+            assertEquals(size * 2, chunkSizer.getSize());
+            size = chunkSizer.getSize();
+        }
+    }
+
+    @Test
+    public void testLimitedToMaximum() {
+        ChunkSizer chunkSizer = new ChunkSizer(Packet.MAX_SIZE);
+        for (int i = 0; i < 20; i++) {
+            writeFast(chunkSizer);
+        }
+        assertEquals(ChunkSizer.MAX_SIZE, chunkSizer.getSize());
+
+        // The receiver's limit is respected
+        chunkSizer = new ChunkSizer(100000);
+        for (int i = 0; i < 20; i++) {
+            writeFast(chunkSizer);
+            assertTrue(chunkSizer.getSize() <= 100000);
+        }
+        assertEquals(100000, chunkSizer.getSize());
+    }
+
+    @Test
+    public void testLimitBelowMinimum() {
+        assertEquals(1024, new ChunkSizer(1024).getSize());
+        ChunkSizer chunkSizer = new ChunkSizer(1024);
+        for (int i = 0; i < 4; i++) {
+            writeFast(chunkSizer);
+            assertEquals(1024, chunkSizer.getSize());
+        }
+        chunkSizer.begin();
+        chunkSizer.end(1);
+        assertEquals(1024, chunkSizer.getSize());
+    }
+
+    @Test
+    public void testShrinksByAtMostHalf() throws InterruptedException {
+        ChunkSizer chunkSizer = new ChunkSizer(Packet.MAX_SIZE);
+        for (int i = 0; i < 4; i++) {
+            writeFast(chunkSizer);
+        }
+        int size = chunkSizer.getSize();
+
+        // Far slower than the target duration
+        chunkSizer.begin();
+        Thread.sleep(200);
+        chunkSizer.end(1);
+        assertEquals(size / 2, chunkSizer.getSize());
+
+        for (int i = 0; i < 10; i++) {
+            chunkSizer.begin();
+            Thread.sleep(20);
+            chunkSizer.end(1);
+        }
+        assertEquals(ChunkSizer.MIN_SIZE, chunkSizer.getSize());
+    }
+}
@@ -0,0 +1,106 @@
+package net.nitroshare.android.transfer;
+
+import net.nitroshare.android.bundle.Bundle;
+import net.nitroshare.android.bundle.FileItem;
+import net.nitroshare.android.discovery.Device;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionPoolTest {
+
+    private File mSource;
+    private File mDestination;
+    private TransferWatcher mWatcher;
+    private LoopbackReceiver mReceiver;
+    private ConnectionPool mConnectionPool;
+
+    @Before
+    public void setUp() throws IOException {
+        mSource = TransferWatcher.createDirectory("source");
+        mDestination = TransferWatcher.createDirectory("destination");
+        mWatcher = new TransferWatcher();
+        mReceiver = new LoopbackReceiver(mDestination, 60000, mWatcher);
+        mConnectionPool = new ConnectionPool(60000, 4, 5000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mConnectionPool.close();
+        mReceiver.close();
+        TransferWatcher.delete(mSource);
+        TransferWatcher.delete(mDestination);
+    }
+
+    private void warm(Device device) throws InterruptedException {
+        mConnectionPool.warm(device);
+        for (int i = 0; i < 100 && mConnectionPool.size() == 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, mConnectionPool.size());
+    }
+
+    private void send(Device device, boolean usePool) throws Exception {
+        Bundle bundle = new Bundle();
+        bundle.addItem(new FileItem(TransferWatcher.createFile(mSource, "file.bin", 1000)));
+        Transfer transfer = new Transfer(device, "sender", bundle);
+        if (usePool) {
+            transfer.setConnectionPool(mConnectionPool);
+        }
+        transfer.addStatusChangedListener(mWatcher);
+        transfer.run();
+        mWatcher.awaitSucceeded(2);
+    }
+
+    @Test
+    public void testTakenWithoutSession() throws Exception {
+        Device device = mReceiver.createDevice();
+        warm(device);
+        send(device, true);
+
+        // The idle connection was used instead of a new one
+        assertEquals(0, mConnectionPool.size());
+        assertEquals(1, mReceiver.getNumConnections());
+    }
+
+    @Test
+    public void testLeftAloneWithSession() throws Exception {
+        Device device = mReceiver.createDevice();
+        warm(device);
+        send(device, false);
+        assertTrue(Session.find(device) != null);
+
+        // The second transfer joins the session and leaves the pool alone
+        send(device, true);
+        assertEquals(1, mConnectionPool.size());
+        assertEquals(2, mReceiver.getNumConnections());
+    }
+    @Test
+    public void testWarmedWhenSessionIdle() throws Exception {
+        Device device = mReceiver.createDevice();
+        send(device, true);
+        Session session = Session.find(device);
+        assertTrue(session != null);
+        assertEquals(0, mConnectionPool.size());
+
+        // Closing the idle session leaves a connection in the pool
+        session.setSessionTimeout(100);
+        for (int i = 0; i < 100 && mConnectionPool.size() == 0; i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(Session.find(device) == null);
+        assertEquals(1, mConnectionPool.size());
+
+        // The next transfer uses it instead of making another
+        send(device, true);
+        assertEquals(0, mConnectionPool.size());
+        assertEquals(2, mReceiver.getNumConnections());
+    }
+}
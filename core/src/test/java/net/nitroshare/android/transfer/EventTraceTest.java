@@ -0,0 +1,133 @@
+package net.nitroshare.android.transfer;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import net.nitroshare.android.bundle.Bundle;
+import net.nitroshare.android.discovery.Device;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventTraceTest {
+
+    private static JsonArray export() throws IOException {
+        StringWriter writer = new StringWriter();
+        EventTrace.export(writer);
+        JsonObject trace = new JsonParser().parse(writer.toString()).getAsJsonObject();
+        return trace.getAsJsonArray("traceEvents");
+    }
+
+    @After
+    public void tearDown() {
+        EventTrace.setEnabled(true);
+    }
+
+    @Test
+    public void testRecentEventsInOrder() throws IOException {
+        for (int i = 0; i < EventTrace.CAPACITY + 10; i++) {
+            EventTrace.record(EventTrace.READ, 3, i);
+        }
+        JsonArray events = export();
+        assertEquals(EventTrace.CAPACITY, events.size());
+        JsonObject first = events.get(0).getAsJsonObject();
+        JsonObject last = events.get(events.size() - 1).getAsJsonObject();
+        assertEquals("read", first.get("name").getAsString());
+        assertEquals(3, first.getAsJsonObject("args").get("stream").getAsInt());
+        assertEquals(10, first.getAsJsonObject("args").get("bytes").getAsLong());
+        assertEquals(EventTrace.CAPACITY + 9, last.getAsJsonObject("args").get("bytes").getAsLong());
+    }
+
+    @Test
+    public void testItemsKeyedByTransfer() throws IOException {
+        Device device = new Device("device", "uuid", InetAddress.getLoopbackAddress(), 1);
+        Transfer first = new Transfer(device, "sender", new Bundle());
+        Transfer second = new Transfer(device, "sender", new Bundle());
+        assertNotEquals(first.getTransferId(), second.getTransferId());
+
+        // Both transfers use stream 0 (each on its own connection)
+        EventTrace.record(EventTrace.ITEM_OPEN, first.getTransferId(), 0, 100);
+        EventTrace.record(EventTrace.ITEM_OPEN, second.getTransferId(), 0, 100);
+        int numFound = 0;
+        for (JsonElement element : export()) {
+            JsonObject event = element.getAsJsonObject();
+            if (event.get("ph").getAsString().equals("b")) {
+                long id = event.get("id").getAsLong();
+                if (id == first.getTransferId() || id == second.getTransferId()) {
+                    numFound++;
+                }
+            }
+        }
+        assertEquals(2, numFound);
+    }
+
+    @Test
+    public void testDisabled() throws IOException {
+        EventTrace.record(EventTrace.WRITE, 1, 42);
+        EventTrace.setEnabled(false);
+        EventTrace.record(EventTrace.WRITE, 1, 43);
+        JsonObject last = export().get(EventTrace.CAPACITY - 1).getAsJsonObject();
+        assertEquals(42, last.getAsJsonObject("args").get("bytes").getAsLong());
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        // Streams no real session uses, so other events can be told apart
+        final int firstStream = 1000;
+        final int numThreads = 4;
+        for (int i = 0; i < EventTrace.CAPACITY; i++) {
+            EventTrace.record(EventTrace.WRITE, firstStream, firstStream * 1000003L);
+        }
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int stream = firstStream + t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 200000; i++) {
+                        EventTrace.record(EventTrace.WRITE, stream, stream * 1000003L);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        // Every event exported while the ring is being overwritten must be
+        // one that was actually recorded rather than a mix of two (an export
+        // may find none at all if the writers lap it)
+        for (int n = 0; n < 20; n++) {
+            checkConcurrentEvents(firstStream, numThreads);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(checkConcurrentEvents(firstStream, numThreads) > 0);
+    }
+
+    /**
+     * Check the events recorded by testConcurrentRecording()
+     * @return number of events checked
+     */
+    private static int checkConcurrentEvents(int firstStream, int numThreads) throws IOException {
+        int numChecked = 0;
+        for (JsonElement element : export()) {
+            JsonObject args = element.getAsJsonObject().getAsJsonObject("args");
+            int stream = args.get("stream").getAsInt();
+            if (stream >= firstStream && stream < firstStream + numThreads) {
+                assertEquals(stream * 1000003L, args.get("bytes").getAsLong());
+                numChecked++;
+            }
+        }
+        return numChecked;
+    }
+}
@@ -0,0 +1,115 @@
+package net.nitroshare.android.transfer;
+
+import net.nitroshare.android.discovery.Device;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Receive transfers on a loopback port the way TransferServer does
+ *
+ * Connections that send nothing within the pending timeout are closed.
+ */
+class LoopbackReceiver implements Closeable {
+
+    private final File mDirectory;
+    private final long mPendingTimeout;
+    private final Transfer.StatusChangedListener mListener;
+
+    private final ServerSocketChannel mServerSocketChannel = ServerSocketChannel.open();
+    private final AtomicInteger mNumConnections = new AtomicInteger();
+
+    /**
+     * Start receiving transfers
+     * @param directory directory for received files
+     * @param pendingTimeout time in milliseconds a new connection may be silent
+     * @param listener listener added to each received transfer
+     */
+    LoopbackReceiver(File directory, long pendingTimeout,
+                     Transfer.StatusChangedListener listener) throws IOException {
+        mDirectory = directory;
+        mPendingTimeout = pendingTimeout;
+        mListener = listener;
+        mServerSocketChannel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final SocketChannel socketChannel = mServerSocketChannel.accept();
+                        mNumConnections.incrementAndGet();
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    accept(socketChannel);
+                                } catch (IOException ignored) {
+                                }
+                            }
+                        }).start();
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Create a device that refers to the receiver
+     *
+     * Each device has its own identity and therefore its own sessions.
+     */
+    Device createDevice() {
+        return new Device("receiver", UUID.randomUUID().toString(),
+                InetAddress.getLoopbackAddress(), mServerSocketChannel.socket().getLocalPort());
+    }
+
+    /**
+     * Retrieve the number of connections accepted so far
+     */
+    int getNumConnections() {
+        return mNumConnections.get();
+    }
+
+    private void accept(SocketChannel socketChannel) throws IOException {
+        socketChannel.configureBlocking(false);
+        Selector selector = Selector.open();
+        ByteBuffer received = ByteBuffer.allocate(1);
+        try {
+            socketChannel.register(selector, SelectionKey.OP_READ);
+            if (selector.select(mPendingTimeout) == 0 || socketChannel.read(received) <= 0) {
+                socketChannel.close();
+                return;
+            }
+        } finally {
+            selector.close();
+        }
+        received.flip();
+        new Session(socketChannel, received, new Session.Listener() {
+            @Override
+            public Transfer onNewStream(Session session, int stream) {
+                Transfer transfer = new Transfer(session, stream,
+                        mDirectory.getPath(), true, "sender");
+                transfer.addStatusChangedListener(mListener);
+                return transfer;
+            }
+        }).start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mServerSocketChannel.close();
+    }
+}
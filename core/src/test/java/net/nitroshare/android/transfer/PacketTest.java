@@ -0,0 +1,132 @@
+package net.nitroshare.android.transfer;
+
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PacketTest {
+
+    /**
+     * Channel that returns at most a few bytes from each read
+     */
+    private static class TrickleChannel implements ReadableByteChannel {
+
+        private final ByteBuffer mData;
+        private final int mMaxRead;
+
+        TrickleChannel(byte[] data, int maxRead) {
+            mData = ByteBuffer.wrap(data);
+            mMaxRead = maxRead;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+            if (!mData.hasRemaining()) {
+                return -1;
+            }
+            int numBytes = Math.min(mMaxRead, Math.min(dst.remaining(), mData.remaining()));
+            for (int i = 0; i < numBytes; i++) {
+                dst.put(mData.get());
+            }
+            return numBytes;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static byte[] encode(Packet packet) {
+        ByteBuffer buffer = packet.getBuffer();
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return data;
+    }
+
+    private static Packet decode(byte[] data, int maxRead) throws IOException {
+        TrickleChannel channel = new TrickleChannel(data, maxRead);
+        Packet packet = new Packet();
+        while (!packet.isFull()) {
+            packet.read(channel);
+        }
+        return packet;
+    }
+
+    @Test
+    public void testEncodeUnframed() {
+        byte[] data = encode(new Packet(Packet.JSON, "{}".getBytes(Charset.forName("UTF-8"))));
+        assertArrayEquals(new byte[]{3, 0, 0, 0, Packet.JSON, '{', '}'}, data);
+    }
+
+    @Test
+    public void testEncodeFramed() {
+        byte[] data = encode(new Packet(Packet.BINARY, 0x01020304, new byte[]{9}, 1));
+        assertArrayEquals(new byte[]{6, 0, 0, 0, (byte) (Packet.BINARY | Packet.FRAMED),
+                4, 3, 2, 1, 9}, data);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        byte[] content = new byte[70000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        for (int stream : new int[]{0, 7}) {
+            for (int maxRead : new int[]{1, 3, 65536}) {
+                Packet packet = decode(encode(
+                        new Packet(Packet.BINARY, stream, content, content.length)), maxRead);
+                assertEquals(Packet.BINARY, packet.getType());
+                assertEquals(stream, packet.getStream());
+                assertEquals(stream == 0 ? 5 : 9, packet.getHeaderSize());
+                assertArrayEquals(content, packet.getBuffer().array());
+            }
+        }
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        for (int stream : new int[]{0, 1}) {
+            Packet packet = decode(encode(new Packet(Packet.SUCCESS, stream, null, 0)), 1);
+            assertEquals(Packet.SUCCESS, packet.getType());
+            assertEquals(stream, packet.getStream());
+            assertEquals(0, packet.getBuffer().capacity());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testSizeOutOfRange() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(5).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(Packet.MAX_SIZE + 2).put((byte) Packet.BINARY);
+        decode(buffer.array(), 5);
+    }
+
+    @Test
+    public void testConnectionClosed() throws IOException {
+        byte[] data = encode(new Packet(Packet.BINARY, 1, new byte[100], 100));
+        byte[] truncated = new byte[50];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        try {
+            decode(truncated, 16);
+        } catch (EOFException e) {
+            return;
+        }
+        assertTrue("expected EOFException", false);
+    }
+}
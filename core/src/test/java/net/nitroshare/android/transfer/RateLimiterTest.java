@@ -0,0 +1,169 @@
+package net.nitroshare.android.transfer;
+
+import net.nitroshare.android.bundle.Bundle;
+import net.nitroshare.android.bundle.FileItem;
+import net.nitroshare.android.discovery.Device;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.Calendar;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    /**
+     * Limits that apply all day
+     */
+    private static class FixedLimits implements RateLimiter.Limits {
+
+        private final int mRate;
+        private final int mDeviceRate;
+        private final int mTransferRate;
+
+        FixedLimits(int rate, int deviceRate, int transferRate) {
+            mRate = rate;
+            mDeviceRate = deviceRate;
+            mTransferRate = transferRate;
+        }
+
+        @Override
+        public int getRate() {
+            return mRate;
+        }
+
+        @Override
+        public int getDeviceRate() {
+            return mDeviceRate;
+        }
+
+        @Override
+        public int getTransferRate() {
+            return mTransferRate;
+        }
+
+        @Override
+        public String getHours() {
+            return "";
+        }
+    }
+
+    private static Calendar at(int hour, int minute) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.HOUR_OF_DAY, hour);
+        calendar.set(Calendar.MINUTE, minute);
+        return calendar;
+    }
+
+    @Test
+    public void testAllDay() {
+        assertTrue(RateLimiter.isWithinHours(null, at(3, 0)));
+        assertTrue(RateLimiter.isWithinHours("", at(3, 0)));
+        assertTrue(RateLimiter.isWithinHours("  ", at(3, 0)));
+    }
+
+    @Test
+    public void testRange() {
+        String hours = "09:00-17:30";
+        assertFalse(RateLimiter.isWithinHours(hours, at(8, 59)));
+        assertTrue(RateLimiter.isWithinHours(hours, at(9, 0)));
+        assertTrue(RateLimiter.isWithinHours(hours, at(17, 29)));
+        assertFalse(RateLimiter.isWithinHours(hours, at(17, 30)));
+    }
+
+    @Test
+    public void testRangeAcrossMidnight() {
+        String hours = " 22:00 - 06:00 ";
+        assertTrue(RateLimiter.isWithinHours(hours, at(23, 0)));
+        assertTrue(RateLimiter.isWithinHours(hours, at(0, 0)));
+        assertTrue(RateLimiter.isWithinHours(hours, at(5, 59)));
+        assertFalse(RateLimiter.isWithinHours(hours, at(6, 0)));
+        assertFalse(RateLimiter.isWithinHours(hours, at(12, 0)));
+    }
+
+    @Test
+    public void testHoursOnly() {
+        assertTrue(RateLimiter.isWithinHours("9-17", at(9, 0)));
+        assertFalse(RateLimiter.isWithinHours("9-17", at(17, 0)));
+        assertTrue(RateLimiter.isWithinHours("18-24", at(23, 59)));
+    }
+
+    @Test
+    public void testInvalidAppliesAllDay() {
+        assertTrue(RateLimiter.isWithinHours("evenings", at(3, 0)));
+        assertTrue(RateLimiter.isWithinHours("25:00-26:00", at(3, 0)));
+        assertTrue(RateLimiter.isWithinHours("09:75-10:00", at(3, 0)));
+        assertTrue(RateLimiter.isWithinHours("09:00-10:00-11:00", at(3, 0)));
+    }
+
+    private static int getMaxChunkSize(int rate, int deviceRate, int transferRate) throws Exception {
+        Device device = new Device("device", UUID.randomUUID().toString(),
+                InetAddress.getLoopbackAddress(), 1);
+        Transfer transfer = new Transfer(device, "sender", new Bundle());
+        RateLimiter rateLimiter = new RateLimiter(new FixedLimits(rate, deviceRate, transferRate));
+        return rateLimiter.getMaxChunkSize(device, transfer);
+    }
+
+    @Test
+    public void testMaxChunkSize() throws Exception {
+        assertEquals(0, getMaxChunkSize(0, 0, 0));
+
+        // 100 ms at 1000 KiB/s is 100 KiB
+        assertEquals(102400, getMaxChunkSize(1000, 0, 0));
+
+        // The smallest limit applies
+        assertEquals(102400, getMaxChunkSize(2000, 1000, 0));
+        assertEquals(49152, getMaxChunkSize(2000, 1000, 500));
+        assertEquals(8192, getMaxChunkSize(90, 0, 0));
+
+        // Very low limits still send reasonably sized packets
+        assertEquals(RateLimiter.MIN_CHUNK_SIZE, getMaxChunkSize(1, 0, 0));
+    }
+
+    @Test
+    public void testIdleDevicesExpire() throws Exception {
+        RateLimiter rateLimiter = new RateLimiter(new FixedLimits(0, 1000, 0));
+        for (int i = 0; i < 10; i++) {
+            Device device = new Device("device", UUID.randomUUID().toString(),
+                    InetAddress.getLoopbackAddress(), 1);
+            Transfer transfer = new Transfer(device, "sender", new Bundle());
+            rateLimiter.consume(device, transfer, 1024);
+        }
+        assertEquals(10, rateLimiter.getNumDevices());
+
+        long now = System.currentTimeMillis();
+        rateLimiter.expire(now);
+        assertEquals(10, rateLimiter.getNumDevices());
+        rateLimiter.expire(now + RateLimiter.DEVICE_EXPIRY + 1000);
+        assertEquals(0, rateLimiter.getNumDevices());
+    }
+
+    @Test
+    public void testLimitedTransferUsesSmallPackets() throws Exception {
+        File source = TransferWatcher.createDirectory("source");
+        File destination = TransferWatcher.createDirectory("destination");
+        TransferWatcher watcher = new TransferWatcher();
+        LoopbackReceiver receiver = new LoopbackReceiver(destination, 60000, watcher);
+        try {
+            Bundle bundle = new Bundle();
+            bundle.addItem(new FileItem(TransferWatcher.createFile(source, "file.bin", 40000)));
+            Transfer transfer = new Transfer(receiver.createDevice(), "sender", bundle);
+            transfer.setRateLimiter(new RateLimiter(new FixedLimits(0, 0, 50)));
+            transfer.addStatusChangedListener(watcher);
+            transfer.run();
+            watcher.awaitSucceeded(2);
+
+            // Each content packet is at most 4 KiB instead of the usual 16 KiB
+            assertTrue(transfer.getStatus().getMetrics().getFramesSent() >= 40000 / 4096);
+        } finally {
+            receiver.close();
+            TransferWatcher.delete(source);
+            TransferWatcher.delete(destination);
+        }
+    }
+}
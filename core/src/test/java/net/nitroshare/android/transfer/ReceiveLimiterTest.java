@@ -0,0 +1,171 @@
+package net.nitroshare.android.transfer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ReceiveLimiterTest {
+
+    private final List<Integer> mChanges = new ArrayList<>();
+    private ReceiveLimiter mReceiveLimiter;
+    private long mNow;
+
+    @Before
+    public void setUp() {
+        mReceiveLimiter = new ReceiveLimiter(new ReceiveLimiter.Listener() {
+            @Override
+            public void onLimitChanged(int limit) {
+                mChanges.add(limit);
+            }
+        });
+        mNow = System.currentTimeMillis();
+    }
+
+    /**
+     * Write at the specified rate and latency for one window
+     * @param bytesPerSecond throughput of the window
+     * @param nanosPerByte time taken to write each byte
+     */
+    private void window(long bytesPerSecond, long nanosPerByte) {
+        long numBytes = bytesPerSecond * ReceiveLimiter.WINDOW / 1000;
+        if (numBytes > 0) {
+            mReceiveLimiter.recordWrite((int) numBytes, numBytes * nanosPerByte);
+        }
+        mNow += ReceiveLimiter.WINDOW;
+        mReceiveLimiter.poll(mNow);
+    }
+
+    @Test
+    public void testStartsAtMaximum() {
+        assertEquals(ReceiveLimiter.MAX_LIMIT, mReceiveLimiter.getLimit());
+        mReceiveLimiter.setMaxLimit(3);
+        assertEquals(3, mReceiveLimiter.getLimit());
+        mReceiveLimiter.setMaxLimit(0);
+        assertEquals(3, mReceiveLimiter.getLimit());
+    }
+
+    @Test
+    public void testSteadyWritesKeepLimit() {
+        mReceiveLimiter.setMaxLimit(4);
+        mReceiveLimiter.setActive(4);
+        for (int i = 0; i < 5; i++) {
+            window(10000000, 10);
+        }
+        assertEquals(4, mReceiveLimiter.getLimit());
+        assertEquals(0, mChanges.size());
+    }
+
+    @Test
+    public void testSlowWritesHalveLimit() {
+        mReceiveLimiter.setMaxLimit(8);
+        mReceiveLimiter.setActive(8);
+        window(10000000, 10);
+        window(10000000, 30);
+        assertEquals(4, mReceiveLimiter.getLimit());
+        window(10000000, 100);
+        assertEquals(2, mReceiveLimiter.getLimit());
+        window(10000000, 300);
+        window(10000000, 1000);
+        assertEquals(1, mReceiveLimiter.getLimit());
+    }
+
+    @Test
+    public void testIncreaseWhileSaturated() {
+        mReceiveLimiter.setMaxLimit(4);
+        mReceiveLimiter.setActive(4);
+        window(10000000, 10);
+        window(10000000, 30);
+        assertEquals(2, mReceiveLimiter.getLimit());
+
+        // Writes recover and both allowed transfers are busy
+        mReceiveLimiter.setActive(2);
+        window(10000000, 10);
+        assertEquals(3, mReceiveLimiter.getLimit());
+    }
+
+    @Test
+    public void testNoIncreaseWhenNotSaturated() {
+        mReceiveLimiter.setMaxLimit(4);
+        mReceiveLimiter.setActive(4);
+        window(10000000, 10);
+        window(10000000, 30);
+        assertEquals(2, mReceiveLimiter.getLimit());
+        mReceiveLimiter.setActive(1);
+        window(10000000, 10);
+        window(10000000, 10);
+        assertEquals(2, mReceiveLimiter.getLimit());
+    }
+
+    @Test
+    public void testThroughputDropAfterIncrease() {
+        mReceiveLimiter.setMaxLimit(4);
+        mReceiveLimiter.setActive(4);
+        window(10000000, 10);
+        window(10000000, 30);
+        mReceiveLimiter.setActive(2);
+        window(10000000, 10);
+        assertEquals(3, mReceiveLimiter.getLimit());
+
+        // The extra transfer made things worse
+        mReceiveLimiter.setActive(3);
+        window(5000000, 10);
+        assertEquals(1, mReceiveLimiter.getLimit());
+    }
+
+    @Test
+    public void testStalledNetworkRaisesLimit() {
+        mReceiveLimiter.setMaxLimit(2);
+        mReceiveLimiter.setActive(2);
+        window(10000000, 10);
+        window(10000000, 30);
+        assertEquals(1, mReceiveLimiter.getLimit());
+
+        // The only receive is stuck on the network and nothing is written
+        mReceiveLimiter.setActive(1);
+        window(0, 0);
+        assertEquals(2, mReceiveLimiter.getLimit());
+        window(0, 0);
+        assertEquals(2, mReceiveLimiter.getLimit());
+    }
+
+    @Test
+    public void testIdleWithoutTransfers() {
+        mReceiveLimiter.setMaxLimit(4);
+        mReceiveLimiter.setActive(0);
+        window(0, 0);
+        window(0, 0);
+        assertEquals(4, mReceiveLimiter.getLimit());
+        assertEquals(0, mChanges.size());
+    }
+
+    /**
+     * Retrieve the value of a metric line beginning with the prefix
+     */
+    private static long getMetric(String prefix) {
+        StringBuilder out = new StringBuilder();
+        EngineMetrics.write(out);
+        for (String line : out.toString().split("\n")) {
+            if (line.startsWith(prefix)) {
+                return Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+            }
+        }
+        throw new AssertionError("missing " + prefix);
+    }
+
+    @Test
+    public void testListenerAndMetrics() {
+        String slowWrites = "nitroshare_receive_limit_changes_total{direction=\"decrease\",reason=\"slow_writes\"}";
+        long before = getMetric(slowWrites);
+        mReceiveLimiter.setMaxLimit(4);
+        mReceiveLimiter.setActive(4);
+        window(10000000, 10);
+        window(10000000, 30);
+        assertEquals(1, mChanges.size());
+        assertEquals(Integer.valueOf(2), mChanges.get(0));
+        assertEquals(before + 1, getMetric(slowWrites));
+    }
+}
@@ -0,0 +1,59 @@
+package net.nitroshare.android.transfer;
+
+import net.nitroshare.android.bundle.Bundle;
+import net.nitroshare.android.discovery.Device;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.UUID;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SessionTest {
+
+    private ServerSocketChannel mServerSocketChannel;
+    private Device mDevice;
+
+    @Before
+    public void setUp() throws IOException {
+        mServerSocketChannel = ServerSocketChannel.open();
+        mServerSocketChannel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mDevice = new Device("receiver", UUID.randomUUID().toString(),
+                InetAddress.getLoopbackAddress(), mServerSocketChannel.socket().getLocalPort());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServerSocketChannel.close();
+    }
+
+    private Session createSession() throws IOException {
+        SocketChannel socketChannel = SocketChannel.open(
+                mServerSocketChannel.socket().getLocalSocketAddress());
+        return new Session(socketChannel, mDevice);
+    }
+
+    @Test
+    public void testNotClosedWithStream() throws IOException {
+        Session session = createSession();
+        assertTrue(session.attach(new Transfer(mDevice, "sender", new Bundle())));
+        assertFalse(session.closeIfEmpty());
+        assertFalse(session.isClosed());
+    }
+
+    @Test
+    public void testNoAttachAfterClose() throws IOException {
+        Session session = createSession();
+        assertTrue(session.closeIfEmpty());
+        assertTrue(session.isClosed());
+        assertFalse(session.attach(new Transfer(mDevice, "sender", new Bundle())));
+    }
+}
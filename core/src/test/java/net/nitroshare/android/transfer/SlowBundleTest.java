@@ -0,0 +1,72 @@
+package net.nitroshare.android.transfer;
+
+import net.nitroshare.android.bundle.Bundle;
+import net.nitroshare.android.bundle.Bundles;
+import net.nitroshare.android.bundle.FileItem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A bundle that takes longer to build than the receiver waits for a silent
+ * connection must still be sent
+ */
+public class SlowBundleTest {
+
+    // The receiver closes connections that send nothing for this long
+    private static final long PENDING_TIMEOUT = 500;
+
+    private File mSource;
+    private File mDestination;
+    private TransferWatcher mWatcher;
+    private LoopbackReceiver mReceiver;
+
+    @Before
+    public void setUp() throws IOException {
+        mSource = TransferWatcher.createDirectory("source");
+        mDestination = TransferWatcher.createDirectory("destination");
+        mWatcher = new TransferWatcher();
+        mReceiver = new LoopbackReceiver(mDestination, PENDING_TIMEOUT, mWatcher);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mReceiver.close();
+        TransferWatcher.delete(mSource);
+        TransferWatcher.delete(mDestination);
+    }
+
+    @Test
+    public void testSlowWalk() throws Exception {
+        File file = TransferWatcher.createFile(mSource, "file.bin", 100000);
+
+        // Items are still being added for three times the pending timeout
+        final Bundle bundle = new Bundle();
+        Bundles.beginAdding(bundle);
+        bundle.addItem(new FileItem(file));
+        Thread walker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(PENDING_TIMEOUT * 3);
+                } catch (InterruptedException ignored) {
+                }
+                Bundles.finishAdding(bundle);
+            }
+        });
+        walker.start();
+
+        Transfer transfer = new Transfer(mReceiver.createDevice(), "sender", bundle);
+        transfer.addStatusChangedListener(mWatcher);
+        transfer.run();
+
+        mWatcher.awaitSucceeded(2);
+        assertEquals(100000, new File(mDestination, "file.bin").length());
+    }
+}
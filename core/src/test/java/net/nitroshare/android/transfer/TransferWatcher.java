@@ -0,0 +1,78 @@
+package net.nitroshare.android.transfer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Collect the final status of transfers and helpers for their files
+ */
+class TransferWatcher implements Transfer.StatusChangedListener {
+
+    private static final long TIMEOUT = 10000;
+
+    private final List<TransferStatus> mFinished = new ArrayList<>();
+
+    @Override
+    public synchronized void onStatusChanged(TransferStatus transferStatus) {
+        if (transferStatus.isFinished()) {
+            mFinished.add(transferStatus);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait for the specified number of transfers to finish and check that
+     * they succeeded
+     */
+    synchronized void awaitSucceeded(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (mFinished.size() < count) {
+            long remaining = deadline - System.currentTimeMillis();
+            assertTrue("transfers did not finish", remaining > 0);
+            wait(remaining);
+        }
+        for (TransferStatus transferStatus : mFinished) {
+            assertEquals(transferStatus.getError(),
+                    TransferStatus.State.Succeeded, transferStatus.getState());
+        }
+        mFinished.clear();
+    }
+
+    static File createDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("unable to create directory");
+        }
+        return directory;
+    }
+
+    static File createFile(File directory, String name, int size) throws IOException {
+        File file = new File(directory, name);
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(new byte[size]);
+        } finally {
+            outputStream.close();
+        }
+        return file;
+    }
+
+    static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+}